@@ -0,0 +1,159 @@
+package benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small throughput harness in the spirit of JMH, for measuring hot paths without extra
+ * dependencies. Every benchmark runs on a number of threads for a warmup period and then
+ * for a measurement period; only the operations completed during measurement are counted.
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ *     <li><code>bench.warmupMs</code> warmup time per benchmark (default 2000)</li>
+ *     <li><code>bench.measureMs</code> measurement time per benchmark (default 5000)</li>
+ *     <li><code>bench.threads</code> comma separated thread counts (default 1,2,4,available processors)</li>
+ * </ul>
+ */
+public final class Bench {
+    private static final long WARMUP_MILLIS = Long.getLong("bench.warmupMs", 2000);
+    private static final long MEASURE_MILLIS = Long.getLong("bench.measureMs", 5000);
+    private static final PrintStream RESULTS = System.out;
+
+    // Written by every operation so the JIT cannot drop the work as dead code
+    private static volatile Object sink;
+
+    /**
+     * One benchmarked operation.
+     */
+    public interface Operation {
+        /**
+         * @param thread    The index of the calling thread, from 0 to the thread count.
+         * @param iteration How many times this thread has called the operation before.
+         * @return Any result of the operation; it is consumed so the work is not optimized away.
+         */
+        Object run(int thread, long iteration) throws Exception;
+    }
+
+    private Bench() {
+    }
+
+    /**
+     * Thread counts from <code>bench.threads</code>.
+     */
+    public static int[] threadCounts() {
+        String configured = System.getProperty("bench.threads");
+        if (configured == null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            return processors > 4 ? new int[]{1, 2, 4, processors} : new int[]{1, 2, 4};
+        }
+        String[] parts = configured.split(",");
+        int[] counts = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            counts[i] = Integer.parseInt(parts[i].trim());
+        }
+        return counts;
+    }
+
+    /**
+     * Comma separated integers from a system property.
+     */
+    public static int[] intList(String property, String defaultValue) {
+        String[] parts = System.getProperty(property, defaultValue).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Prints the column headers for {@link #run(String, int, Operation)}.
+     */
+    public static void printHeader() {
+        RESULTS.printf("%-40s %8s %16s %12s%n", "Benchmark", "Threads", "Ops/s", "ns/op");
+    }
+
+    /**
+     * Runs an operation on the given number of threads and prints its throughput.
+     * Anything the operation prints to System.out is discarded while it runs.
+     *
+     * @return The measured operations per second over all threads.
+     */
+    public static double run(String name, int threads, Operation operation) throws InterruptedException {
+        LongAdder completed = new LongAdder();
+        CountDownLatch started = new CountDownLatch(threads);
+        Phase phase = new Phase();
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                long iteration = 0;
+                long counted = 0;
+                started.countDown();
+                try {
+                    while (phase.state != Phase.DONE) {
+                        sink = operation.run(thread, iteration++);
+                        if (phase.state == Phase.MEASURE) {
+                            counted++;
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(RESULTS);
+                }
+                completed.add(counted);
+            }, "bench-" + t);
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long measuredNanos;
+        try {
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            started.await();
+            Thread.sleep(WARMUP_MILLIS);
+            phase.state = Phase.MEASURE;
+            long start = System.nanoTime();
+            Thread.sleep(MEASURE_MILLIS);
+            phase.state = Phase.DONE;
+            measuredNanos = System.nanoTime() - start;
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        long operations = completed.sum();
+        double opsPerSecond = operations * 1e9 / measuredNanos;
+        double nanosPerOp = operations == 0 ? Double.NaN : (double) measuredNanos * threads / operations;
+        RESULTS.printf("%-40s %8d %16.0f %12.1f%n", name, threads, opsPerSecond, nanosPerOp);
+        return opsPerSecond;
+    }
+
+    /**
+     * Runs a setup or teardown step with System.out discarded.
+     */
+    public static void quietly(Runnable step) {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            step.run();
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static final class Phase {
+        static final int WARMUP = 0;
+        static final int MEASURE = 1;
+        static final int DONE = 2;
+
+        volatile int state = WARMUP;
+    }
+}
@@ -0,0 +1,168 @@
+package peer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates the structured overlay of {@link RoutingTable} and {@link NodeLookup} with many
+ * nodes in one JVM, without sockets: a FIND_NODE query calls the answering node directly.
+ * <p>
+ * Nodes join one after the other the way a peer does: they get a few random nodes that joined
+ * before (the neighbors the central server suggests), introduce themselves to them and look up
+ * their own ID. Afterwards, random nodes look up the IDs of random other nodes. Reports how many
+ * rounds (hops) and queries a lookup took and how often it found the node it was looking for.
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ *     <li><code>dht.nodes</code> number of nodes (default 100000)</li>
+ *     <li><code>dht.k</code> bucket size (default 8)</li>
+ *     <li><code>dht.alpha</code> parallel queries per round (default 3)</li>
+ *     <li><code>dht.bootstrap</code> nodes a joining node is introduced to (default 3)</li>
+ *     <li><code>dht.lookups</code> lookups to measure (default 10000)</li>
+ *     <li><code>dht.failed</code> fraction of nodes that stop answering before the lookups (default 0)</li>
+ *     <li><code>dht.seed</code> random seed (default 1)</li>
+ * </ul>
+ */
+public class DhtSimulation {
+    private static final int MAX_TRACKED_HOPS = 16;
+
+    private final int nodeCount = Integer.getInteger("dht.nodes", 100_000);
+    private final int k = Integer.getInteger("dht.k", 8);
+    private final int alpha = Integer.getInteger("dht.alpha", 3);
+    private final int bootstrapCount = Integer.getInteger("dht.bootstrap", 3);
+    private final int lookupCount = Integer.getInteger("dht.lookups", 10_000);
+    private final double failedFraction = Double.parseDouble(System.getProperty("dht.failed", "0"));
+    private final Random random = new Random(Long.getLong("dht.seed", 1));
+
+    private final Contact[] contacts = new Contact[nodeCount];
+    private final NodeLookup[] nodes = new NodeLookup[nodeCount];
+    private final boolean[] failed = new boolean[nodeCount];
+
+    public static void main(String[] args) throws Exception {
+        new DhtSimulation().run();
+    }
+
+    private void run() throws IOException {
+        System.out.printf("Simulating %d nodes (k=%d, alpha=%d, %d bootstrap nodes each)%n", nodeCount, k, alpha, bootstrapCount);
+        long joinStart = System.nanoTime();
+        long joinQueries = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            joinQueries += join(i);
+            if ((i + 1) % 20_000 == 0) {
+                System.out.printf("  %d nodes joined%n", i + 1);
+            }
+        }
+        long contactCount = 0;
+        for (NodeLookup node : nodes) {
+            contactCount += node.getTable().size();
+        }
+        System.out.printf("Joins: %.1f s, %.1f queries per join, %.1f contacts per routing table%n",
+                (System.nanoTime() - joinStart) / 1e9, joinQueries / (double) nodeCount, contactCount / (double) nodeCount);
+
+        int failedCount = (int) (nodeCount * failedFraction);
+        for (int i = 0; i < failedCount; i++) {
+            int node;
+            do {
+                node = random.nextInt(nodeCount);
+            } while (failed[node]);
+            failed[node] = true;
+        }
+        if (failedCount > 0) {
+            System.out.printf("%d nodes (%.0f%%) stopped answering%n", failedCount, failedFraction * 100);
+        }
+
+        long[] hops = new long[MAX_TRACKED_HOPS + 1];
+        int[] rounds = new int[lookupCount];
+        long queries = 0;
+        long failures = 0;
+        int found = 0;
+        int measured = 0;
+        long lookupStart = System.nanoTime();
+        while (measured < lookupCount) {
+            int source = random.nextInt(nodeCount);
+            int target = random.nextInt(nodeCount);
+            if (source == target || failed[source] || failed[target]) {
+                continue;
+            }
+            NodeLookup.Result result = nodes[source].lookup(contacts[target].getId());
+            rounds[measured++] = result.rounds;
+            hops[Math.min(result.rounds, MAX_TRACKED_HOPS)]++;
+            queries += result.queries;
+            failures += result.failures;
+            if (!result.closest.isEmpty() && result.closest.get(0).getId() == contacts[target].getId()) {
+                found++;
+            }
+        }
+        double seconds = (System.nanoTime() - lookupStart) / 1e9;
+
+        Arrays.sort(rounds);
+        System.out.printf("Lookups: %d in %.1f s, found %.2f%%, %.1f queries and %.2f failed queries per lookup%n",
+                lookupCount, seconds, found * 100.0 / lookupCount, queries / (double) lookupCount, failures / (double) lookupCount);
+        System.out.printf("Hops (query rounds): mean=%.2f p50=%d p90=%d p99=%d max=%d, log2(n)=%.1f%n",
+                Arrays.stream(rounds).average().orElse(0), rounds[lookupCount / 2], rounds[(int) (lookupCount * 0.9)],
+                rounds[(int) (lookupCount * 0.99)], rounds[lookupCount - 1], Math.log(nodeCount) / Math.log(2));
+        StringBuilder distribution = new StringBuilder("Hops distribution:");
+        for (int i = 0; i <= MAX_TRACKED_HOPS; i++) {
+            if (hops[i] > 0) {
+                distribution.append(' ').append(i == MAX_TRACKED_HOPS ? i + "+" : i).append('=').append(hops[i]);
+            }
+        }
+        System.out.println(distribution);
+    }
+
+    /**
+     * Adds a node and bootstraps it through random nodes that joined before.
+     *
+     * @return How many queries the join took.
+     */
+    private int join(int index) throws IOException {
+        contacts[index] = new Contact(random.nextLong(), addressOf(index));
+        RoutingTable table = new RoutingTable(contacts[index].getId(), k);
+        nodes[index] = new NodeLookup(table, new DirectTransport(contacts[index]), Runnable::run, k, alpha);
+        if (index == 0) {
+            return 0;
+        }
+        int introductions = Math.min(bootstrapCount, index);
+        for (int i = 0; i < introductions; i++) {
+            nodes[index].introduce(contacts[random.nextInt(index)].getAddress());
+        }
+        return introductions + nodes[index].lookup(table.getSelfId()).queries;
+    }
+
+    /**
+     * Delivers the queries of one node straight to the node that answers them.
+     */
+    private final class DirectTransport implements NodeLookup.Transport {
+        private final Contact sender;
+
+        DirectTransport(Contact sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public NodeLookup.Reply findNode(InetSocketAddress address, long target) throws IOException {
+            int index = indexOf(address);
+            if (failed[index]) {
+                throw new IOException("Node " + index + " does not answer");
+            }
+            List<Contact> closest = nodes[index].answer(sender, target);
+            return new NodeLookup.Reply(contacts[index].getId(), closest);
+        }
+    }
+
+    // Node i is 10.x.y.z with x.y.z = i, so an address leads back to its node without a map
+    private static InetSocketAddress addressOf(int index) throws UnknownHostException {
+        byte[] address = {10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index};
+        return new InetSocketAddress(InetAddress.getByAddress(address), 1);
+    }
+
+    private static int indexOf(InetSocketAddress address) {
+        byte[] bytes = address.getAddress().getAddress();
+        return (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+}
@@ -0,0 +1,48 @@
+package peer;
+
+import benchmark.Bench;
+import common.Frames;
+import common.Opcode;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how fast a peer turns the server's join reply and a neighbor's redirect into an
+ * address: the text messages handled by {@link ServerSession#parseConnectTo(String)} and
+ * {@link Peer#parseRedirect(String)}, and the equivalent frames of the framed protocol.
+ */
+public class HandshakeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = Bench.threadCounts();
+        ByteBuffer connectToFrame = encodeConnectTo(InetAddress.getByName("192.168.100.200"), 54321);
+
+        Bench.printHeader();
+        for (int threads : threadCounts) {
+            Bench.run("parseConnectTo (text)", threads, (thread, iteration) ->
+                    ServerSession.parseConnectTo("Connect to: 192.168.100.200 54321"));
+        }
+        for (int threads : threadCounts) {
+            Bench.run("parseRedirect (text)", threads, (thread, iteration) ->
+                    Peer.parseRedirect("REDIRECT 192.168.100.200 54321"));
+        }
+        for (int threads : threadCounts) {
+            Bench.run("CONNECT_TO (frame)", threads, (thread, iteration) -> {
+                ByteBuffer frame = connectToFrame.duplicate();
+                frame.position(Frames.HEADER_LENGTH);
+                Opcode.fromCode(frame.get());
+                return Frames.getAddress(frame);
+            });
+        }
+    }
+
+    private static ByteBuffer encodeConnectTo(InetAddress address, int port) {
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        int start = Frames.begin(frame, Opcode.CONNECT_TO);
+        Frames.putAddress(frame, address, port);
+        Frames.end(frame, start);
+        frame.flip();
+        return frame;
+    }
+}
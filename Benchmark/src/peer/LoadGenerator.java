@@ -0,0 +1,314 @@
+package peer;
+
+import common.ConnectionExecutors;
+import common.Metrics;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Simulates many peers in one JVM against a running Central Server. Peers join at a fixed rate
+ * until the target population is reached; after that, random peers quit and new ones join in
+ * their place (churn) for the configured duration.
+ * <p>
+ * Reports join latency percentiles (from starting a peer until it has a neighbor), how many
+ * redirects each join took, and the join throughput the server sustained. After churning, it
+ * reports how many neighbors the peers have and how fast they replaced lost ones (see
+ * <code>peer.minDegree</code>). Finally, random peers gossip messages to the whole network,
+ * reporting how many peers each message reached and how many frames it cost compared to the
+ * number of neighbor links.
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ *     <li><code>load.server</code> the server's IP address (default 127.0.0.1)</li>
+ *     <li><code>load.peers</code> number of peers to keep in the network (default 500)</li>
+ *     <li><code>load.joinRate</code> joins per second while ramping up (default 100)</li>
+ *     <li><code>load.churnRate</code> quit-and-rejoin operations per second afterwards (default 20)</li>
+ *     <li><code>load.durationSec</code> how long to churn (default 30)</li>
+ *     <li><code>load.joinTimeoutMs</code> when a join counts as failed (default 10000)</li>
+ *     <li><code>load.gossipMessages</code> messages to gossip after churning (default 10)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final int MAX_TRACKED_HOPS = 8;
+
+    private final String serverIPAddress = System.getProperty("load.server", "127.0.0.1");
+    private final int peerCount = Integer.getInteger("load.peers", 500);
+    private final int joinRate = Integer.getInteger("load.joinRate", 100);
+    private final int churnRate = Integer.getInteger("load.churnRate", 20);
+    private final long durationSeconds = Long.getLong("load.durationSec", 30);
+    private final long joinTimeoutMillis = Long.getLong("load.joinTimeoutMs", 10000);
+    private final int gossipMessages = Integer.getInteger("load.gossipMessages", 10);
+
+    private final ExecutorService connectionPool = createConnectionPool();
+    private final ExecutorService joinPool = Executors.newCachedThreadPool(ConnectionExecutors.namedThreadFactory("load-join"));
+    private final PrintStream quietConsole = new PrintStream(OutputStream.nullOutputStream());
+    private final List<Peer> livePeers = new ArrayList<>(); // guarded by itself
+
+    // Join latencies in microseconds, appended by the joining threads
+    private final ConcurrentLinkedQueue<Long> joinLatencies = new ConcurrentLinkedQueue<>();
+    // Index i counts joins that took i redirects, the last index counts all longer walks
+    private final AtomicLongArray redirectHops = new AtomicLongArray(MAX_TRACKED_HOPS + 1);
+    private final AtomicInteger failedJoins = new AtomicInteger();
+    private final AtomicInteger quits = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Simulating " + peerCount + " peers against " + serverIPAddress);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ScheduledFuture<?> progress = scheduler.scheduleAtFixedRate(this::printProgress, 5, 5, TimeUnit.SECONDS);
+
+        // Ramp up to the target population
+        long rampStart = System.nanoTime();
+        CountDownLatch rampedUp = new CountDownLatch(peerCount);
+        AtomicInteger startedJoins = new AtomicInteger();
+        ScheduledFuture<?> joins = scheduler.scheduleAtFixedRate(() -> {
+            if (startedJoins.incrementAndGet() <= peerCount) {
+                joinPool.submit(() -> {
+                    join();
+                    rampedUp.countDown();
+                });
+            }
+        }, 0, Math.max(1, 1_000_000 / joinRate), TimeUnit.MICROSECONDS);
+        rampedUp.await();
+        joins.cancel(false);
+        long rampNanos = System.nanoTime() - rampStart;
+        int rampJoins = joinLatencies.size();
+        System.out.printf("Ramp up: %d joins in %.1f s (%.1f joins/s), %d failed%n",
+                rampJoins, rampNanos / 1e9, rampJoins * 1e9 / rampNanos, failedJoins.get());
+        report("ramp up");
+
+        // Churn: a random peer quits and a new one joins
+        joinLatencies.clear();
+        for (int i = 0; i < redirectHops.length(); i++) {
+            redirectHops.set(i, 0);
+        }
+        if (churnRate > 0 && durationSeconds > 0) {
+            long churnStart = System.nanoTime();
+            ScheduledFuture<?> churn = scheduler.scheduleAtFixedRate(
+                    () -> joinPool.submit(this::churnOnce),
+                    0, Math.max(1, 1_000_000 / churnRate), TimeUnit.MICROSECONDS);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            churn.cancel(false);
+            long churnNanos = System.nanoTime() - churnStart;
+            System.out.printf("Churn: %d quits and %d joins in %.1f s (%.1f joins/s)%n",
+                    quits.get(), joinLatencies.size(), churnNanos / 1e9, joinLatencies.size() * 1e9 / churnNanos);
+            report("churn");
+            reportOverlay();
+        }
+
+        progress.cancel(false);
+        scheduler.shutdown();
+        if (gossipMessages > 0) {
+            gossip();
+        }
+        leaveAll();
+    }
+
+    /**
+     * Starts one peer and waits until it has joined the network.
+     */
+    private void join() {
+        Peer peer = new Peer(serverIPAddress, 0, connectionPool, quietConsole);
+        long start = System.nanoTime();
+        try {
+            peer.start();
+            if (!peer.awaitJoined(joinTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                failedJoins.incrementAndGet();
+                peer.leave();
+                return;
+            }
+        } catch (Exception e) {
+            failedJoins.incrementAndGet();
+            peer.leave();
+            return;
+        }
+        joinLatencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        redirectHops.incrementAndGet(Math.min(peer.getRedirectHops(), MAX_TRACKED_HOPS));
+        synchronized (livePeers) {
+            livePeers.add(peer);
+        }
+    }
+
+    private void churnOnce() {
+        Peer leaving = null;
+        synchronized (livePeers) {
+            if (!livePeers.isEmpty()) {
+                // Swap with the last peer so removal does not shift the list
+                int index = ThreadLocalRandom.current().nextInt(livePeers.size());
+                leaving = livePeers.get(index);
+                livePeers.set(index, livePeers.get(livePeers.size() - 1));
+                livePeers.remove(livePeers.size() - 1);
+            }
+        }
+        if (leaving != null) {
+            leaving.leave();
+            quits.incrementAndGet();
+        }
+        join();
+    }
+
+    /**
+     * Gossips messages from random peers and reports how far they spread.
+     */
+    private void gossip() throws InterruptedException {
+        List<Peer> peers;
+        synchronized (livePeers) {
+            peers = new ArrayList<>(livePeers);
+        }
+        if (peers.size() < 2) {
+            return;
+        }
+        long links = 0;
+        for (Peer peer : peers) {
+            links += peer.getNeighborCount();
+        }
+        links /= 2;
+
+        long deliveredBefore = 0;
+        long sentBefore = 0;
+        for (Peer peer : peers) {
+            deliveredBefore += peer.getGossipDelivered();
+            sentBefore += peer.getGossipSent();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < gossipMessages; i++) {
+            peers.get(ThreadLocalRandom.current().nextInt(peers.size())).gossip("load test message " + i);
+        }
+
+        // Wait until the messages stopped spreading for a second
+        long delivered = deliveredBefore;
+        long sent = sentBefore;
+        long lastChangeNanos = System.nanoTime();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(200);
+            long nowDelivered = 0;
+            long nowSent = 0;
+            for (Peer peer : peers) {
+                nowDelivered += peer.getGossipDelivered();
+                nowSent += peer.getGossipSent();
+            }
+            if (nowDelivered == delivered && nowSent == sent) {
+                if (System.nanoTime() - lastChangeNanos > TimeUnit.SECONDS.toNanos(1)) {
+                    break;
+                }
+                continue;
+            }
+            delivered = nowDelivered;
+            sent = nowSent;
+            lastChangeNanos = System.nanoTime();
+        }
+        double framesPerMessage = (sent - sentBefore) / (double) gossipMessages;
+        System.out.printf("Gossip: %d messages reached %.1f%% of %d peers in %.1f s, %.1f frames per message over %d links (%.2f per link)%n",
+                gossipMessages, 100.0 * (delivered - deliveredBefore) / ((long) gossipMessages * (peers.size() - 1)),
+                peers.size(), (lastChangeNanos - start) / 1e9, framesPerMessage, links, links == 0 ? 0 : framesPerMessage / links);
+    }
+
+    private void leaveAll() {
+        List<Peer> peers;
+        synchronized (livePeers) {
+            peers = new ArrayList<>(livePeers);
+            livePeers.clear();
+        }
+        for (Peer peer : peers) {
+            peer.leave();
+        }
+        joinPool.shutdownNow();
+        connectionPool.shutdownNow();
+    }
+
+    private void printProgress() {
+        int live;
+        synchronized (livePeers) {
+            live = livePeers.size();
+        }
+        System.out.println("... " + live + " live peers, " + failedJoins.get() + " failed joins, " + quits.get() + " quits");
+    }
+
+    private void report(String phase) {
+        long[] latencies = new long[joinLatencies.size()];
+        int count = 0;
+        for (Long latency : joinLatencies) {
+            if (count == latencies.length) {
+                break;
+            }
+            latencies[count++] = latency;
+        }
+        Arrays.sort(latencies, 0, count);
+
+        if (count == 0) {
+            System.out.println("No successful joins during " + phase);
+            return;
+        }
+        System.out.printf("Join latency (%s, ms): p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n", phase,
+                percentile(latencies, count, 0.50), percentile(latencies, count, 0.90),
+                percentile(latencies, count, 0.99), percentile(latencies, count, 0.999),
+                latencies[count - 1] / 1000.0);
+
+        StringBuilder hops = new StringBuilder("Redirect hops (" + phase + "):");
+        long totalHops = 0;
+        long joins = 0;
+        for (int i = 0; i < redirectHops.length(); i++) {
+            long joinsWithHops = redirectHops.get(i);
+            totalHops += i * joinsWithHops;
+            joins += joinsWithHops;
+            if (joinsWithHops > 0) {
+                hops.append(' ').append(i).append(i == MAX_TRACKED_HOPS ? "+" : "").append('=').append(joinsWithHops);
+            }
+        }
+        hops.append(String.format(" mean=%.2f", joins == 0 ? 0.0 : (double) totalHops / joins));
+        System.out.println(hops);
+    }
+
+    /**
+     * Reports how many neighbors the live peers have, and how long the peers took to get back to
+     * <code>peer.minDegree</code> neighbors each time losing one left them with fewer.
+     */
+    private void reportOverlay() {
+        List<Peer> peers;
+        synchronized (livePeers) {
+            peers = new ArrayList<>(livePeers);
+        }
+        long[] degrees = new long[4];
+        long recoveries = 0;
+        long recoveryMicros = 0;
+        long maxRecoveryMicros = 0;
+        for (Peer peer : peers) {
+            degrees[Math.min(3, peer.getNeighborCount())]++;
+            Metrics.Histogram recovery = peer.getRepairRecovery();
+            recoveries += recovery.count();
+            recoveryMicros += recovery.sum();
+            maxRecoveryMicros = Math.max(maxRecoveryMicros, recovery.max());
+        }
+        System.out.printf("Neighbors after churn: 0=%d 1=%d 2=%d 3=%d; recovered from %d losses in %.2f ms on average, %.2f ms at most%n",
+                degrees[0], degrees[1], degrees[2], degrees[3], recoveries,
+                recoveries == 0 ? 0.0 : recoveryMicros / 1000.0 / recoveries, maxRecoveryMicros / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, int count, double quantile) {
+        int index = (int) Math.ceil(quantile * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))] / 1000.0;
+    }
+
+    /**
+     * Every simulated neighbor connection blocks a thread, so the pool has to grow with the peers.
+     */
+    private static ExecutorService createConnectionPool() {
+        ExecutorService virtualThreads = ConnectionExecutors.newVirtualThreadExecutor("load-peer-connection");
+        if (virtualThreads != null) {
+            return virtualThreads;
+        }
+        return Executors.newCachedThreadPool(ConnectionExecutors.namedThreadFactory("load-peer-connection"));
+    }
+}
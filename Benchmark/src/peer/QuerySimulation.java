@@ -0,0 +1,207 @@
+package peer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates "who has X?" searches with {@link QueryRouter} over an overlay like the one the
+ * peers build, in one JVM and without sockets. Messages travel one hop per step, so the time to
+ * the first hit is measured in hops.
+ * <p>
+ * Nodes join one after the other and link to random earlier nodes with a free slot. Keys are held
+ * by a few random nodes each and asked for by random nodes, the popular keys far more often than
+ * the others (Zipf distribution). The same workload runs with and without the query caches, and
+ * once more without skew, reporting the messages per search, how often a search found a holder
+ * and how many hops the first hit took.
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ *     <li><code>query.nodes</code> number of nodes (default 10000)</li>
+ *     <li><code>query.links</code> links each node opens when it joins (default 2)</li>
+ *     <li><code>query.maxDegree</code> links a node has at most (default 3, like a peer)</li>
+ *     <li><code>query.ttl</code> hops a query travels at most (default 7)</li>
+ *     <li><code>query.keys</code> number of keys (default 1000)</li>
+ *     <li><code>query.holders</code> nodes holding each key (default 10)</li>
+ *     <li><code>query.searches</code> searches per run (default 20000)</li>
+ *     <li><code>query.zipf</code> skew of the key popularity (default 1.0)</li>
+ *     <li><code>query.cacheSize</code> keys cached per node (default 1024)</li>
+ *     <li><code>query.seed</code> random seed (default 1)</li>
+ * </ul>
+ */
+public class QuerySimulation {
+    private final int nodeCount = Integer.getInteger("query.nodes", 10_000);
+    private final int links = Integer.getInteger("query.links", 2);
+    private final int maxDegree = Integer.getInteger("query.maxDegree", 3);
+    private final int ttl = Integer.getInteger("query.ttl", 7);
+    private final int keyCount = Integer.getInteger("query.keys", 1000);
+    private final int holdersPerKey = Integer.getInteger("query.holders", 10);
+    private final int searchCount = Integer.getInteger("query.searches", 20_000);
+    private final double zipf = Double.parseDouble(System.getProperty("query.zipf", "1.0"));
+    private final int cacheSize = Integer.getInteger("query.cacheSize", 1024);
+    private final long seed = Long.getLong("query.seed", 1);
+
+    private final List<List<Integer>> neighbors = new ArrayList<>();
+    private final List<Set<String>> held = new ArrayList<>();
+    private final InetSocketAddress[] addresses = new InetSocketAddress[nodeCount];
+
+    // The run in progress
+    private QueryRouter<Integer>[] routers;
+    private ArrayDeque<Runnable> inFlight = new ArrayDeque<>(); // delivered at the next step
+    private long messages;
+
+    public static void main(String[] args) throws Exception {
+        new QuerySimulation().run();
+    }
+
+    private void run() throws UnknownHostException {
+        Random random = new Random(seed);
+        buildOverlay(random);
+        placeKeys(random);
+        System.out.printf("Simulating %d nodes (%d links per join, at most %d), TTL %d, %d keys held by %d nodes each%n",
+                nodeCount, links, maxDegree, ttl, keyCount, holdersPerKey);
+
+        simulate("no cache, zipf " + zipf, 0, zipf);
+        simulate("cache, zipf " + zipf, cacheSize, zipf);
+        simulate("cache, uniform", cacheSize, 0);
+    }
+
+    private void buildOverlay(Random random) throws UnknownHostException {
+        for (int node = 0; node < nodeCount; node++) {
+            byte[] address = {10, (byte) (node >>> 16), (byte) (node >>> 8), (byte) node};
+            addresses[node] = new InetSocketAddress(InetAddress.getByAddress(address), 1);
+            neighbors.add(new ArrayList<Integer>());
+            for (int attempt = 0; attempt < links * 4 && neighbors.get(node).size() < links && node > 0; attempt++) {
+                int other = random.nextInt(node);
+                if (neighbors.get(other).size() < maxDegree && !neighbors.get(node).contains(other)) {
+                    neighbors.get(node).add(other);
+                    neighbors.get(other).add(node);
+                }
+            }
+        }
+    }
+
+    private void placeKeys(Random random) {
+        for (int node = 0; node < nodeCount; node++) {
+            held.add(new HashSet<String>());
+        }
+        for (int key = 0; key < keyCount; key++) {
+            for (int i = 0; i < holdersPerKey; i++) {
+                held.get(random.nextInt(nodeCount)).add(keyName(key));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void simulate(String label, int cacheCapacity, double skew) {
+        routers = (QueryRouter<Integer>[]) new QueryRouter<?>[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            QueryCache cache = new QueryCache(cacheCapacity, TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1), 8);
+            routers[node] = new QueryRouter<>(new SimulatedLinks(node), ttl, 64, cache); // One search at a time
+        }
+        Random random = new Random(seed + 1);
+        double[] popularity = cumulativeZipf(skew);
+
+        long totalMessages = 0;
+        int found = 0;
+        int answeredLocally = 0;
+        int[] hops = new int[searchCount];
+        int hitCount = 0;
+        for (int i = 0; i < searchCount; i++) {
+            int origin = random.nextInt(nodeCount);
+            String key = keyName(pick(popularity, random.nextDouble()));
+            messages = 0;
+            QueryRouter.Search search = routers[origin].search(key);
+            int firstHit = search.holders().isEmpty() ? -1 : 0;
+            for (int step = 1; !inFlight.isEmpty(); step++) {
+                ArrayDeque<Runnable> delivering = inFlight;
+                inFlight = new ArrayDeque<>();
+                for (Runnable delivery : delivering) {
+                    delivery.run();
+                }
+                if (firstHit < 0 && !search.holders().isEmpty()) {
+                    firstHit = step;
+                }
+            }
+            routers[origin].finish(search);
+            totalMessages += messages;
+            if (search.fromCache) {
+                answeredLocally++;
+            }
+            if (firstHit >= 0) {
+                found++;
+                hops[hitCount++] = firstHit;
+            }
+        }
+        int[] sorted = Arrays.copyOf(hops, hitCount);
+        Arrays.sort(sorted);
+        System.out.printf("%-22s %7.1f messages/search, found %5.1f%%, answered locally %5.1f%%, hops to first hit: mean=%.2f p50=%d p90=%d%n",
+                label, totalMessages / (double) searchCount, found * 100.0 / searchCount, answeredLocally * 100.0 / searchCount,
+                Arrays.stream(sorted).average().orElse(0), hitCount == 0 ? 0 : sorted[hitCount / 2],
+                hitCount == 0 ? 0 : sorted[(int) (hitCount * 0.9)]);
+    }
+
+    private double[] cumulativeZipf(double skew) {
+        double[] cumulative = new double[keyCount];
+        double sum = 0;
+        for (int key = 0; key < keyCount; key++) {
+            sum += 1 / Math.pow(key + 1, skew);
+            cumulative[key] = sum;
+        }
+        for (int key = 0; key < keyCount; key++) {
+            cumulative[key] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double value) {
+        int index = Arrays.binarySearch(cumulative, value);
+        return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    private static String keyName(int key) {
+        return "file-" + key;
+    }
+
+    /**
+     * Queues messages for delivery at the next step.
+     */
+    private final class SimulatedLinks implements QueryRouter.Links<Integer> {
+        private final int node;
+
+        SimulatedLinks(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public Iterable<Integer> neighbors() {
+            return neighbors.get(node);
+        }
+
+        @Override
+        public List<InetSocketAddress> localHolders(String key) {
+            return held.get(node).contains(key) ? Collections.singletonList(addresses[node]) : Collections.<InetSocketAddress>emptyList();
+        }
+
+        @Override
+        public void sendQuery(Integer neighbor, long id, int hopsLeft, String key) {
+            messages++;
+            inFlight.add(() -> routers[neighbor].handleQuery(node, id, hopsLeft, key));
+        }
+
+        @Override
+        public void sendHit(Integer neighbor, long id, String key, List<InetSocketAddress> holders) {
+            messages++;
+            inFlight.add(() -> routers[neighbor].handleHit(id, key, holders));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package peer;
+
+import common.ConnectionExecutors;
+import common.FrameReader;
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures downloads between peers over loopback: several sources serve the same file from one
+ * directory with {@link FileShare}, the way a peer's server does, and {@link FileDownload}
+ * fetches it from one source and from all of them. Then half of the chunks of a download are
+ * damaged and the download is resumed, fetching only those again.
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ *     <li><code>transfer.sizeMb</code> size of the file (default 1024)</li>
+ *     <li><code>transfer.sources</code> number of sources (default 3)</li>
+ *     <li><code>transfer.chunkSize</code> chunk size in bytes (default 4 MiB)</li>
+ *     <li><code>transfer.connectionsPerSource</code> chunks requested from a source at once (default 2)</li>
+ *     <li><code>transfer.dir</code> where the files are written (default a new directory in java.io.tmpdir)</li>
+ * </ul>
+ */
+public class TransferBenchmark {
+    private static final String FILE_NAME = "transfer-benchmark.bin";
+
+    private final long size = Long.getLong("transfer.sizeMb", 1024) << 20;
+    private final int sourceCount = Integer.getInteger("transfer.sources", 3);
+    private final int chunkSize = Integer.getInteger("transfer.chunkSize", 4 << 20);
+    private final int connectionsPerSource = Integer.getInteger("transfer.connectionsPerSource", 2);
+    private final ExecutorService executor = ConnectionExecutors.create(ConnectionExecutors.VIRTUAL, 64, "transfer");
+    private final Metrics metrics = new Metrics("transfer_benchmark");
+
+    public static void main(String[] args) throws Exception {
+        new TransferBenchmark().run();
+        System.exit(0);
+    }
+
+    private void run() throws IOException {
+        String dir = System.getProperty("transfer.dir");
+        Path root = dir != null ? Files.createDirectories(Paths.get(dir)) : Files.createTempDirectory("transfer-benchmark");
+        Path shared = Files.createDirectories(root.resolve("shared"));
+        Path downloads = Files.createDirectories(root.resolve("downloads"));
+        try {
+            createFile(shared.resolve(FILE_NAME));
+            FileShare share = new FileShare(shared, chunkSize, sourceCount * connectionsPerSource, metrics);
+            List<InetSocketAddress> sources = new ArrayList<>();
+            for (int i = 0; i < sourceCount; i++) {
+                sources.add(startSource(share));
+            }
+            long manifestStart = System.nanoTime();
+            share.manifest(FILE_NAME);
+            System.out.printf("File: %d MB in chunks of %d KB, manifest computed in %.2f s%n",
+                    size >> 20, chunkSize >> 10, (System.nanoTime() - manifestStart) / 1e9);
+
+            report("1 source", download(downloads, sources.subList(0, 1)));
+            Files.delete(downloads.resolve(FILE_NAME));
+            report(sourceCount + " sources", download(downloads, sources));
+
+            // Damage every other chunk of a completed download and resume it
+            Path partial = downloads.resolve(FILE_NAME + FileShare.PARTIAL_SUFFIX);
+            Files.move(downloads.resolve(FILE_NAME), partial);
+            try (FileChannel file = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                for (long position = 0; position < size; position += 2L * chunkSize) {
+                    file.write(ByteBuffer.wrap(new byte[]{42}), position);
+                }
+            }
+            report("resume", download(downloads, sources));
+            System.out.printf("Served %d MB in %d chunks%n", metrics.counter("transfer.bytes_served").get() >> 20,
+                    metrics.counter("transfer.chunks_served").get());
+        } finally {
+            Files.deleteIfExists(downloads.resolve(FILE_NAME));
+            Files.deleteIfExists(downloads.resolve(FILE_NAME + FileShare.PARTIAL_SUFFIX));
+            Files.deleteIfExists(shared.resolve(FILE_NAME));
+        }
+    }
+
+    private FileDownload.Result download(Path downloads, List<InetSocketAddress> sources) throws IOException {
+        return new FileDownload(downloads, FILE_NAME, executor, connectionsPerSource, 1000, 10000, metrics).run(sources);
+    }
+
+    private static void report(String label, FileDownload.Result result) {
+        System.out.printf("%-10s %8.1f MB/s  (%.2f s, %d chunks fetched, %d resumed)%n", label,
+                result.megabytesPerSecond(), result.nanos / 1e9, result.chunksFetched, result.chunksResumed);
+    }
+
+    private void createFile(Path path) throws IOException {
+        Random random = new Random(1);
+        byte[] block = new byte[1 << 20];
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts connections the way a peer's server does for file requests.
+     */
+    private InetSocketAddress startSource(FileShare share) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel channel = server.accept();
+                    executor.submit(() -> serve(share, channel));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "transfer-source");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    private static void serve(FileShare share, SocketChannel channel) {
+        try (SocketChannel connection = channel) {
+            InputStream input = connection.socket().getInputStream();
+            if (!Frames.PROTOCOL_LINE.equals(Frames.readLine(input))) {
+                return;
+            }
+            FileShare.writeFully(connection, ByteBuffer.wrap((Frames.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8)));
+            FrameReader frames = new FrameReader(new BufferedInputStream(input), Frames.MAX_MESSAGE_LENGTH);
+            Opcode request = frames.next();
+            if (request != null) {
+                share.serve(request, frames, connection);
+            }
+        } catch (IOException e) {
+            // The download closed the connection
+        }
+    }
+}
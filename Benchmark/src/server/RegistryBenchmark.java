@@ -0,0 +1,68 @@
+package server;
+
+import benchmark.Bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the Central Server's registry operations ({@link Central_Server#addPeer},
+ * {@link Central_Server#removePeer} and {@link Central_Server#getRandomPeer}) for different
+ * numbers of registered peers and contending threads.
+ * <p>
+ * Registry sizes are set with <code>bench.sizes</code> (default 1000,100000,1000000); see
+ * {@link Bench} for the other settings.
+ */
+public class RegistryBenchmark {
+    private static final int LISTENER_PORT = 6000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = Bench.intList("bench.sizes", "1000,100000,1000000");
+        int[] threadCounts = Bench.threadCounts();
+
+        Bench.printHeader();
+        for (int size : sizes) {
+            InetSocketAddress[] peers = createAddresses(size);
+            Bench.quietly(() -> {
+                for (InetSocketAddress peer : peers) {
+                    Central_Server.addPeer(peer.getAddress(), peer.getPort(), LISTENER_PORT);
+                }
+            });
+
+            for (int threads : threadCounts) {
+                Bench.run("getRandomPeer @" + size, threads, (thread, iteration) ->
+                        Central_Server.getRandomPeer(peers[ThreadLocalRandom.current().nextInt(size)]));
+            }
+            for (int threads : threadCounts) {
+                // Every thread churns its own share of the peers so the registry size stays the same
+                int share = size / threads;
+                Bench.run("removePeer+addPeer @" + size, threads, (thread, iteration) -> {
+                    InetSocketAddress peer = peers[thread + (int) (iteration % share) * threads];
+                    Central_Server.removePeer(peer);
+                    Central_Server.addPeer(peer.getAddress(), peer.getPort(), LISTENER_PORT);
+                    return peer;
+                });
+            }
+
+            Bench.quietly(() -> {
+                for (InetSocketAddress peer : peers) {
+                    Central_Server.removePeer(peer);
+                }
+            });
+        }
+    }
+
+    /**
+     * Distinct peer addresses in 10.0.0.0/8, all on the same outgoing port.
+     */
+    private static InetSocketAddress[] createAddresses(int count) throws UnknownHostException {
+        InetSocketAddress[] addresses = new InetSocketAddress[count];
+        for (int i = 0; i < count; i++) {
+            byte[] ip = {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+            addresses[i] = new InetSocketAddress(InetAddress.getByAddress(ip), 50000);
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,93 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run blocking connection handlers for the server and the peers.
+ * Virtual threads are looked up reflectively so the project still compiles and runs on JDKs
+ * that do not have them; callers get a fallback in that case.
+ */
+public final class ConnectionExecutors {
+    public static final String VIRTUAL = "virtual";
+    public static final String FIXED = "fixed";
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * Creates an executor for the given mode.
+     *
+     * @param mode       "virtual" for one virtual thread per task, "fixed" for a fixed pool.
+     * @param poolSize   The size of the fixed pool, also used when virtual threads are unavailable.
+     * @param namePrefix Prefix for the names of the created threads.
+     * @return The executor for the requested mode, or a fixed pool as the fallback.
+     */
+    public static ExecutorService create(String mode, int poolSize, String namePrefix) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor(namePrefix);
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+            System.out.println("Virtual threads are not supported by this JVM, using a fixed pool of " + poolSize + " threads.");
+        }
+        return Executors.newFixedThreadPool(poolSize, namedThreadFactory(namePrefix));
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     *
+     * @param namePrefix Prefix for the names of the created threads.
+     * @return The executor, or null if the running JVM does not support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Older JDK, or virtual threads still behind --enable-preview
+            return null;
+        }
+    }
+
+    /**
+     * Creates a pool of at most the given number of daemon threads, which end after a minute
+     * without work, for tasks that hold a thread for long and must not hold up other work.
+     *
+     * @param threads    The most threads the pool runs at once.
+     * @param queued     Whether tasks wait for a free thread; otherwise tasks beyond the maximum are
+     *                   rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+     * @param namePrefix Prefix for the names of the created threads.
+     */
+    public static ThreadPoolExecutor newBoundedPool(int threads, boolean queued, String namePrefix) {
+        ThreadFactory names = namedThreadFactory(namePrefix);
+        ThreadFactory daemons = runnable -> {
+            Thread thread = names.newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = queued
+                ? new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), daemons)
+                : new ThreadPoolExecutor(0, threads, 1, TimeUnit.MINUTES, new SynchronousQueue<>(), daemons);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Returns a factory for platform threads named "prefix-N".
+     */
+    public static ThreadFactory namedThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, namePrefix + "-" + counter.getAndIncrement());
+    }
+}
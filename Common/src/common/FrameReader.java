@@ -0,0 +1,98 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a blocking stream into one reusable buffer.
+ * The payload returned by {@link #payload()} is only valid until the next call to {@link #next()}.
+ * <p>
+ * Frames longer than the reader's maximum are rejected, and the buffer only grows as the bytes
+ * of a frame arrive, so a header alone cannot make the reader allocate a large buffer.
+ */
+public final class FrameReader {
+    private final InputStream input;
+    private final int maxLength;
+    private final byte[] header = new byte[Frames.HEADER_LENGTH];
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    /**
+     * @param input     The stream to read from, ideally buffered.
+     * @param maxLength The longest frame body (opcode and payload) accepted, e.g.
+     *                  {@link Frames#MAX_MESSAGE_LENGTH} on connections that carry no bulk data.
+     */
+    public FrameReader(InputStream input, int maxLength) {
+        this.input = input;
+        this.maxLength = Math.min(maxLength, Frames.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Blocks until the next frame has been read.
+     *
+     * @return The frame's opcode, or null at end of stream. Frames with unknown opcodes are skipped.
+     * @throws IOException If the stream ends within a frame or a frame is longer than the maximum.
+     */
+    public Opcode next() throws IOException {
+        while (true) {
+            if (!readFully(header, header.length, true)) {
+                return null;
+            }
+            int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            if (length < 1 || length > maxLength) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            readBody(length);
+
+            Opcode opcode = Opcode.fromCode(buffer.get());
+            if (opcode != null) {
+                return opcode;
+            }
+            // Unknown opcode from a newer protocol revision, skip it
+        }
+    }
+
+    /**
+     * @return The payload of the frame returned by the last {@link #next()} call.
+     */
+    public ByteBuffer payload() {
+        return buffer;
+    }
+
+    /**
+     * Reads a frame body into the buffer, doubling the buffer whenever the bytes read so far fill it.
+     */
+    private void readBody(int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (read == buffer.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(length, buffer.capacity() * 2));
+                grown.put(buffer.array(), 0, read);
+                buffer = grown;
+            }
+            int count = input.read(buffer.array(), read, Math.min(length, buffer.capacity()) - read);
+            if (count < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            read += count;
+        }
+        buffer.clear();
+        buffer.limit(length);
+    }
+
+    private boolean readFully(byte[] target, int length, boolean endAllowed) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = input.read(target, read, length - read);
+            if (count < 0) {
+                if (read == 0 && endAllowed) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            read += count;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames into one reusable buffer and writes them to a blocking stream.
+ * <pre>
+ * ByteBuffer payload = writer.begin(Opcode.HELLO);
+ * payload.putInt(listenerPort);
+ * writer.end();
+ * </pre>
+ * Not thread safe; callers sharing a writer synchronize on it.
+ */
+public final class FrameWriter {
+    private final OutputStream output;
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+    private int frameStart;
+
+    public FrameWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Starts a frame and returns the buffer to write its payload to.
+     */
+    public ByteBuffer begin(Opcode opcode) {
+        buffer.clear();
+        frameStart = Frames.begin(buffer, opcode);
+        return buffer;
+    }
+
+    /**
+     * Makes sure the frame being written has room for <code>bytes</code> more payload bytes.
+     *
+     * @return The buffer to keep writing to, which may be a new, larger one.
+     */
+    public ByteBuffer ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            if (buffer.position() + bytes > Frames.MAX_FRAME_LENGTH) {
+                throw new BufferOverflowException();
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return buffer;
+    }
+
+    /**
+     * Finishes the frame started with {@link #begin(Opcode)} and writes it.
+     */
+    public void end() throws IOException {
+        Frames.end(buffer, frameStart);
+        output.write(buffer.array(), 0, buffer.position());
+        output.flush();
+    }
+
+    /**
+     * Writes a frame without payload.
+     */
+    public void write(Opcode opcode) throws IOException {
+        begin(opcode);
+        end();
+    }
+
+    /**
+     * Writes an already encoded frame.
+     */
+    public void write(ByteBuffer frame) throws IOException {
+        output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        output.flush();
+    }
+}
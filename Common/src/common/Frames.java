@@ -0,0 +1,160 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding helpers for the length-prefixed binary protocol shared by the server and the peers.
+ * <p>
+ * A frame is a 4 byte big-endian length, followed by that many bytes: one {@link Opcode} byte
+ * and the payload. Both sides start every connection with text lines; a client that sends
+ * {@link #PROTOCOL_LINE} and gets the same line back switches to frames, anything else keeps
+ * the old newline-delimited text protocol.
+ */
+public final class Frames {
+    public static final String PROTOCOL_LINE = "FRAMED/1";
+    // Sent by a busy server instead of any other reply, followed by milliseconds to wait, then the connection closes
+    public static final String RETRY_AFTER_PREFIX = "Retry after: ";
+    // Bits of the optional features int in a HELLO to the server
+    public static final int FEATURE_SHARD_REDIRECT = 1; // understands SERVER_AT
+    public static final int FEATURE_SESSION = 2; // wants a SESSION token, understands RESUMED
+    public static final int HEADER_LENGTH = 4;
+    // The shortest encoded address: the length byte, an IPv4 address and the port
+    public static final int MIN_ADDRESS_LENGTH = 1 + 4 + 2;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    // Longest frame body on connections between peers and the server and between neighbors; only
+    // file transfers and the server's membership pushes carry longer frames
+    public static final int MAX_MESSAGE_LENGTH = 1024 - HEADER_LENGTH;
+
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private Frames() {
+    }
+
+    /**
+     * Starts a frame at the buffer's position. Finish it with {@link #end(ByteBuffer, int)}.
+     *
+     * @return The start of the frame, to be passed to {@link #end(ByteBuffer, int)}.
+     */
+    public static int begin(ByteBuffer buffer, Opcode opcode) {
+        int start = buffer.position();
+        buffer.putInt(0); // Patched by end()
+        buffer.put(opcode.code());
+        return start;
+    }
+
+    /**
+     * Writes the length of the frame started at <code>start</code>.
+     */
+    public static void end(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - HEADER_LENGTH);
+    }
+
+    /**
+     * Checks whether a whole frame is available at the buffer's position.
+     *
+     * @return The frame body length (opcode and payload), or -1 if more bytes are needed.
+     * @throws IOException If the announced length is invalid.
+     */
+    public static int completeFrameLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return buffer.remaining() - HEADER_LENGTH >= length ? length : -1;
+    }
+
+    public static void putAddress(ByteBuffer buffer, InetAddress address, int port) {
+        byte[] bytes = address.getAddress();
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+        buffer.putShort((short) port);
+    }
+
+    public static InetSocketAddress getAddress(ByteBuffer buffer) throws IOException {
+        int length = buffer.get();
+        if ((length != 4 && length != 16) || buffer.remaining() < length + 2) {
+            throw new IOException("Invalid address in frame");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        int port = Short.toUnsignedInt(buffer.getShort());
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch (UnknownHostException e) {
+            throw new IOException("Invalid address in frame", e);
+        }
+    }
+
+    /**
+     * Reads the count in front of a list of items, checked against what the frame can hold so a
+     * bad count cannot make the reader allocate or loop for more items than were sent.
+     *
+     * @param minItemLength The fewest bytes one item takes.
+     * @throws IOException If the count is negative or the rest of the frame is too short for it.
+     */
+    public static int getCount(ByteBuffer buffer, int minItemLength) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * minItemLength > buffer.remaining()) {
+            throw new IOException("Invalid count in frame: " + count);
+        }
+        return count;
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new BufferOverflowException();
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * @throws BufferUnderflowException If the string runs past the end of the frame.
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Reads one text line straight from the stream, without buffering past the line end, so the
+     * stream can be handed to a {@link FrameReader} or a BufferedReader afterwards.
+     *
+     * @return The line without its terminator, or null at end of stream.
+     */
+    public static String readLine(InputStream input) throws IOException {
+        byte[] line = new byte[MAX_LINE_LENGTH];
+        int length = 0;
+        int next;
+        while ((next = input.read()) != '\n') {
+            if (next < 0) {
+                return length == 0 ? null : new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+            if (length == line.length) {
+                throw new IOException("Line too long");
+            }
+            line[length++] = (byte) next;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,240 @@
+package common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Low overhead runtime metrics: counters, gauges and latency histograms, kept by name.
+ * Recording never locks; counters are striped {@link LongAdder}s and histograms spread their
+ * buckets over several stripes, so threads recording at the same time rarely touch the same
+ * cache line.
+ * <p>
+ * The metrics can be printed for a console command with {@link #format()}, or scraped in the
+ * Prometheus text format with {@link #scrape()} (see {@link MetricsEndpoint}).
+ */
+public final class Metrics {
+    private final String prefix;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    // Counter values at the previous format() call, for the rates it prints
+    private final Map<String, Long> lastFormatted = new ConcurrentSkipListMap<>();
+    private long lastFormatNanos = startNanos;
+
+    /**
+     * @param prefix Prepended to every metric name when scraped, e.g. "p2p_server".
+     */
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return The counter with this name, created on first use.
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, ignored -> new Counter());
+    }
+
+    /**
+     * @return The histogram with this name, created on first use.
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, ignored -> new Histogram());
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are printed or scraped.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * A histogram of non-negative values (e.g. latencies in microseconds) with HDR style buckets:
+     * exact below 32, then 16 buckets per power of two, so every recorded value is known to within
+     * about 6% and a histogram has a fixed size no matter how many values it holds.
+     */
+    public static final class Histogram {
+        private static final int LINEAR_BUCKETS = 32;
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+        private static final int STRIPES = 8;
+
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            stripes[stripe].incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        /**
+         * Records the time since <code>startNanos</code> in microseconds.
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile Between 0 and 1, e.g. 0.99.
+         * @return The upper bound of the bucket holding that quantile, 0 if nothing was recorded.
+         */
+        public long percentile(double quantile) {
+            long[] buckets = new long[BUCKETS];
+            long total = 0;
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long bucketCount = stripe.get(i);
+                    buckets[i] += bucketCount;
+                    total += bucketCount;
+                }
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        static int bucketOf(long value) {
+            if (value < LINEAR_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+            return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+            long top = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Renders all metrics for a console. Counters show their total and their rate since the
+     * previous call.
+     */
+    public synchronized String format() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastFormatNanos) / 1e9);
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Uptime: %d s%n", (now - startNanos) / 1_000_000_000L));
+
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            long value = counter.getValue().get();
+            long previous = lastFormatted.getOrDefault(counter.getKey(), 0L);
+            lastFormatted.put(counter.getKey(), value);
+            out.append(String.format("%-28s %12d total %10.1f/s%n", counter.getKey(), value, (value - previous) / seconds));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            out.append(String.format("%-28s %12d%n", gauge.getKey(), gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.append(String.format("%-28s %12d samples  p50=%d p90=%d p99=%d p99.9=%d max=%d%n", entry.getKey(),
+                    histogram.count(), histogram.percentile(0.5), histogram.percentile(0.9),
+                    histogram.percentile(0.99), histogram.percentile(0.999), histogram.max()));
+        }
+        lastFormatNanos = now;
+        return out.toString();
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format. Histograms are exposed as summaries.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            String name = metricName(counter.getKey()) + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(counter.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            String name = metricName(gauge.getKey());
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = metricName(entry.getKey());
+            Histogram histogram = entry.getValue();
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.percentile(Double.parseDouble(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(histogram.sum()).append('\n');
+            out.append(name).append("_count ").append(histogram.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private String metricName(String name) {
+        return prefix + "_" + name.replace('.', '_');
+    }
+}
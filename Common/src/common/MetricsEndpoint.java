@@ -0,0 +1,40 @@
+package common;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link Metrics#scrape()} at <code>http://127.0.0.1:&lt;port&gt;/metrics</code>, for
+ * Prometheus or curl. Only bound to the loopback address.
+ */
+public final class MetricsEndpoint {
+    private MetricsEndpoint() {
+    }
+
+    /**
+     * Starts serving the metrics.
+     *
+     * @param metrics The metrics to serve.
+     * @param port    The local port to listen on.
+     * @return The running HTTP server, so it can be stopped.
+     * @throws IOException If the port could not be bound.
+     */
+    public static HttpServer start(Metrics metrics, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
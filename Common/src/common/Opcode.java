@@ -0,0 +1,71 @@
+package common;
+
+/**
+ * Message types of the framed protocol. The code is the byte following the frame length.
+ */
+public enum Opcode {
+    // Peer to server
+    HELLO(1),        // int listener port, optionally int how many peers to suggest (CONNECT_TO) and int Frames.FEATURE_ bits;
+                     // to a peer: int listener port, optionally int count, count addresses already redirected from
+    SUBSCRIBE(2),    // no payload
+    QUIT(3),         // no payload
+    HEARTBEAT(4),    // no payload, renews the peer's lease
+    TOPOLOGY(5),     // int count, count addresses: the listener addresses of the sender's neighbors
+    RESUME(6),       // long session token, then like HELLO; sent instead of HELLO by a peer that lost its connection
+    PEERS(7),        // int how many peers to suggest; sent by a peer that lost neighbors, answered with CONNECT_TO
+
+    // Server to peer
+    CONNECT_TO(10),  // address of the peer to connect to, followed by further candidates if the peer asked for them;
+                     // empty in answer to PEERS if there is no other peer
+    FIRST_PEER(11),  // no payload
+    ERROR(12),       // string reason
+    MEMBERS(13),     // long sequence, int count, count addresses
+    DELTA(14),       // long sequence, int count, count times (byte 1 = joined / 0 = left, address)
+    NOTICE(15),      // string message
+    SERVER_AT(16),   // address of the server shard to join instead, then the connection closes
+    SESSION(17),     // long session token, sent before the join reply to peers that asked for one
+    RESUMED(18),     // long session token; the peer's registration was resumed and no join reply follows
+
+    // Peer to peer
+    ACCEPT(20),      // no payload, the connection became a neighbor link
+    REDIRECT(21),    // address of the neighbor to try instead
+    DISCONNECT(22),  // no payload, the sender is leaving
+    DEGREE(23),      // int number of neighbors of the sender, sent whenever it changes,
+                     // optionally int count, count listener addresses of the sender's other neighbors
+    GOSSIP(24),      // long message id, byte hops left, string message; flooded to all neighbors
+    FIND_NODE(25),   // long sender node id, int sender listener port (0 if it keeps no routing table), long target id;
+                     // sent on its own connection instead of HELLO, answered with NODES, then the connection closes
+    NODES(26),       // long responder node id, int count, count times (long node id, address)
+    FILE_QUERY(27),  // string file name; like FIND_NODE sent on its own connection instead of HELLO
+    FILE_INFO(28),   // long size (-1 if not shared), int chunk size, int chunk count, count CRC-32 checksums
+    CHUNK_REQUEST(29), // string file name, int chunk index; may follow FILE_QUERY or open the connection too
+    CHUNK(30),       // int chunk index, then the chunk's bytes up to the end of the frame
+    QUERY(31),       // long query id, byte hops left, string key; flooded to the neighbors
+    QUERY_HIT(32);   // long query id, string key, int count, count holder addresses (0.0.0.0 for the sender);
+                     // sent back along the path the query came
+
+    private static final Opcode[] BY_CODE = new Opcode[128];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    private final byte code;
+
+    Opcode(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * @return The opcode for the given code, or null if it is unknown.
+     */
+    public static Opcode fromCode(byte code) {
+        return code >= 0 ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,146 @@
+package peer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The peers this peer can link to when it loses neighbors, without asking the server: the
+ * neighbors of its neighbors, as each neighbor last announced them.
+ * <p>
+ * When a neighbor is lost, the peers it announced are the best candidates: they lost a link to it
+ * as well, so they most likely have a free slot, and linking to them mends the overlay where the
+ * neighbor left a gap. A candidate that was handed out is not handed out again for a while, so a
+ * dead one does not stall every repair.
+ */
+class CandidateCache {
+    private final int capacity;
+    private final long retryNanos;
+    // The other neighbors each neighbor announced, by the neighbor's listener address
+    private final Map<InetSocketAddress, List<InetSocketAddress>> byNeighbor = new HashMap<>(); // guarded by this
+    // Neighbors of neighbors that were lost, the most recently orphaned last
+    private final LinkedHashSet<InetSocketAddress> orphaned = new LinkedHashSet<>(); // guarded by this
+    // When each candidate was last handed out, the oldest first
+    private final LinkedHashMap<InetSocketAddress, Long> tried; // guarded by this
+
+    /**
+     * @param capacity   How many orphaned candidates and recent attempts are remembered.
+     * @param retryNanos How long a candidate that was handed out is skipped.
+     */
+    CandidateCache(int capacity, long retryNanos) {
+        this.capacity = Math.max(1, capacity);
+        this.retryNanos = retryNanos;
+        this.tried = new LinkedHashMap<InetSocketAddress, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Long> eldest) {
+                return size() > CandidateCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Records the other neighbors a neighbor announced, replacing what it announced before.
+     *
+     * @param neighbor     The neighbor's listener address.
+     * @param itsNeighbors The listener addresses of its other neighbors.
+     */
+    synchronized void announced(InetSocketAddress neighbor, List<InetSocketAddress> itsNeighbors) {
+        byNeighbor.put(neighbor, new ArrayList<>(itsNeighbors));
+    }
+
+    /**
+     * Makes the neighbors a lost neighbor announced the first candidates.
+     *
+     * @param neighbor The lost neighbor's listener address.
+     */
+    synchronized void neighborLost(InetSocketAddress neighbor) {
+        List<InetSocketAddress> itsNeighbors = byNeighbor.remove(neighbor);
+        orphaned.remove(neighbor);
+        if (itsNeighbors == null) {
+            return;
+        }
+        for (InetSocketAddress candidate : itsNeighbors) {
+            orphaned.remove(candidate);
+            orphaned.add(candidate);
+        }
+        for (Iterator<InetSocketAddress> oldest = orphaned.iterator(); orphaned.size() > capacity; ) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Hands out the neighbors of lost neighbors, the most recently orphaned first. Linking to
+     * them mends the overlay where the lost neighbor split it.
+     *
+     * @param count   How many candidates are wanted at most.
+     * @param exclude The listener addresses of the current neighbors and of the peers being
+     *                connected to already.
+     * @return The candidates, empty if there are none left to try.
+     */
+    synchronized List<InetSocketAddress> takeOrphaned(int count, Set<InetSocketAddress> exclude) {
+        List<InetSocketAddress> newestFirst = new ArrayList<>(orphaned);
+        Collections.reverse(newestFirst);
+        List<InetSocketAddress> picked = pick(newestFirst, count, exclude);
+        orphaned.removeAll(picked);
+        return picked;
+    }
+
+    /**
+     * Hands out the neighbors of the current neighbors in random order. Linking to one of them
+     * only closes a triangle, so they are the last resort.
+     *
+     * @see #takeOrphaned
+     */
+    synchronized List<InetSocketAddress> takeTwoHops(int count, Set<InetSocketAddress> exclude) {
+        List<InetSocketAddress> twoHops = new ArrayList<>();
+        for (List<InetSocketAddress> itsNeighbors : byNeighbor.values()) {
+            twoHops.addAll(itsNeighbors);
+        }
+        Collections.shuffle(twoHops);
+        return pick(twoHops, count, exclude);
+    }
+
+    /**
+     * @return Up to <code>count</code> distinct candidates that are not excluded or tried
+     * recently, now marked as tried.
+     */
+    private List<InetSocketAddress> pick(List<InetSocketAddress> from, int count, Set<InetSocketAddress> exclude) {
+        long now = System.nanoTime();
+        List<InetSocketAddress> picked = new ArrayList<>(count);
+        for (InetSocketAddress candidate : from) {
+            if (picked.size() >= count) {
+                break;
+            }
+            Long triedNanos = tried.get(candidate);
+            if (exclude.contains(candidate) || picked.contains(candidate)
+                    || (triedNanos != null && now - triedNanos < retryNanos)) {
+                continue;
+            }
+            picked.add(candidate);
+        }
+        for (InetSocketAddress candidate : picked) {
+            tried.remove(candidate);
+            tried.put(candidate, now);
+        }
+        return picked;
+    }
+
+    /**
+     * @return How many distinct candidates are known, including ones tried recently.
+     */
+    synchronized int size() {
+        Set<InetSocketAddress> all = new LinkedHashSet<>(orphaned);
+        for (List<InetSocketAddress> itsNeighbors : byNeighbor.values()) {
+            all.addAll(itsNeighbors);
+        }
+        return all.size();
+    }
+}
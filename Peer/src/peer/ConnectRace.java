@@ -0,0 +1,85 @@
+package peer;
+
+import common.Metrics;
+
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Connection attempts to several candidate peers that run in parallel, of which only the first
+ * ones to accept are kept. Once enough candidates accepted, the sockets of the attempts still
+ * connecting or waiting for an answer are closed, so a slow or dead candidate costs nothing.
+ * <p>
+ * An attempt that is redirected stays in the race: the connection to the redirect target is
+ * registered before the redirected one finishes.
+ */
+class ConnectRace {
+    private final int wanted;
+    private final Metrics.Counter cancelled;
+    private final Set<Socket> pending = new HashSet<>(); // guarded by this
+    private int accepted = 0; // guarded by this
+
+    /**
+     * @param wanted    How many candidates to keep as neighbors.
+     * @param cancelled Counts the attempts that were cancelled or turned away after accepting.
+     */
+    ConnectRace(int wanted, Metrics.Counter cancelled) {
+        this.wanted = wanted;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return true once enough candidates accepted or no attempt is left, including when none
+     * was made at all.
+     */
+    synchronized boolean isDecided() {
+        return accepted >= wanted || pending.isEmpty();
+    }
+
+    /**
+     * Registers an attempt before its socket connects.
+     *
+     * @return false if the race is already decided and the attempt should not be made.
+     */
+    synchronized boolean register(Socket socket) {
+        if (accepted >= wanted) {
+            return false;
+        }
+        pending.add(socket);
+        return true;
+    }
+
+    /**
+     * Called when a candidate accepted the connection.
+     *
+     * @return true if the connection is kept, false if enough candidates accepted already and it
+     * has to be disconnected.
+     */
+    synchronized boolean claim(Socket socket) {
+        pending.remove(socket);
+        if (accepted >= wanted) {
+            cancelled.increment();
+            return false;
+        }
+        accepted++;
+        if (accepted == wanted) {
+            // Closing the sockets makes the blocked connects and reads of the other attempts fail
+            for (Socket other : pending) {
+                Peer.closeQuietly(other);
+            }
+            cancelled.add(pending.size());
+            pending.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Called when an attempt ended, whether it was kept, failed or was redirected.
+     *
+     * @return true if this was the last attempt and no candidate accepted.
+     */
+    synchronized boolean finished(Socket socket) {
+        return pending.remove(socket) && pending.isEmpty() && accepted == 0;
+    }
+}
@@ -0,0 +1,29 @@
+package peer;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A peer as known to the structured overlay: its node ID and where it accepts peer connections.
+ */
+final class Contact {
+    private final long id;
+    private final InetSocketAddress address;
+
+    Contact(long id, InetSocketAddress address) {
+        this.id = id;
+        this.address = address;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return RoutingTable.formatId(id) + "@" + address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+}
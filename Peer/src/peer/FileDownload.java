@@ -0,0 +1,464 @@
+package peer;
+
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads one file from the peers that share it (see {@link FileShare}).
+ * <p>
+ * All peers are asked for the file's manifest; those with the same content become sources. The
+ * file is received into "name.part", created at its full size up front, and moved to its name
+ * once every chunk is there. Each source serves chunks over a few connections of its own, which
+ * take the next missing chunk whenever they are done with one, so fast sources end up sending
+ * more. Chunks are read into a direct buffer per connection and written to their place in the
+ * file, never passing through the Java heap, and are checked against the manifest; a corrupt
+ * chunk is fetched again, and a source that sends several is dropped. (FileChannel.transferFrom
+ * from a socket copies through a small temporary buffer in the JDK and was markedly slower.)
+ * <p>
+ * An interrupted download resumes: the chunks of an existing "name.part" of the right size that
+ * match their checksums are kept, and only the others are fetched.
+ */
+class FileDownload {
+    // How many corrupt chunks a source may send before it is dropped
+    private static final int MAX_CORRUPT_CHUNKS = 3;
+    // Size of the direct buffer each connection receives chunks through
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+    // Closes connections that stopped making progress, since blocking channel reads ignore socket timeouts
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The outcome of a download.
+     */
+    static final class Result {
+        final Path path;
+        final long size;
+        final int sources;
+        final int chunksFetched;
+        final int chunksResumed;
+        final long nanos;
+
+        Result(Path path, long size, int sources, int chunksFetched, int chunksResumed, long nanos) {
+            this.path = path;
+            this.size = size;
+            this.sources = sources;
+            this.chunksFetched = chunksFetched;
+            this.chunksResumed = chunksResumed;
+            this.nanos = nanos;
+        }
+
+        double megabytesPerSecond() {
+            return nanos == 0 ? 0 : size / (double) (1 << 20) / (nanos / 1e9);
+        }
+    }
+
+    private final Path directory;
+    private final String name;
+    private final Executor executor;
+    private final int connectionsPerSource;
+    private final int connectTimeoutMillis;
+    private final long stallNanos;
+    private final Metrics.Counter bytesReceived;
+    private final Metrics.Counter chunksCorrupt;
+    private final Metrics.Counter chunksResumed;
+
+    // The download in progress
+    private FileManifest manifest;
+    private FileChannel file;
+    private final LinkedBlockingQueue<Integer> missing = new LinkedBlockingQueue<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicInteger fetched = new AtomicInteger();
+    private final Set<Connection> active = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param directory            Where the file is stored; usually the shared directory, so the
+     *                             file is shared on once it is complete.
+     * @param name                 The file's name.
+     * @param executor             Runs the connections to the sources.
+     * @param connectionsPerSource How many chunks are requested from each source at once.
+     * @param connectTimeoutMillis Bounds connecting to a source and its answer to the first request.
+     * @param stallMillis          How long a connection may receive nothing before it is given up.
+     * @param metrics              Where the received bytes, corrupt and resumed chunks are counted.
+     */
+    FileDownload(Path directory, String name, Executor executor, int connectionsPerSource, int connectTimeoutMillis,
+                 long stallMillis, Metrics metrics) {
+        this.directory = directory;
+        this.name = name;
+        this.executor = executor;
+        this.connectionsPerSource = Math.max(1, connectionsPerSource);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, stallMillis));
+        this.bytesReceived = metrics.counter("transfer.bytes_received");
+        this.chunksCorrupt = metrics.counter("transfer.chunks_corrupt");
+        this.chunksResumed = metrics.counter("transfer.chunks_resumed");
+    }
+
+    /**
+     * Downloads the file, blocking until it is complete.
+     *
+     * @param candidates The listener addresses of the peers that may share it.
+     * @throws IOException If no peer shares it, or all sources failed before it was complete. The
+     *                     chunks received so far are kept for the next attempt.
+     */
+    Result run(List<InetSocketAddress> candidates) throws IOException {
+        if (!FileShare.isValidName(name)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        Path target = directory.resolve(name);
+        if (Files.exists(target)) {
+            throw new IOException(name + " is already in " + directory);
+        }
+        long start = System.nanoTime();
+        Path partial = directory.resolve(name + FileShare.PARTIAL_SUFFIX);
+        List<Connection> sources = new ArrayList<>();
+        int resumed;
+        ScheduledFuture<?> stallCheck = watchdog.scheduleAtFixedRate(this::closeStalled,
+                stallNanos / 2, stallNanos / 2, TimeUnit.NANOSECONDS);
+        try {
+            sources.addAll(findSources(candidates));
+            if (sources.isEmpty()) {
+                throw new IOException("None of the " + candidates.size() + " peers shares " + name);
+            }
+            Files.createDirectories(directory);
+            try (RandomAccessFile output = new RandomAccessFile(partial.toFile(), "rw")) {
+                file = output.getChannel();
+                resumed = queueMissingChunks(output);
+                fetchAll(sources);
+                if (remaining.get() > 0) {
+                    throw new IOException("All sources failed, " + remaining.get() + " of " + manifest.chunkCount()
+                            + " chunks are missing; download again to resume");
+                }
+                file.force(false);
+            }
+        } finally {
+            stallCheck.cancel(false);
+            for (Connection connection : sources) {
+                Peer.closeQuietly(connection.channel);
+            }
+        }
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        return new Result(target, manifest.getSize(), sources.size(), fetched.get(), resumed, System.nanoTime() - start);
+    }
+
+    /**
+     * Asks all candidates for the manifest at once. The first peer that shares the file sets the
+     * content; peers whose manifest differs (another version of the file) are not used.
+     *
+     * @return The connections to the sources, ready for chunk requests.
+     */
+    private List<Connection> findSources(List<InetSocketAddress> candidates) {
+        List<CompletableFuture<Connection>> queries = new ArrayList<>(candidates.size());
+        for (InetSocketAddress candidate : candidates) {
+            queries.add(CompletableFuture.supplyAsync(() -> query(candidate), executor));
+        }
+        List<Connection> sources = new ArrayList<>();
+        for (CompletableFuture<Connection> query : queries) {
+            Connection connection;
+            try {
+                connection = query.join();
+            } catch (CompletionException e) {
+                continue; // Unreachable, or does not share the file
+            }
+            if (manifest == null) {
+                manifest = connection.manifest;
+            }
+            if (manifest.sameContent(connection.manifest)) {
+                sources.add(connection);
+            } else {
+                Peer.closeQuietly(connection.channel);
+            }
+        }
+        return sources;
+    }
+
+    private Connection query(InetSocketAddress address) {
+        Connection connection = null;
+        try {
+            connection = Connection.open(address, connectTimeoutMillis);
+            active.add(connection);
+            connection.busySince(System.nanoTime());
+            ByteBuffer request = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 2 + name.length() * 3);
+            int start = Frames.begin(request, Opcode.FILE_QUERY);
+            Frames.putString(request, name);
+            Frames.end(request, start);
+            request.flip();
+            FileShare.writeFully(connection.channel, request);
+            connection.manifest = FileManifest.read(connection.readReply(Opcode.FILE_INFO));
+            connection.busySince(0);
+            if (connection.manifest == null) {
+                throw new IOException(address + " does not share " + name);
+            }
+            return connection;
+        } catch (IOException e) {
+            if (connection != null) {
+                active.remove(connection);
+                Peer.closeQuietly(connection.channel);
+            }
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Sizes the partial file and queues the chunks it does not have yet.
+     *
+     * @return How many chunks were already there.
+     */
+    private int queueMissingChunks(RandomAccessFile output) throws IOException {
+        boolean resuming = output.length() == manifest.getSize();
+        if (!resuming) {
+            output.setLength(manifest.getSize());
+        }
+        int resumed = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(FileManifest.READ_BUFFER_SIZE);
+        for (int index = 0; index < manifest.chunkCount(); index++) {
+            if (resuming && manifest.verify(file, index, buffer)) {
+                resumed++;
+            } else {
+                missing.add(index);
+            }
+        }
+        remaining.set(missing.size());
+        chunksResumed.add(resumed);
+        return resumed;
+    }
+
+    /**
+     * Runs <code>connectionsPerSource</code> workers per source until every chunk is there or
+     * all workers failed.
+     */
+    private void fetchAll(List<Connection> sources) {
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (Connection source : sources) {
+            AtomicInteger corrupt = new AtomicInteger(); // shared by the source's connections
+            for (int i = 0; i < connectionsPerSource; i++) {
+                Connection first = i == 0 ? source : null;
+                workers.add(CompletableFuture.runAsync(() -> work(source.address, first, corrupt), executor));
+            }
+        }
+        for (CompletableFuture<Void> worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Fetches chunks on one connection to a source until none are left or the source fails.
+     *
+     * @param connection The connection the manifest was read on, or null to open another one.
+     * @param corrupt    How many corrupt chunks the source sent.
+     */
+    private void work(InetSocketAddress address, Connection connection, AtomicInteger corrupt) {
+        Integer index = null;
+        try {
+            if (connection == null) {
+                connection = Connection.open(address, connectTimeoutMillis);
+            }
+            active.add(connection);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+            while (remaining.get() > 0 && corrupt.get() < MAX_CORRUPT_CHUNKS) {
+                // Chunks a failing connection gives back show up here, so keep waiting until all are done
+                index = missing.poll(100, TimeUnit.MILLISECONDS);
+                if (index == null) {
+                    continue;
+                }
+                if (fetchChunk(connection, index, buffer)) {
+                    remaining.decrementAndGet();
+                    fetched.incrementAndGet();
+                } else {
+                    chunksCorrupt.increment();
+                    corrupt.incrementAndGet();
+                    missing.add(index);
+                }
+                index = null;
+            }
+        } catch (IOException e) {
+            // The source is gone; another source fetches its chunk
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (index != null) {
+                missing.add(index);
+            }
+            if (connection != null) {
+                active.remove(connection);
+                Peer.closeQuietly(connection.channel);
+            }
+        }
+    }
+
+    /**
+     * Requests a chunk and receives it into its place in the file, computing its checksum from the
+     * receive buffer on the way so it is not read back.
+     *
+     * @param buffer The connection's direct receive buffer.
+     * @return false if it did not match its checksum.
+     */
+    private boolean fetchChunk(Connection connection, int index, ByteBuffer buffer) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 2 + name.length() * 3 + 4);
+        int start = Frames.begin(request, Opcode.CHUNK_REQUEST);
+        Frames.putString(request, name);
+        request.putInt(index);
+        Frames.end(request, start);
+        request.flip();
+        connection.busySince(System.nanoTime());
+        FileShare.writeFully(connection.channel, request);
+
+        ByteBuffer header = connection.readHeader();
+        int bodyLength = header.getInt();
+        Opcode opcode = Opcode.fromCode(header.get());
+        if (opcode != Opcode.CHUNK) {
+            throw new IOException("Source " + connection.address + " did not send chunk " + index + ": "
+                    + connection.readError(opcode, bodyLength));
+        }
+        ByteBuffer chunkIndex = connection.readFully(ByteBuffer.allocate(4));
+        int length = manifest.chunkLength(index);
+        if (chunkIndex.getInt() != index || bodyLength != 1 + 4 + length) {
+            throw new IOException("Source " + connection.address + " sent the wrong chunk");
+        }
+        CRC32 crc = new CRC32();
+        long position = manifest.chunkPosition(index);
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            if (connection.channel.read(buffer) < 0) {
+                throw new EOFException("Source " + connection.address + " closed the connection in a chunk");
+            }
+            connection.busySince(System.nanoTime());
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += file.write(buffer, position);
+            }
+        }
+        connection.busySince(0);
+        bytesReceived.add(length);
+        return (int) crc.getValue() == manifest.checksum(index);
+    }
+
+    private void closeStalled() {
+        long now = System.nanoTime();
+        for (Connection connection : active) {
+            long since = connection.busySince;
+            if (since != 0 && now - since > stallNanos) {
+                Peer.closeQuietly(connection.channel); // The blocked read fails and the chunk is given back
+            }
+        }
+    }
+
+    /**
+     * A connection to a source, in blocking mode.
+     */
+    private static final class Connection {
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        FileManifest manifest; // as the source announced it
+        volatile long busySince; // when the last request was sent or bytes arrived, 0 while idle
+
+        private Connection(InetSocketAddress address, SocketChannel channel) {
+            this.address = address;
+            this.channel = channel;
+        }
+
+        /**
+         * Connects and negotiates the framed protocol.
+         */
+        static Connection open(InetSocketAddress address, int timeoutMillis) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(address, timeoutMillis);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSoTimeout(timeoutMillis); // Only for the line read through the socket's stream
+                FileShare.writeFully(channel, ByteBuffer.wrap((Frames.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8)));
+                if (!Frames.PROTOCOL_LINE.equals(Frames.readLine(channel.socket().getInputStream()))) {
+                    throw new IOException("Peer " + address + " does not speak the framed protocol");
+                }
+                return new Connection(address, channel);
+            } catch (IOException e) {
+                Peer.closeQuietly(channel);
+                throw e;
+            }
+        }
+
+        void busySince(long nanos) {
+            busySince = nanos;
+        }
+
+        ByteBuffer readHeader() throws IOException {
+            return readFully(ByteBuffer.allocate(Frames.HEADER_LENGTH + 1));
+        }
+
+        /**
+         * Reads a whole reply frame.
+         *
+         * @return Its payload.
+         * @throws IOException If the reply is not of the expected type.
+         */
+        ByteBuffer readReply(Opcode expected) throws IOException {
+            ByteBuffer header = readHeader();
+            int bodyLength = header.getInt();
+            Opcode opcode = Opcode.fromCode(header.get());
+            if (opcode != expected) {
+                throw new IOException("Unexpected answer from " + address + ": " + readError(opcode, bodyLength));
+            }
+            if (bodyLength < 1 || bodyLength > Frames.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length from " + address + ": " + bodyLength);
+            }
+            return readFully(ByteBuffer.allocate(bodyLength - 1));
+        }
+
+        /**
+         * Reads the rest of a frame that was not the expected answer. Other frames are left unread, as the connection is given up anyway.
+         *
+         * @return The reason of an ERROR frame, otherwise the opcode.
+         */
+        String readError(Opcode opcode, int bodyLength) throws IOException {
+            if (bodyLength < 1 || bodyLength > Frames.MAX_FRAME_LENGTH) {
+                return "invalid frame length " + bodyLength;
+            }
+            if (opcode != Opcode.ERROR || bodyLength > Frames.MAX_MESSAGE_LENGTH) {
+                return String.valueOf(opcode);
+            }
+            return Frames.getString(readFully(ByteBuffer.allocate(bodyLength - 1)));
+        }
+
+        ByteBuffer readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Source " + address + " closed the connection");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package peer;
+
+import common.Frames;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The size of a shared file and a CRC-32 checksum of every fixed size chunk of it, so a
+ * downloader can verify each chunk on its own, no matter which peer sent it, and can tell which
+ * chunks of an interrupted download are already complete.
+ */
+final class FileManifest {
+    // The FILE_INFO frame (opcode, size, chunk size, count, checksums) has to fit into one frame
+    private static final int MAX_CHUNKS = (Frames.MAX_FRAME_LENGTH - 1 - 8 - 4 - 4) / 4;
+    // Size of the buffers files are read through for their checksums
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final long size;
+    private final int chunkSize;
+    private final int[] checksums;
+    private final long lastModified; // of the file the checksums were computed from, 0 if received
+
+    FileManifest(long size, int chunkSize, int[] checksums, long lastModified) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.checksums = checksums;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Computes the checksums of a file, reading it through one buffer.
+     */
+    static FileManifest compute(FileChannel file, int chunkSize, long lastModified) throws IOException {
+        long size = file.size();
+        long count = chunkCount(size, chunkSize);
+        if (count > MAX_CHUNKS) {
+            throw new IOException("File too large for chunks of " + chunkSize + " bytes");
+        }
+        int[] checksums = new int[(int) count];
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        for (int index = 0; index < checksums.length; index++) {
+            checksums[index] = checksum(file, index * (long) chunkSize, chunkLength(size, chunkSize, index), buffer);
+        }
+        return new FileManifest(size, chunkSize, checksums, lastModified);
+    }
+
+    /**
+     * Reads <code>length</code> bytes of the file through a buffer and computes their CRC-32. Unlike
+     * a memory mapping, the buffer is reused and holds no reference to the file once it is closed.
+     *
+     * @param buffer A heap buffer to read through, its contents are overwritten.
+     */
+    static int checksum(FileChannel file, long position, int length, ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ends within a chunk");
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return (int) crc.getValue();
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    int chunkCount() {
+        return checksums.length;
+    }
+
+    int checksum(int index) {
+        return checksums[index];
+    }
+
+    long chunkPosition(int index) {
+        return index * (long) chunkSize;
+    }
+
+    int chunkLength(int index) {
+        return chunkLength(size, chunkSize, index);
+    }
+
+    /**
+     * @param buffer A heap buffer to read the chunk through, see {@link #checksum(FileChannel, long, int, ByteBuffer)}.
+     * @return true if the chunk at its place in the file matches its checksum.
+     */
+    boolean verify(FileChannel file, int index, ByteBuffer buffer) throws IOException {
+        return checksum(file, chunkPosition(index), chunkLength(index), buffer) == checksums[index];
+    }
+
+    /**
+     * Writes the FILE_INFO payload: long size, int chunk size, int chunk count, the checksums.
+     */
+    void write(ByteBuffer payload) {
+        payload.putLong(size);
+        payload.putInt(chunkSize);
+        payload.putInt(checksums.length);
+        for (int checksum : checksums) {
+            payload.putInt(checksum);
+        }
+    }
+
+    int encodedLength() {
+        return 8 + 4 + 4 + checksums.length * 4;
+    }
+
+    /**
+     * Reads a FILE_INFO payload written by {@link #write(ByteBuffer)}.
+     *
+     * @return The manifest, or null if the peer does not share the file (size -1).
+     * @throws IOException If the payload is inconsistent.
+     */
+    static FileManifest read(ByteBuffer payload) throws IOException {
+        long size = payload.getLong();
+        if (size < 0) {
+            return null;
+        }
+        int chunkSize = payload.getInt();
+        int count = payload.getInt();
+        if (chunkSize <= 0 || count < 0 || count > MAX_CHUNKS || count != chunkCount(size, chunkSize)
+                || payload.remaining() != count * 4) {
+            throw new IOException("Invalid file manifest");
+        }
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = payload.getInt();
+        }
+        return new FileManifest(size, chunkSize, checksums, 0);
+    }
+
+    /**
+     * @return true if both describe the same content in the same chunks.
+     */
+    boolean sameContent(FileManifest other) {
+        return size == other.size && chunkSize == other.chunkSize && Arrays.equals(checksums, other.checksums);
+    }
+
+    private static long chunkCount(long size, int chunkSize) {
+        return size / chunkSize + (size % chunkSize == 0 ? 0 : 1);
+    }
+
+    private static int chunkLength(long size, int chunkSize, int index) {
+        return (int) Math.min(chunkSize, size - index * (long) chunkSize);
+    }
+}
@@ -0,0 +1,238 @@
+package peer;
+
+import common.ConnectionExecutors;
+import common.FrameReader;
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves the files of one directory to downloading peers, in chunks that the downloader checks
+ * against the checksums of the file's {@link FileManifest}.
+ * <p>
+ * Chunks go from the file to the socket with {@link FileChannel#transferTo}, so the kernel copies
+ * them straight from the page cache and the data never passes through the Java heap. Only the
+ * frame header in front of each chunk is written from a buffer. Manifests are computed when a
+ * file is first asked for and kept until the file changes.
+ * <p>
+ * Each downloader's connection holds a thread of its own for the whole transfer, apart from the
+ * threads of the neighbor connections. Connections beyond the maximum are refused with an ERROR
+ * frame, and the downloader fetches their chunks from its other sources.
+ */
+class FileShare {
+    // Downloads in progress, never served
+    static final String PARTIAL_SUFFIX = ".part";
+
+    private final Path directory;
+    private final int chunkSize;
+    private final ConcurrentHashMap<String, FileManifest> manifests = new ConcurrentHashMap<>();
+    private final ExecutorService servers;
+    private final Metrics.Counter bytesServed;
+    private final Metrics.Counter chunksServed;
+    private final Metrics.Counter connectionsRefused;
+
+    /**
+     * @param directory The directory whose files are shared; subdirectories are not.
+     * @param chunkSize The chunk size of the manifests computed here.
+     * @param maxServed How many downloaders' connections are served at once.
+     * @param metrics   Where the served chunks and bytes and the refused connections are counted.
+     */
+    FileShare(Path directory, int chunkSize, int maxServed, Metrics metrics) {
+        this.directory = directory;
+        this.chunkSize = chunkSize;
+        this.servers = ConnectionExecutors.newBoundedPool(Math.max(1, maxServed), false, "peer-transfer-server");
+        this.bytesServed = metrics.counter("transfer.bytes_served");
+        this.chunksServed = metrics.counter("transfer.chunks_served");
+        this.connectionsRefused = metrics.counter("transfer.connections_refused");
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return true if the name can only refer to a file directly in the shared directory.
+     */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0
+                && !name.endsWith(PARTIAL_SUFFIX);
+    }
+
+    /**
+     * @return true if the file is shared here.
+     */
+    boolean holds(String name) {
+        return isValidName(name) && Files.isRegularFile(directory.resolve(name));
+    }
+
+    /**
+     * Serves a downloader's connection on a thread of this share, or refuses it with an ERROR frame
+     * if the most connections are served already. Either way the connection is closed when done.
+     *
+     * @param request The first request, already read.
+     * @param frames  Reads the following requests.
+     * @param socket  The connection, backed by a channel.
+     */
+    void accept(Opcode request, FrameReader frames, Socket socket) {
+        try {
+            servers.execute(() -> {
+                try {
+                    serve(request, frames, socket.getChannel());
+                } catch (IOException e) {
+                    // The downloader gave up or fetches the rest elsewhere
+                } finally {
+                    Peer.closeQuietly(socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            connectionsRefused.increment();
+            try {
+                sendError(socket.getChannel(), "Serving too many downloads, try again later");
+            } catch (IOException ignored) {
+                // Closed anyway
+            }
+            Peer.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Answers FILE_QUERY and CHUNK_REQUEST frames until the downloader closes the connection.
+     * The downloader waits for each answer before it asks again, so nothing it sends is left in
+     * the frame reader's buffer while a chunk is written to the channel.
+     *
+     * @param request The first request, already read.
+     * @param frames  Reads the following requests.
+     * @param channel The connection, in blocking mode.
+     */
+    void serve(Opcode request, FrameReader frames, SocketChannel channel) throws IOException {
+        String openName = null;
+        FileChannel openFile = null;
+        try {
+            for (; request != null; request = frames.next()) {
+                ByteBuffer payload = frames.payload();
+                if (request == Opcode.FILE_QUERY) {
+                    sendInfo(channel, manifest(Frames.getString(payload)));
+                } else if (request == Opcode.CHUNK_REQUEST) {
+                    String name = Frames.getString(payload);
+                    int index = payload.getInt();
+                    if (!name.equals(openName)) {
+                        Peer.closeQuietly(openFile);
+                        openName = name;
+                        openFile = open(name);
+                    }
+                    FileManifest manifest = openFile == null ? null : manifest(name);
+                    if (manifest == null || index < 0 || index >= manifest.chunkCount()) {
+                        sendError(channel, "Chunk " + index + " of " + name + " is not shared");
+                    } else {
+                        sendChunk(channel, openFile, manifest, index);
+                    }
+                } else {
+                    return;
+                }
+            }
+        } finally {
+            Peer.closeQuietly(openFile);
+        }
+    }
+
+    /**
+     * @return The manifest of a shared file, or null if there is no such file.
+     */
+    FileManifest manifest(String name) throws IOException {
+        if (!isValidName(name)) {
+            return null;
+        }
+        Path path = directory.resolve(name);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        FileManifest manifest = manifests.get(name);
+        if (manifest != null && manifest.getLastModified() == lastModified && manifest.getSize() == Files.size(path)) {
+            return manifest;
+        }
+        // Two downloaders asking at once may both compute it; either result is the same
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            manifest = FileManifest.compute(file, chunkSize, lastModified);
+        }
+        manifests.put(name, manifest);
+        return manifest;
+    }
+
+    private FileChannel open(String name) throws IOException {
+        if (!isValidName(name)) {
+            return null;
+        }
+        try {
+            return FileChannel.open(directory.resolve(name), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void sendInfo(SocketChannel channel, FileManifest manifest) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + (manifest == null ? 8 : manifest.encodedLength()));
+        int start = Frames.begin(frame, Opcode.FILE_INFO);
+        if (manifest == null) {
+            frame.putLong(-1);
+        } else {
+            manifest.write(frame);
+        }
+        Frames.end(frame, start);
+        frame.flip();
+        writeFully(channel, frame);
+    }
+
+    private void sendError(SocketChannel channel, String reason) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 2 + reason.length() * 3);
+        int start = Frames.begin(frame, Opcode.ERROR);
+        Frames.putString(frame, reason);
+        Frames.end(frame, start);
+        frame.flip();
+        writeFully(channel, frame);
+    }
+
+    /**
+     * Writes a CHUNK frame: the header from a buffer, then the chunk straight from the file.
+     */
+    private void sendChunk(SocketChannel channel, FileChannel file, FileManifest manifest, int index) throws IOException {
+        int length = manifest.chunkLength(index);
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 4);
+        int start = Frames.begin(header, Opcode.CHUNK);
+        header.putInt(index);
+        header.putInt(start, 1 + 4 + length); // The frame goes on past the header
+        header.flip();
+        writeFully(channel, header);
+
+        long position = manifest.chunkPosition(index);
+        long end = position + length;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent <= 0 && position >= file.size()) {
+                throw new IOException("Shared file shrank while it was sent");
+            }
+            position += sent;
+        }
+        chunksServed.increment();
+        bytesServed.add(length);
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package peer;
+
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads messages to every peer in the network over the neighbor links.
+ * <p>
+ * Each peer delivers a message it has not seen before and forwards it to its other neighbors with
+ * one hop less, up to <code>peer.gossip.ttl</code> hops (default 32). Peers remember the IDs of
+ * the last <code>peer.gossip.seenCapacity</code> messages they saw (see {@link SeenMessages}) and
+ * drop further copies, so a message crosses every link at most twice however the overlay loops.
+ * Old text neighbors do not speak GOSSIP and are skipped.
+ */
+class Gossip {
+    // Hops a message travels at most
+    private static final int ttl = Math.max(1, Math.min(255, Integer.getInteger("peer.gossip.ttl", 32)));
+
+    private final Map<InetSocketAddress, NeighborLink> neighbors;
+    private final PrintStream console;
+    private final SeenMessages seen = new SeenMessages(Integer.getInteger("peer.gossip.seenCapacity", 4096));
+    private final Metrics.Counter delivered;
+    private final Metrics.Counter duplicates;
+    private final Metrics.Counter sent;
+
+    /**
+     * @param neighbors The peer's neighbor links by remote address.
+     * @param metrics   Where delivered, duplicate and sent messages are counted.
+     * @param console   Where delivered messages are printed.
+     */
+    Gossip(Map<InetSocketAddress, NeighborLink> neighbors, Metrics metrics, PrintStream console) {
+        this.neighbors = neighbors;
+        this.console = console;
+        this.delivered = metrics.counter("gossip.delivered");
+        this.duplicates = metrics.counter("gossip.duplicates");
+        this.sent = metrics.counter("gossip.sent");
+    }
+
+    /**
+     * Starts spreading a message of this peer.
+     *
+     * @return How many neighbors the message was sent to.
+     * @throws IllegalArgumentException If the message does not fit in a frame.
+     */
+    int send(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 1 + 2 + text.length;
+        if (length > Frames.MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Message too long: " + text.length + " bytes, at most "
+                    + (Frames.MAX_MESSAGE_LENGTH - (length - text.length)));
+        }
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (!seen.add(id)); // Also keeps neighbors from sending it back
+
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + length);
+        int start = Frames.begin(frame, Opcode.GOSSIP);
+        frame.putLong(id);
+        frame.put((byte) ttl);
+        Frames.putString(frame, message);
+        Frames.end(frame, start);
+        frame.flip();
+        return forward(frame, null);
+    }
+
+    /**
+     * Delivers a gossip message from a neighbor and passes it on to the other neighbors with one
+     * hop less, unless it was seen before or has no hops left.
+     *
+     * @param payload       The GOSSIP frame's payload, only valid during this call.
+     * @param remoteAddress The neighbor it came from.
+     */
+    void handle(ByteBuffer payload, InetSocketAddress remoteAddress) {
+        int start = payload.position();
+        long id = payload.getLong();
+        int hopsLeft = Byte.toUnsignedInt(payload.get());
+        if (!seen.add(id)) {
+            duplicates.increment();
+            return;
+        }
+        delivered.increment();
+        console.println("Gossip via " + remoteAddress + ": " + Frames.getString(payload));
+
+        if (hopsLeft > 1) {
+            payload.position(start);
+            ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + payload.remaining());
+            int frameStart = Frames.begin(frame, Opcode.GOSSIP);
+            frame.put(payload);
+            frame.put(frameStart + Frames.HEADER_LENGTH + 1 + 8, (byte) (hopsLeft - 1));
+            Frames.end(frame, frameStart);
+            frame.flip();
+            forward(frame, remoteAddress);
+        }
+    }
+
+    /**
+     * @return How many gossip messages of other peers reached this peer, without duplicates.
+     */
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return How many gossip frames this peer sent, its own messages and forwarded ones.
+     */
+    long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Sends an encoded GOSSIP frame to every framed neighbor but the one it came from.
+     *
+     * @param except The neighbor to skip, null for none.
+     * @return How many neighbors it was sent to.
+     */
+    private int forward(ByteBuffer frame, InetSocketAddress except) {
+        int count = 0;
+        for (Map.Entry<InetSocketAddress, NeighborLink> neighbor : neighbors.entrySet()) {
+            NeighborLink link = neighbor.getValue();
+            if (!link.isFramed() || neighbor.getKey().equals(except)) {
+                continue;
+            }
+            try {
+                link.sendFrame(frame.duplicate());
+                count++;
+            } catch (IOException e) {
+                // The neighbor's reader notices the lost connection
+            }
+        }
+        sent.add(count);
+        return count;
+    }
+}
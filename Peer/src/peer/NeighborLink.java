@@ -0,0 +1,388 @@
+package peer;
+
+import common.ConnectionExecutors;
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection to one neighbor, in either the framed or the old text protocol.
+ * <p>
+ * Any thread may send. Messages are encoded by the sender and put on an outbound queue, which the
+ * link's own writer task drains, including what other threads add meanwhile, flushing once per
+ * batch instead of once per message. Senders return right away and never write to the socket
+ * themselves, so a neighbor that stops reading cannot block a thread serving another neighbor.
+ * When a slow neighbor lets <code>peer.outboundQueue</code> messages (default 1024) pile up,
+ * senders wait for room, which slows down whatever feeds the queue; a neighbor that makes no room
+ * for <code>peer.outboundStallMs</code> (default 5000), or takes longer than that to take one
+ * batch, is disconnected.
+ */
+class NeighborLink {
+    // Messages queued for one neighbor before senders have to wait
+    private static final int queueLimit = Math.max(1, Integer.getInteger("peer.outboundQueue", 1024));
+    // How long a sender waits for room before the neighbor is given up on
+    private static final long stallNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("peer.outboundStallMs", 5000));
+    // Queued after the last message to close the connection once everything before it is written
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+    // Runs the writer tasks, each on a thread of its own: virtual threads, or a cached pool on older JVMs
+    private static final ExecutorService writers = createWriters();
+    // Closes links whose writer is stuck in a write, even if nothing else is sent to them
+    private static final ScheduledThreadPoolExecutor writeDeadlines = createWriteDeadlines();
+
+    private final Socket socket;
+    private final OutputStream output; // only written by the writer task
+    private final boolean framed;
+    private final InetSocketAddress listenerAddress;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean closed = false;
+    private final Metrics.Histogram batchSizes;
+    private final Metrics.Counter stalls;
+    // The neighbor's number of neighbors as it last announced, -1 until it does (old peers never do)
+    private volatile int announcedDegree = -1;
+    private volatile long announcedNanos;
+
+    /**
+     * @param socket          The connection to the neighbor.
+     * @param output          The (buffered) output stream of the socket.
+     * @param framed          Whether the framed protocol was negotiated.
+     * @param listenerAddress Where the neighbor accepts peer connections, used for redirects.
+     * @param metrics         Where the batch sizes and the senders that had to wait are counted.
+     */
+    NeighborLink(Socket socket, OutputStream output, boolean framed, InetSocketAddress listenerAddress, Metrics metrics) {
+        this.socket = socket;
+        this.output = output;
+        this.framed = framed;
+        this.listenerAddress = listenerAddress;
+        this.batchSizes = metrics.histogram("outbound.batch_size");
+        this.stalls = metrics.counter("outbound.backpressure");
+    }
+
+    boolean isFramed() {
+        return framed;
+    }
+
+    InetSocketAddress getListenerAddress() {
+        return listenerAddress;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Records a {@link Opcode#DEGREE} announcement of the neighbor.
+     */
+    void degreeAnnounced(int degree) {
+        announcedNanos = System.nanoTime();
+        announcedDegree = degree;
+    }
+
+    /**
+     * @param maxAgeNanos How old an announcement may be to still be trusted.
+     * @return The neighbor's number of neighbors, or -1 if it is unknown or too old.
+     */
+    int knownDegree(long maxAgeNanos) {
+        int degree = announcedDegree;
+        if (degree < 0 || System.nanoTime() - announcedNanos > maxAgeNanos) {
+            return -1;
+        }
+        return degree;
+    }
+
+    /**
+     * Sends a line of the text protocol.
+     */
+    void sendLine(String line) throws IOException {
+        enqueue(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends a frame without payload.
+     */
+    void send(Opcode opcode) throws IOException {
+        sendFrame(finish(beginFrame(opcode, 0)));
+    }
+
+    /**
+     * Sends an encoded frame between the buffer's position and limit. Only for framed neighbors.
+     * The buffer is written later and must not be changed afterwards; to send the same frame to
+     * several neighbors, pass each a duplicate.
+     */
+    void sendFrame(ByteBuffer frame) throws IOException {
+        enqueue(frame);
+    }
+
+    /**
+     * Introduces this peer after the framed protocol was negotiated.
+     *
+     * @param peerListenerPort The port this peer accepts peer connections on.
+     * @param visited          The peers this connection was already redirected from, so the
+     *                         neighbor does not redirect it back to one of them.
+     */
+    void sendHello(int peerListenerPort, List<InetSocketAddress> visited) throws IOException {
+        ByteBuffer frame = beginFrame(Opcode.HELLO, 4 + 4 + visited.size() * (1 + 16 + 2));
+        frame.putInt(peerListenerPort);
+        frame.putInt(visited.size());
+        for (InetSocketAddress peer : visited) {
+            Frames.putAddress(frame, peer.getAddress(), peer.getPort());
+        }
+        sendFrame(finish(frame));
+    }
+
+    /**
+     * Tells the neighbor how many neighbors this peer has and which others, so it can replace
+     * this peer by one of them if this peer leaves. Old text neighbors are skipped.
+     *
+     * @param others The listener addresses of this peer's other framed neighbors.
+     */
+    void sendDegree(int degree, List<InetSocketAddress> others) throws IOException {
+        if (framed) {
+            ByteBuffer frame = beginFrame(Opcode.DEGREE, 4 + 4 + others.size() * (1 + 16 + 2));
+            frame.putInt(degree);
+            frame.putInt(others.size());
+            for (InetSocketAddress other : others) {
+                Frames.putAddress(frame, other.getAddress(), other.getPort());
+            }
+            sendFrame(finish(frame));
+        }
+    }
+
+    /**
+     * Tells the neighbor to connect to another peer instead.
+     *
+     * @param target The listener address of the peer to try.
+     */
+    void sendRedirect(InetSocketAddress target) throws IOException {
+        if (framed) {
+            ByteBuffer frame = beginFrame(Opcode.REDIRECT, 1 + 16 + 2);
+            Frames.putAddress(frame, target.getAddress(), target.getPort());
+            sendFrame(finish(frame));
+        } else {
+            sendLine("REDIRECT " + target.getAddress().getHostAddress() + " " + target.getPort());
+        }
+    }
+
+    /**
+     * Tells the neighbor that this peer is leaving.
+     */
+    void sendDisconnect() throws IOException {
+        if (framed) {
+            send(Opcode.DISCONNECT);
+        } else {
+            sendLine("disconnected!");
+        }
+    }
+
+    /**
+     * Closes the connection once the messages sent so far are written.
+     */
+    void closeWhenSent() {
+        if (closed) {
+            return;
+        }
+        outbound.offer(CLOSE);
+        startWriter();
+    }
+
+    /**
+     * Waits until the connection is closed, e.g. by {@link #closeWhenSent()} once everything
+     * before it is written, but no longer than a write may take. For the thread that closes the
+     * socket when it is done with the connection, so queued messages are not cut off.
+     */
+    void awaitClosed() {
+        long deadline = System.nanoTime() + stallNanos;
+        synchronized (this) {
+            while (!closed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connection right away, dropping queued messages.
+     */
+    void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            notifyAll(); // Senders waiting for room give up, awaitClosed() returns
+        }
+        socket.close();
+    }
+
+    private void enqueue(ByteBuffer message) throws IOException {
+        awaitRoom();
+        queued.incrementAndGet();
+        outbound.offer(message);
+        startWriter();
+    }
+
+    /**
+     * Blocks while the queue is full, so senders cannot outrun a slow neighbor.
+     *
+     * @throws IOException If the link is closed, or the neighbor made no room in time and was disconnected.
+     */
+    private void awaitRoom() throws IOException {
+        if (closed) {
+            throw new IOException("Neighbor link closed");
+        }
+        if (queued.get() < queueLimit) {
+            return;
+        }
+        stalls.increment();
+        long deadline = System.nanoTime() + stallNanos;
+        synchronized (this) {
+            while (queued.get() >= queueLimit) {
+                if (closed) {
+                    throw new IOException("Neighbor link closed");
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    close();
+                    throw new IOException("Neighbor " + listenerAddress + " stopped reading, disconnected");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to send to " + listenerAddress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the writer task unless it is already running.
+     */
+    private void startWriter() {
+        if (!outbound.isEmpty() && writing.compareAndSet(false, true)) {
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                writing.set(false);
+            }
+        }
+    }
+
+    /**
+     * The writer task: writes the queued messages batch by batch. Keeps going until the queue is
+     * empty, so a message is never left behind when the writer stops just as it arrives.
+     */
+    private void drain() {
+        do {
+            int batch = 0;
+            boolean closeRequested = false;
+            ScheduledFuture<?> deadline = writeDeadlines.schedule(this::writeTimedOut, stallNanos, TimeUnit.NANOSECONDS);
+            try {
+                ByteBuffer message;
+                while ((message = outbound.poll()) != null) {
+                    if (message == CLOSE) {
+                        closeRequested = true;
+                        break;
+                    }
+                    batch++;
+                    output.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+                }
+                output.flush();
+                if (closeRequested) {
+                    close();
+                }
+            } catch (IOException e) {
+                // The reader of the link notices the closed socket and cleans up
+                outbound.clear();
+                closeQuietly();
+            } finally {
+                deadline.cancel(false);
+                if (batch > 0) {
+                    batchSizes.record(batch);
+                    if (queued.getAndAdd(-batch) >= queueLimit) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                }
+                writing.set(false);
+            }
+            if (closed) {
+                outbound.clear();
+                return;
+            }
+        } while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+    }
+
+    private void writeTimedOut() {
+        closeQuietly(); // Makes the blocked write fail
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+    }
+
+    private static ExecutorService createWriters() {
+        ExecutorService virtualThreads = ConnectionExecutors.newVirtualThreadExecutor("neighbor-writer");
+        if (virtualThreads != null) {
+            return virtualThreads;
+        }
+        ThreadFactory names = ConnectionExecutors.namedThreadFactory("neighbor-writer");
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = names.newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ScheduledThreadPoolExecutor createWriteDeadlines() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "neighbor-write-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true); // Almost every deadline is cancelled
+        return executor;
+    }
+
+    private static ByteBuffer beginFrame(Opcode opcode, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + payloadLength);
+        Frames.begin(frame, opcode);
+        return frame;
+    }
+
+    private static ByteBuffer finish(ByteBuffer frame) {
+        Frames.end(frame, 0);
+        frame.flip();
+        return frame;
+    }
+}
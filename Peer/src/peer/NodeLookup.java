@@ -0,0 +1,220 @@
+package peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterative Kademlia node lookup on top of a {@link RoutingTable}.
+ * <p>
+ * A lookup starts from the k known contacts closest to the target and asks alpha of them at once
+ * for the contacts they know closest to it. The answers are merged into a shortlist and the next
+ * round asks the closest contacts not asked yet. Every round gets at least one bit closer to the
+ * target, so a lookup in a network of n peers takes about log2(n) / bits-gained-per-round
+ * rounds. A round that finds nothing closer asks all of the k closest not asked yet, and once
+ * the k closest have all answered the lookup is done.
+ * <p>
+ * Contacts that answer are recorded in the routing table and contacts that fail are removed, so
+ * lookups also keep the table fresh.
+ */
+class NodeLookup {
+    /**
+     * Sends FIND_NODE queries.
+     */
+    interface Transport {
+        /**
+         * Asks the peer at an address for the contacts it knows closest to a target.
+         *
+         * @throws IOException If the peer did not answer.
+         */
+        Reply findNode(InetSocketAddress address, long target) throws IOException;
+    }
+
+    /**
+     * The answer to a FIND_NODE query.
+     */
+    static final class Reply {
+        final long responderId;
+        final List<Contact> closest;
+
+        Reply(long responderId, List<Contact> closest) {
+            this.responderId = responderId;
+            this.closest = closest;
+        }
+    }
+
+    /**
+     * The outcome of a lookup.
+     */
+    static final class Result {
+        final List<Contact> closest; // the k closest contacts that answered, closest first
+        final int rounds; // query rounds, each waiting for up to alpha (or k) parallel answers
+        final int queries;
+        final int failures;
+
+        Result(List<Contact> closest, int rounds, int queries, int failures) {
+            this.closest = closest;
+            this.rounds = rounds;
+            this.queries = queries;
+            this.failures = failures;
+        }
+    }
+
+    private final RoutingTable table;
+    private final Transport transport;
+    private final Executor executor;
+    private final int k;
+    private final int alpha;
+
+    /**
+     * @param table     The routing table lookups start from and update.
+     * @param transport Sends the queries.
+     * @param executor  Runs the queries of a round in parallel. Lookups block until their queries
+     *                  are answered, so it must not be the executor that runs the lookups.
+     * @param k         How many closest contacts a lookup returns.
+     * @param alpha     How many queries a round sends when it is getting closer.
+     */
+    NodeLookup(RoutingTable table, Transport transport, Executor executor, int k, int alpha) {
+        this.table = table;
+        this.transport = transport;
+        this.executor = executor;
+        this.k = k;
+        this.alpha = Math.max(1, Math.min(alpha, k));
+    }
+
+    RoutingTable getTable() {
+        return table;
+    }
+
+    /**
+     * Answers a FIND_NODE query of another peer.
+     *
+     * @param sender The querying peer, null if it does not take part in the structured overlay.
+     * @return The k contacts this peer knows closest to the target.
+     */
+    List<Contact> answer(Contact sender, long target) {
+        if (sender != null) {
+            table.seen(sender);
+        }
+        return table.closest(target, k);
+    }
+
+    /**
+     * Joins the structured overlay through a peer whose ID is not known yet: asks it for the
+     * contacts closest to this peer, then looks this peer up, which fills the buckets near it and
+     * announces it to the peers it queries.
+     *
+     * @throws IOException If the peer did not answer.
+     */
+    Result bootstrap(InetSocketAddress address) throws IOException {
+        introduce(address);
+        return lookup(table.getSelfId());
+    }
+
+    /**
+     * Asks a peer whose ID is not known yet for the contacts closest to this peer and records it
+     * and its answer in the routing table.
+     *
+     * @throws IOException If the peer did not answer.
+     */
+    void introduce(InetSocketAddress address) throws IOException {
+        Reply reply = transport.findNode(address, table.getSelfId());
+        table.seen(new Contact(reply.responderId, address));
+        for (Contact contact : reply.closest) {
+            table.seen(contact);
+        }
+    }
+
+    /**
+     * Finds the k peers closest to a target ID.
+     */
+    Result lookup(long target) {
+        List<Contact> shortlist = new ArrayList<>(table.closest(target, k));
+        Set<Long> known = new HashSet<>();
+        Set<Long> queried = new HashSet<>();
+        known.add(table.getSelfId());
+        for (Contact contact : shortlist) {
+            known.add(contact.getId());
+        }
+        int rounds = 0;
+        int queries = 0;
+        int failures = 0;
+        boolean closing = false; // the last round found nothing closer, ask all of the k closest
+
+        while (true) {
+            List<Contact> batch = new ArrayList<>(alpha);
+            int limit = closing ? k : alpha;
+            for (int i = 0; i < shortlist.size() && i < k && batch.size() < limit; i++) {
+                if (!queried.contains(shortlist.get(i).getId())) {
+                    batch.add(shortlist.get(i));
+                }
+            }
+            if (batch.isEmpty()) {
+                break; // The k closest all answered
+            }
+            rounds++;
+            queries += batch.size();
+
+            List<CompletableFuture<Reply>> replies = new ArrayList<>(batch.size());
+            for (Contact contact : batch) {
+                queried.add(contact.getId());
+                replies.add(CompletableFuture.supplyAsync(() -> query(contact, target), executor));
+            }
+            long closestBefore = shortlist.get(0).getId();
+            for (int i = 0; i < batch.size(); i++) {
+                Contact contact = batch.get(i);
+                Reply reply;
+                try {
+                    reply = replies.get(i).join();
+                } catch (CompletionException e) {
+                    failures++;
+                    table.remove(contact.getId());
+                    shortlist.remove(contact);
+                    continue;
+                }
+                table.seen(contact);
+                for (Contact found : reply.closest) {
+                    if (known.add(found.getId())) {
+                        insertByDistance(shortlist, found, target);
+                    }
+                }
+            }
+            if (shortlist.isEmpty()) {
+                break;
+            }
+            closing = !RoutingTable.closer(shortlist.get(0).getId(), closestBefore, target);
+        }
+
+        List<Contact> closest = new ArrayList<>(Math.min(k, shortlist.size()));
+        for (int i = 0; i < shortlist.size() && closest.size() < k; i++) {
+            closest.add(shortlist.get(i));
+        }
+        return new Result(closest, rounds, queries, failures);
+    }
+
+    private Reply query(Contact contact, long target) {
+        try {
+            Reply reply = transport.findNode(contact.getAddress(), target);
+            if (reply.responderId != contact.getId()) {
+                throw new IOException("Peer at " + contact.getAddress() + " changed its ID");
+            }
+            return reply;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void insertByDistance(List<Contact> shortlist, Contact contact, long target) {
+        int position = shortlist.size();
+        while (position > 0 && RoutingTable.closer(contact.getId(), shortlist.get(position - 1).getId(), target)) {
+            position--;
+        }
+        shortlist.add(position, contact);
+    }
+}
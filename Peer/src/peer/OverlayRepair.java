@@ -0,0 +1,300 @@
+package peer;
+
+import common.Metrics;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a peer at <code>peer.minDegree</code> neighbors (default 2) as neighbors leave.
+ * <p>
+ * While the peer has fewer, each repair round connects to replacement candidates, as many as are
+ * missing plus one, and keeps the first ones to accept like a join does. Losing a neighbor starts
+ * a round right away, and the first candidates are the lost neighbor's other neighbors from the
+ * {@link CandidateCache}, so a lost link is usually replaced within one round trip and without
+ * the server.
+ * <p>
+ * Without such candidates the server is asked for random peers with a free slot, which keeps the
+ * overlay from falling apart into clusters. The neighbors of the current neighbors only close
+ * triangles, so they are tried only while the server cannot be asked. The server is asked at most
+ * once per wait, which doubles from <code>peer.repair.initialMs</code> (default 200) up to
+ * <code>peer.repair.maxMs</code> (default 30000) while that does not help, as in a network too
+ * small for every peer to have enough neighbors.
+ */
+class OverlayRepair {
+    // Neighbors a peer keeps at least: below that it links to replacement candidates right away, 0 turns this off
+    private static final int minDegree = Math.max(0, Math.min(3, Integer.getInteger("peer.minDegree", 2)));
+    // Waits between asking the server for replacement peers while no candidate helps: doubling up to the longest
+    private static final long initialMillis = Long.getLong("peer.repair.initialMs", 200);
+    private static final long maxMillis = Long.getLong("peer.repair.maxMs", 30000);
+    // How long a replacement candidate that was tried is skipped
+    private static final long retryNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("peer.repair.retryMs", 5000));
+    // How often a repair in progress checks whether its connection attempts are over
+    private static final long POLL_MILLIS = 50;
+
+    /**
+     * Opens the connections a repair asks for.
+     */
+    interface Links {
+        /**
+         * Starts connecting to a candidate on another thread; the attempt competes in the race.
+         */
+        void connect(InetSocketAddress candidate, ConnectRace race);
+
+        /**
+         * Asks the server for peers; the answer is passed to {@link #serverSuggested}.
+         *
+         * @return false if the server cannot be asked right now.
+         */
+        boolean requestPeers(int count);
+    }
+
+    private final Map<InetSocketAddress, NeighborLink> neighbors;
+    private final Set<InetSocketAddress> dialing;
+    private final Links links;
+    private final ScheduledExecutorService scheduler;
+    // The neighbors of the neighbors, to replace lost neighbors without asking the server
+    private final CandidateCache candidates = new CandidateCache(32, retryNanos);
+    private volatile boolean started = false; // Set once the peer joined, cleared when it leaves
+    private final Object lock = new Object();
+    private ScheduledFuture<?> task; // guarded by lock
+    private long dueNanos; // guarded by lock
+    // The connection attempts of the last repair round, null before the first
+    private volatile ConnectRace race;
+    private volatile long serverRequestDelayMillis = initialMillis;
+    private volatile long serverRequestDueNanos = System.nanoTime();
+    // Since when this peer has had fewer than peer.minDegree neighbors after losing one, 0 if it has not
+    private final AtomicLong belowMinDegreeSince = new AtomicLong();
+
+    private final Metrics.Counter connectsCancelled;
+    private final Metrics.Counter rounds;
+    private final Metrics.Counter cacheCandidates;
+    private final Metrics.Counter serverCandidates;
+    private final Metrics.Counter serverRequests;
+    private final Metrics.Histogram recovery;
+
+    /**
+     * @param neighbors The peer's neighbor links by remote address.
+     * @param dialing   The listener addresses of the peers a connection attempt is under way to.
+     * @param links     Opens the connections.
+     * @param scheduler Runs the repair rounds.
+     * @param metrics   Where the rounds, their candidates and the recovery times are recorded.
+     */
+    OverlayRepair(Map<InetSocketAddress, NeighborLink> neighbors, Set<InetSocketAddress> dialing, Links links,
+                  ScheduledExecutorService scheduler, Metrics metrics) {
+        this.neighbors = neighbors;
+        this.dialing = dialing;
+        this.links = links;
+        this.scheduler = scheduler;
+        this.connectsCancelled = metrics.counter("connects.cancelled");
+        this.rounds = metrics.counter("repair.rounds");
+        this.cacheCandidates = metrics.counter("repair.cache_candidates");
+        this.serverCandidates = metrics.counter("repair.server_candidates");
+        this.serverRequests = metrics.counter("repair.server_requests");
+        this.recovery = metrics.histogram("repair.recovery_us");
+        metrics.gauge("repair.candidates", candidates::size);
+    }
+
+    /**
+     * Starts repairing once the peer joined the network, right away if the join linked to fewer
+     * than <code>peer.minDegree</code> neighbors. The first peer waits for joiners instead: the
+     * server sends them to it anyway, and asking for peers would only dial the ones already on
+     * their way.
+     */
+    void start() {
+        started = true;
+        if (!neighbors.isEmpty()) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Stops repairing, for a peer that leaves the network.
+     */
+    void stop() {
+        started = false;
+        synchronized (lock) {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+    }
+
+    /**
+     * Records the other neighbors a neighbor announced, its candidates for replacing it.
+     */
+    void announced(InetSocketAddress neighbor, List<InetSocketAddress> itsNeighbors) {
+        candidates.announced(neighbor, itsNeighbors);
+    }
+
+    /**
+     * Records how long the peer was short of neighbors, once a new one brings it back to
+     * <code>peer.minDegree</code>.
+     */
+    void neighborAdded() {
+        if (neighbors.size() >= minDegree) {
+            long belowSince = belowMinDegreeSince.getAndSet(0);
+            if (belowSince != 0) {
+                recovery.recordSince(belowSince);
+            }
+        }
+    }
+
+    /**
+     * Makes the lost neighbor's other neighbors the first candidates, and starts repairing right
+     * away when losing it left this peer with fewer than <code>peer.minDegree</code> neighbors.
+     *
+     * @param listenerAddress The lost neighbor's listener address.
+     */
+    void neighborLost(InetSocketAddress listenerAddress) {
+        candidates.neighborLost(listenerAddress);
+        if (minDegree == 0 || !started || neighbors.size() >= minDegree) {
+            return;
+        }
+        belowMinDegreeSince.compareAndSet(0, System.nanoTime());
+        serverRequestDelayMillis = initialMillis;
+        serverRequestDueNanos = System.nanoTime();
+        schedule(0);
+    }
+
+    /**
+     * Connects to the peers the server suggested in answer to {@link Links#requestPeers}, if
+     * neighbors are still missing.
+     */
+    void serverSuggested(List<InetSocketAddress> suggestedPeers) {
+        suggestedPeers.removeAll(excludedCandidates());
+        int missing = minDegree - neighbors.size();
+        if (started && missing > 0 && !suggestedPeers.isEmpty()) {
+            serverCandidates.add(suggestedPeers.size());
+            startRound(missing, suggestedPeers);
+        }
+    }
+
+    /**
+     * @return How many replacement candidates are known.
+     */
+    int candidateCount() {
+        return candidates.size();
+    }
+
+    /**
+     * @return How long it took this peer to get back to <code>peer.minDegree</code> neighbors
+     * each time losing one left it with fewer, in microseconds.
+     */
+    Metrics.Histogram getRecovery() {
+        return recovery;
+    }
+
+    /**
+     * Runs {@link #repair} after the given wait, unless it is due sooner already.
+     */
+    private void schedule(long delayMillis) {
+        if (minDegree == 0 || !started) {
+            return;
+        }
+        synchronized (lock) {
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (task != null && !task.isDone()) {
+                if (dueNanos - due <= 0) {
+                    return;
+                }
+                task.cancel(false);
+            }
+            dueNanos = due;
+            task = scheduler.schedule(this::repair, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * One round of overlay repair, see the class description.
+     */
+    private void repair() {
+        synchronized (lock) {
+            task = null; // This round may schedule the next one
+        }
+        if (!started) {
+            return;
+        }
+        int missing = minDegree - neighbors.size();
+        if (missing <= 0) {
+            serverRequestDelayMillis = initialMillis;
+            return;
+        }
+        ConnectRace current = race;
+        if (current != null && !current.isDecided()) {
+            schedule(POLL_MILLIS);
+            return;
+        }
+
+        List<InetSocketAddress> orphaned = candidates.takeOrphaned(missing + 1, excludedCandidates());
+        if (!orphaned.isEmpty()) {
+            cacheCandidates.add(orphaned.size());
+            startRound(missing, orphaned);
+            schedule(POLL_MILLIS);
+            return;
+        }
+        if (serverRequestDueNanos - System.nanoTime() <= 0) {
+            long delayMillis = serverRequestDelayMillis;
+            serverRequestDelayMillis = Math.min(maxMillis, delayMillis * 2);
+            serverRequestDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (links.requestPeers(missing + 1)) {
+                serverRequests.increment();
+                schedule(POLL_MILLIS); // The answer starts the next connection attempts
+                return;
+            }
+        }
+        List<InetSocketAddress> twoHops = candidates.takeTwoHops(missing + 1, excludedCandidates());
+        if (!twoHops.isEmpty()) {
+            cacheCandidates.add(twoHops.size());
+            startRound(missing, twoHops);
+            schedule(POLL_MILLIS);
+            return;
+        }
+        schedule(Math.max(POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(serverRequestDueNanos - System.nanoTime())));
+    }
+
+    /**
+     * Connects to replacement candidates in parallel and keeps the first ones to accept.
+     *
+     * @param wanted       How many neighbors are missing.
+     * @param replacements The listener addresses of the candidates.
+     */
+    private void startRound(int wanted, List<InetSocketAddress> replacements) {
+        // The listener port of an old text neighbor is unknown, so any peer on its host may be that neighbor
+        Set<InetAddress> textNeighborHosts = new HashSet<>();
+        for (NeighborLink link : neighbors.values()) {
+            if (!link.isFramed()) {
+                textNeighborHosts.add(link.getListenerAddress().getAddress());
+            }
+        }
+        ConnectRace round = new ConnectRace(wanted, connectsCancelled);
+        race = round;
+        rounds.increment();
+        for (InetSocketAddress candidate : replacements) {
+            if (!textNeighborHosts.contains(candidate.getAddress())) {
+                links.connect(candidate, round);
+            }
+        }
+    }
+
+    /**
+     * @return The listener addresses of the neighbors and of the peers being connected to.
+     */
+    private Set<InetSocketAddress> excludedCandidates() {
+        Set<InetSocketAddress> excluded = new LinkedHashSet<>(dialing);
+        for (NeighborLink link : neighbors.values()) {
+            excluded.add(link.getListenerAddress());
+        }
+        return excluded;
+    }
+}
@@ -1,48 +1,195 @@
 package peer;
 
+import common.ConnectionExecutors;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Frames;
+import common.Metrics;
+import common.MetricsEndpoint;
+import common.Opcode;
+
 import java.io.*;
 import java.net.*;
-import java.util.Random;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Peer {
-    private static final int serverPort = 9090; // Central server port
+    // "framed" negotiates the binary protocol (falling back to text for old peers and servers), "text" never does
+    static final boolean useFramedProtocol = !"text".equalsIgnoreCase(System.getProperty("peer.protocol", "framed"));
+    // How long an accepted connection may stay silent before it is treated as an old text peer
+    private static final int helloTimeoutMillis = Integer.getInteger("peer.helloTimeoutMs", 500);
+    // How many of the suggested peers are kept as neighbors, the first ones to accept win
+    private static final int joinLinks = Math.min(3, Integer.getInteger("peer.joinLinks", 1));
+    // Bounds connecting to a peer and waiting for its answer, so a dead candidate cannot stall a join
+    private static final int connectTimeoutMillis = Integer.getInteger("peer.connectTimeoutMs", 1000);
+    // How many redirects a connection attempt follows before giving up
+    private static final int maxRedirects = Integer.getInteger("peer.maxRedirects", 8);
+    // How long a neighbor's announced number of neighbors is trusted when choosing a redirect target
+    private static final long degreeTtlNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("peer.degreeTtlMs", 10000));
+    // Whether this peer also keeps a Kademlia routing table, for lookups by node ID (see NodeLookup)
+    private static final boolean dhtEnabled = Boolean.getBoolean("peer.dht");
+    // Contacts per routing table bucket, and how many closest peers a lookup returns
+    private static final int dhtK = Math.max(1, Math.min(32, Integer.getInteger("peer.dht.k", 8)));
+    // How many peers a lookup queries at once
+    private static final int dhtAlpha = Integer.getInteger("peer.dht.alpha", 3);
+    // The files this peer shares with others, and where downloads go (see FileShare)
+    private static final Path shareDirectory = Paths.get(System.getProperty("peer.shareDir", "shared"));
+    // Chunk size of the files this peer shares, at most 8 MiB so a chunk fits into one frame
+    private static final int transferChunkSize = Math.max(64 * 1024, Math.min(8 << 20, Integer.getInteger("peer.transfer.chunkSize", 4 << 20)));
+    // How many chunks a download requests from each source at once
+    private static final int transferConnections = Integer.getInteger("peer.transfer.connectionsPerSource", 2);
+    // How many connections to sources this peer's downloads run at once, and how many downloaders it serves at once
+    private static final int transferThreads = Integer.getInteger("peer.transfer.threads", 8);
+    private static final int transferMaxServed = Integer.getInteger("peer.transfer.maxServed", 8);
+    // How long a download waits for a source that stopped sending before fetching its chunk elsewhere
+    private static final long transferStallMillis = Long.getLong("peer.transfer.stallMs", 10000);
+    // How many hops a "who has X?" query travels at most
+    private static final int queryTtl = Math.max(1, Math.min(255, Integer.getInteger("peer.query.ttl", 7)));
+    // How long a search waits for hits at most, and how much longer after the first one
+    private static final long queryTimeoutMillis = Long.getLong("peer.query.timeoutMs", 2000);
+    private static final long queryGraceMillis = Long.getLong("peer.query.graceMs", 100);
+    // Runs the server heartbeats and the overlay repair of all peers in this JVM
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "peer-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     //TODO explicitly name the serverIPAddress by prompting the user for input
-    private static String serverIPAddress; // Central server IP address
-    private static int peerPort; // Port for this peer's own server
-    private static final ExecutorService threadPool = Executors.newFixedThreadPool(10); // Thread pool for peer connections
-    private static final ConcurrentHashMap<InetSocketAddress, Socket> neighbors = new ConcurrentHashMap<>();
-    private static volatile boolean isConnectedToServer = false; // Track connection status
-    private static Socket serverSocket; // The connection to the central server
-    private static BufferedReader serverInput;
+    private final String serverIPAddress; // Central server IP address
+    private int peerPort; // Port for this peer's own server
+    private final ExecutorService threadPool; // Thread pool for peer connections
+    private final PrintStream console; // Where status messages are printed
+    private final ConcurrentHashMap<InetSocketAddress, NeighborLink> neighbors = new ConcurrentHashMap<>();
+    // Copy of the neighbor links for redirects, replaced whenever the neighbors change
+    private volatile NeighborLink[] neighborLinks = new NeighborLink[0];
+    // Listener addresses of the peers a connection attempt is under way to
+    private final Set<InetSocketAddress> dialing = ConcurrentHashMap.newKeySet();
+    // Replaces lost neighbors
+    private final OverlayRepair repair;
+    private volatile boolean leaving = false; // Set once the peer quits
+    private ServerSocket peerServerSocket; // Accepts connections from other peers
+    // The connection to the central server
+    private final ServerSession server;
+    // Released once this peer has a neighbor or learned that it is the first peer
+    private final CountDownLatch joinedNetwork = new CountDownLatch(1);
+    private final AtomicBoolean joined = new AtomicBoolean();
+    private long joinStartNanos;
+    // Spreads messages to every peer over the neighbor links
+    private final Gossip gossip;
+    // The structured overlay, null unless peer.dht is set
+    private final NodeLookup dht;
+
+    private final Metrics metrics = new Metrics("p2p_peer");
+    private final Metrics.Histogram joinLatency = metrics.histogram("join.latency_us");
+    private final Metrics.Counter redirects = metrics.counter("redirects");
+    private final Metrics.Counter redirectsExhausted = metrics.counter("redirects.exhausted");
+    private final Metrics.Histogram redirectHops = metrics.histogram("redirect.hops");
+    private final Metrics.Counter neighborsConnected = metrics.counter("neighbors.connected");
+    private final Metrics.Counter neighborsDisconnected = metrics.counter("neighbors.disconnected");
+    private final Metrics.Counter connectsFailed = metrics.counter("connects.failed");
+    private final Metrics.Counter connectsCancelled = metrics.counter("connects.cancelled");
+    private final Metrics.Histogram lookupHops = metrics.histogram("dht.lookup.hops");
+    private final Metrics.Histogram lookupQueries = metrics.histogram("dht.lookup.queries");
+    private final Metrics.Counter findNodesAnswered = metrics.counter("dht.find_node.answered");
+    // Serves the files in peer.shareDir to other peers
+    private final FileShare fileShare = new FileShare(shareDirectory, transferChunkSize, transferMaxServed, metrics);
+    // Runs the connections of this peer's downloads, which hold their threads for the whole transfer
+    private final ExecutorService downloads = ConnectionExecutors.newBoundedPool(Math.max(1, transferThreads), true, "peer-download");
+    private final Metrics.Counter queriesSent = metrics.counter("query.sent");
+    private final Metrics.Counter queryDuplicates = metrics.counter("query.duplicates");
+    private final Metrics.Counter queryHitsSent = metrics.counter("query.hits_sent");
+    private final Metrics.Counter queryCacheAnswers = metrics.counter("query.cache_answers");
+    private final Metrics.Histogram queryLatency = metrics.histogram("query.latency_us");
+    // Searches the shared files of the peers within peer.query.ttl hops, caching recent answers
+    private final QueryRouter<InetSocketAddress> queries = new QueryRouter<>(new QueryLinks(), queryTtl,
+            Integer.getInteger("peer.query.seenCapacity", 4096),
+            new QueryCache(Integer.getInteger("peer.query.cacheSize", 1024),
+                    TimeUnit.MILLISECONDS.toNanos(Long.getLong("peer.query.cacheTtlMs", 60000)),
+                    TimeUnit.MILLISECONDS.toNanos(Long.getLong("peer.query.negativeTtlMs", 10000)),
+                    Math.min(32, Integer.getInteger("peer.query.maxHolders", 8))));
+    // Longest file name a search carries in UTF-8, so that a hit with the most holders fits in a frame
+    private static final int MAX_NAME_LENGTH = 255;
+
+    // Stands for this peer's own address in the hits it sends; the receiving neighbor knows the real one
+    private static final InetAddress ANY_ADDRESS = new InetSocketAddress(0).getAddress();
 
     //terminal formatting
-    private static final String BOLD_UNDERLINE = "\u001B[1;4m";
-    private static final String RESET_FORMATTING = "\u001B[0m";
+    static final String BOLD_UNDERLINE = "\u001B[1;4m";
+    static final String RESET_FORMATTING = "\u001B[0m";
+
+    /**
+     * @param serverIPAddress The central server's IP address.
+     * @param peerPort        The port to accept peer connections on, 0 for any free port.
+     * @param threadPool      Runs the peer connections. Every neighbor holds a thread, so it must
+     *                        not be shared by more peers than it has threads for.
+     * @param console         Where status messages are printed.
+     */
+    public Peer(String serverIPAddress, int peerPort, ExecutorService threadPool, PrintStream console) {
+        this.serverIPAddress = serverIPAddress;
+        this.peerPort = peerPort;
+        this.threadPool = threadPool;
+        this.console = console;
+        this.gossip = new Gossip(neighbors, metrics, console);
+        this.repair = new OverlayRepair(neighbors, dialing, new RepairLinks(), scheduler, metrics);
+        this.server = new ServerSession(serverIPAddress, new SessionOverlay(), scheduler, metrics, console);
+
+        metrics.gauge("neighbors.active", neighbors::size);
+        metrics.gauge("query.cache.size", queries.getCache()::size);
+        if (threadPool instanceof ThreadPoolExecutor) {
+            metrics.gauge("executor.queue", () -> ((ThreadPoolExecutor) threadPool).getQueue().size());
+        }
+        if (dhtEnabled) {
+            RoutingTable table = new RoutingTable(ThreadLocalRandom.current().nextLong(), dhtK);
+            // Not threadPool: a lookup that runs there would wait for queries queued behind it
+            dht = new NodeLookup(table, this::findNode,
+                    ConnectionExecutors.newBoundedPool(dhtK, true, "peer-dht"), dhtK, dhtAlpha);
+            metrics.gauge("dht.contacts", table::size);
+        } else {
+            dht = null;
+        }
+    }
 
     public static void main(String[] args) {
+        // "virtual" runs each peer connection on its own virtual thread, "fixed" (or an older JVM) uses a fixed pool
+        ExecutorService threadPool = ConnectionExecutors.create(
+                System.getProperty("peer.executor", ConnectionExecutors.VIRTUAL),
+                Integer.getInteger("peer.poolSize", 10),
+                "peer-connection");
         try (BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in))) {
 
             System.out.print("Enter the IP address of the server: ");
-            serverIPAddress = consoleInput.readLine().trim();
+            String serverIPAddress = consoleInput.readLine().trim();
 
-            // Allow peer to specify its own port in the terminal
-            if (args.length > 0) {
-                peerPort = Integer.parseInt(args[0]);
-            } else {
-                try (ServerSocket tempSocket = new ServerSocket(0)) {
-                    peerPort = tempSocket.getLocalPort(); // Dynamically assign port
-                }
-            }
+            // Allow peer to specify its own port in the terminal, otherwise it is assigned dynamically
+            int peerPort = args.length > 0 ? Integer.parseInt(args[0]) : 0;
 
-            // Start the peer's own server
-            new Thread(() -> startPeerServer(peerPort)).start();
+            // Start the peer's own server, establish the server connection and start the peerListener
+            Peer peer = new Peer(serverIPAddress, peerPort, threadPool, System.out);
+            peer.start();
 
-            //Establish server connection and start peerListener
-            connectToServer();
+            // Serve the metrics on 127.0.0.1:peer.metricsPort if set
+            int metricsPort = Integer.getInteger("peer.metricsPort", 0);
+            if (metricsPort > 0) {
+                MetricsEndpoint.start(peer.metrics, metricsPort);
+                System.out.println("Metrics at http://127.0.0.1:" + metricsPort + "/metrics");
+            }
 
             // Handle user commands
-            handleUserCommands();
+            peer.handleUserCommands();
 
             System.exit(0);
         } catch (Exception e) {
@@ -52,87 +199,329 @@ public class Peer {
         }
     }
 
-    private static void handleUserCommands() {
+    /**
+     * Starts this peer's server and joins the network through the central server.
+     *
+     * @throws IOException If the peer's server could not be started.
+     */
+    public void start() throws IOException {
+        joinStartNanos = System.nanoTime();
+        startPeerServer(peerPort);
+        if (dht != null) {
+            console.println("Node ID in the structured overlay: " + RoutingTable.formatId(dht.getTable().getSelfId()));
+        }
+        server.connect();
+    }
+
+    /**
+     * Leaves the network: tells the server and all neighbors and stops accepting peer connections.
+     */
+    public void leave() {
+        leaving = true;
+        repair.stop();
+        server.disconnect();
+        disconnectFromNeighbors();
+        closeQuietly(peerServerSocket);
+    }
+
+    /**
+     * Waits until this peer is connected to a neighbor, or learned that it is the first peer.
+     *
+     * @return false if that did not happen in time.
+     */
+    public boolean awaitJoined(long timeout, TimeUnit unit) throws InterruptedException {
+        return joinedNetwork.await(timeout, unit);
+    }
+
+    /**
+     * @return How many redirects this peer followed since it started.
+     */
+    public int getRedirectHops() {
+        return (int) redirects.get();
+    }
+
+    public int getNeighborCount() {
+        return neighbors.size();
+    }
+
+    /**
+     * @return How long it took this peer to get back to <code>peer.minDegree</code> neighbors
+     * each time losing one left it with fewer, in microseconds.
+     */
+    Metrics.Histogram getRepairRecovery() {
+        return repair.getRecovery();
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    /**
+     * @return How many gossip messages of other peers reached this peer, without duplicates.
+     */
+    public long getGossipDelivered() {
+        return gossip.getDelivered();
+    }
+
+    /**
+     * @return How many gossip frames this peer sent, its own messages and forwarded ones.
+     */
+    public long getGossipSent() {
+        return gossip.getSent();
+    }
+
+    /**
+     * Sends a message to every peer in the network: each neighbor forwards it to its other
+     * neighbors, up to <code>peer.gossip.ttl</code> hops (default 32). See {@link Gossip}.
+     *
+     * @param message The message.
+     * @return How many neighbors the message was sent to.
+     * @throws IllegalArgumentException If the message does not fit in a frame.
+     */
+    public int gossip(String message) {
+        return gossip.send(message);
+    }
+
+    /**
+     * Finds the <code>peer.dht.k</code> peers (default 8) whose node IDs are closest to a target in
+     * the structured overlay. Queries <code>peer.dht.alpha</code> peers (default 3) at a time, so
+     * a lookup in a network of n peers takes O(log n) hops instead of a walk over the neighbors.
+     *
+     * @throws IllegalStateException If this peer was started without <code>peer.dht</code>.
+     */
+    NodeLookup.Result lookupNode(long target) {
+        if (dht == null) {
+            throw new IllegalStateException("The structured overlay is off, start the peer with -Dpeer.dht=true");
+        }
+        NodeLookup.Result result = dht.lookup(target);
+        lookupHops.record(result.rounds);
+        lookupQueries.record(result.queries);
+        return result;
+    }
+
+    /**
+     * Finds the peers that share a file: floods a query over the neighbor links for up to
+     * <code>peer.query.ttl</code> hops (default 7), and waits for hits until
+     * <code>peer.query.timeoutMs</code> (default 2000) pass or <code>peer.query.graceMs</code>
+     * (default 100) after the first one. Recent answers are cached, including that nobody was
+     * found, so asking again is answered right away. See {@link QueryRouter}.
+     *
+     * @param name The file's name, at most 255 bytes in UTF-8.
+     * @return The listener addresses of the peers that share it; this peer as 0.0.0.0.
+     * @throws IllegalArgumentException If the name is too long.
+     */
+    public List<InetSocketAddress> search(String name) throws InterruptedException {
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("File name longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+        }
+        QueryRouter.Search search = queries.search(name);
+        try {
+            List<InetSocketAddress> holders = search.await(queryTimeoutMillis, queryGraceMillis);
+            if (search.fromCache) {
+                queryCacheAnswers.increment();
+            } else if (search.firstHitNanos() >= 0) {
+                queryLatency.record(TimeUnit.NANOSECONDS.toMicros(search.firstHitNanos()));
+            }
+            return holders;
+        } finally {
+            queries.finish(search);
+        }
+    }
+
+    /**
+     * Downloads a file into <code>peer.shareDir</code> (default "shared") from the neighbors and
+     * the peers a {@link #search} finds, and shares it on from there. See {@link FileDownload}.
+     *
+     * @throws IOException If no peer shares the file or the download failed; what arrived is
+     *                     kept, so downloading again resumes.
+     */
+    FileDownload.Result download(String name) throws IOException {
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH) {
+            throw new IOException("File name longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+        }
+        Set<InetSocketAddress> candidates = new LinkedHashSet<>();
+        for (NeighborLink link : neighborLinks) {
+            if (link.isFramed()) {
+                candidates.add(link.getListenerAddress());
+            }
+        }
+        try {
+            for (InetSocketAddress holder : search(name)) {
+                if (!holder.getAddress().isAnyLocalAddress()) {
+                    candidates.add(holder);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching for " + name);
+        }
+        FileDownload download = new FileDownload(shareDirectory, name, downloads, transferConnections,
+                connectTimeoutMillis, transferStallMillis, metrics);
+        return download.run(new ArrayList<>(candidates));
+    }
+
+    private void handleUserCommands() {
         try (BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in))) {
             String command;
             while (true) {
-                System.out.print("Enter command (neighbors/quit): ");
+                console.print("Enter command (neighbors/members/gossip <message>/lookup <node id>/search <file>/fetch <file>/stats/server status/reconnect/quit): ");
                 command = userInput.readLine();
 
                 if (command == null || command.isBlank()) {
-                    System.out.println("Invalid command. Available commands: neighbors, quit");
+                    console.println("Invalid command. Available commands: neighbors, members, gossip <message>, lookup <node id>, search <file>, fetch <file>, stats, server status, reconnect, quit");
+                    continue;
+                }
+                if (command.toLowerCase().startsWith("gossip ")) {
+                    try {
+                        int sent = gossip(command.substring("gossip ".length()).trim());
+                        console.println("Gossip sent to " + sent + " neighbors.");
+                    } catch (IllegalArgumentException e) {
+                        console.println(e.getMessage());
+                    }
+                    continue;
+                }
+                if (command.toLowerCase().startsWith("lookup ")) {
+                    displayLookup(command.substring("lookup ".length()).trim());
+                    continue;
+                }
+                if (command.toLowerCase().startsWith("search ")) {
+                    displaySearch(command.substring("search ".length()).trim());
+                    continue;
+                }
+                if (command.toLowerCase().startsWith("fetch ")) {
+                    fetchFile(command.substring("fetch ".length()).trim());
                     continue;
                 }
 
                 switch (command.toLowerCase()) {
                     case "quit":
-                        disconnectFromServer();
-                        disconnectFromNeighbors();
-                        System.out.println("Disconnected from the network.");
+                        leave();
+                        console.println("Disconnected from the network.");
                         return;
                     case "neighbors":
                         displayNeighbors();
                         break;
+                    case "members":
+                        server.displayMembers();
+                        break;
+                    case "stats":
+                        console.print(metrics.format());
+                        break;
+                    case "server status":
+                        server.displayStatus();
+                        break;
+                    case "reconnect":
+                        if (server.isConnected()) {
+                            console.println("Already connected to the central server.");
+                        } else {
+                            server.connect();
+                        }
+                        break;
                     default:
-                        System.out.println("Unknown command. Available commands: neighbors, quit, server status, reconnect.");
+                        console.println("Unknown command. Available commands: neighbors, members, gossip <message>, lookup <node id>, search <file>, fetch <file>, stats, quit, server status, reconnect.");
                 }
             }
         } catch (IOException e) {
-            System.out.println("Error reading user input: " + e.getMessage());
+            console.println("Error reading user input: " + e.getMessage());
         }
     }
 
     /**
-     * Attempts to connect to the central server.
+     * Parses a port number received in a text message.
+     *
+     * @throws IOException If the text is not a valid port.
      */
-    private static synchronized void connectToServer() {
+    static int parsePort(String text) throws IOException {
         try {
-            // Establish connection to the central server
-            serverSocket = new Socket(serverIPAddress, serverPort);
-            serverInput = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            BufferedWriter serverOutput = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
-
-            isConnectedToServer = true;
-            int outgoingPort = serverSocket.getLocalPort();
-            System.out.println("Connected to the central server on port: " + BOLD_UNDERLINE + outgoingPort + RESET_FORMATTING);
-
-            // Send the peer's listener port to the server
-            serverOutput.write(peerPort + "\n"); // Send peer's listener port
-            serverOutput.flush();
-            System.out.println("Server is aware of this clients peerListener for peer connections");
-
-            // Handle initial server response
-            String response = serverInput.readLine();
-            if (response.startsWith("Connect to:")) {
-                String[] parts = response.split(" ");
-                String peerHost = parts[2];
-                int peerPort = Integer.parseInt(parts[3]);
-                connectToPeer(peerHost, peerPort); // Attempt to connect to the suggested peer
-            } else {
-                System.out.println(response); // "You are the first peer in the network."
+            return checkPort(Integer.parseInt(text));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid port: " + text);
+        }
+    }
+
+    /**
+     * Checks a port number received in a frame.
+     *
+     * @return The port.
+     * @throws IOException If it is not a valid port.
+     */
+    static int checkPort(int port) throws IOException {
+        if (port <= 0 || port > 65535) {
+            throw new IOException("Invalid port: " + port);
+        }
+        return port;
+    }
+
+    /**
+     * Updates the redirect candidates and tells the server and the neighbors about a new or lost
+     * neighbor. Each neighbor also learns this peer's other neighbors, its candidates for
+     * replacing this peer should it leave.
+     */
+    private void neighborsChanged() {
+        NeighborLink[] links = neighbors.values().toArray(new NeighborLink[0]);
+        neighborLinks = links;
+        server.reportTopology();
+        for (NeighborLink link : links) {
+            List<InetSocketAddress> others = new ArrayList<>(links.length);
+            for (NeighborLink other : links) {
+                if (other != link && other.isFramed()) {
+                    others.add(other.getListenerAddress());
+                }
+            }
+            try {
+                link.sendDegree(links.length, others);
+            } catch (IOException e) {
+                // The neighbor's reader notices the lost connection
             }
-        } catch (IOException e) {
-            isConnectedToServer = false;
-            System.out.println("Failed to connect to the central server: " + e.getMessage());
         }
     }
 
+    /**
+     * Reads the optional "int count, count addresses" tail of a frame.
+     *
+     * @return The addresses, empty if the frame has no tail.
+     */
+    private static List<InetSocketAddress> readAddresses(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) {
+            return Collections.emptyList();
+        }
+        int count = Frames.getCount(payload, Frames.MIN_ADDRESS_LENGTH);
+        List<InetSocketAddress> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            addresses.add(Frames.getAddress(payload));
+        }
+        return addresses;
+    }
+
+    static String memberKey(InetSocketAddress listenerAddress) {
+        return listenerAddress.getAddress().getHostAddress() + ":" + listenerAddress.getPort();
+    }
+
     /**
      * Starts the peer's server to handle incoming peer connections.
+     * The port is bound before this returns, so the peer can be handed out right away.
      *
-     * @param port The port number for the Peer's Server
+     * @param port The port number for the Peer's Server, 0 for any free port
      */
-    private static void startPeerServer(int port) {
-        try (ServerSocket peerServerSocket = new ServerSocket(port)) {
-            System.out.println("Peer server is listening  for peer connections on port: " + BOLD_UNDERLINE + port + RESET_FORMATTING);
+    private void startPeerServer(int port) throws IOException {
+        // Backed by a channel, so accepted sockets have one too and can serve files with transferTo
+        peerServerSocket = ServerSocketChannel.open().socket();
+        peerServerSocket.bind(new InetSocketAddress(port));
+        peerPort = peerServerSocket.getLocalPort();
+        console.println("Peer server is listening  for peer connections on port: " + BOLD_UNDERLINE + peerPort + RESET_FORMATTING);
 
-            while (true) {
-                Socket clientSocket = peerServerSocket.accept();
-                threadPool.submit(() -> peerListener(clientSocket)); // Handle connections concurrently
+        new Thread(() -> {
+            try (ServerSocket listener = peerServerSocket) {
+                while (true) {
+                    Socket clientSocket = listener.accept();
+                    threadPool.submit(() -> peerListener(clientSocket)); // Handle connections concurrently
+                }
+            } catch (IOException e) {
+                if (!peerServerSocket.isClosed()) {
+                    console.println("Error starting peer server: " + e.getMessage());
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Error starting peer server: " + e.getMessage());
-        }
+        }, "peer-server-" + peerPort).start();
     }
 
     /**
@@ -140,227 +529,962 @@ public class Peer {
      *
      * @param peerSocket The peer socket for peer connections
      */
-    private static void peerListener(Socket peerSocket) {
+    private void peerListener(Socket peerSocket) {
         InetSocketAddress remoteAddress = null;
+        boolean handedOver = false;
 
         try {
             // Get the remote peer's address
             remoteAddress = new InetSocketAddress(peerSocket.getInetAddress(), peerSocket.getPort());
 
             // Handle the peer connection
-            handlePeerConnection(peerSocket, remoteAddress);
+            handedOver = acceptPeerConnection(peerSocket, remoteAddress);
 
         } catch (IOException e) {
-            System.out.println("Error with peer " + remoteAddress + ": " + e.getMessage());
+            console.println("Error with peer " + remoteAddress + ": " + e.getMessage());
         } finally {
             // Cleanup the peer connection
             cleanupPeer(remoteAddress);
+            if (!handedOver) {
+                closeQuietly(peerSocket);
+            }
+        }
+    }
+
+    /**
+     * Connects to all peers suggested by the server at once and keeps the first
+     * <code>peer.joinLinks</code> that accept; the other attempts are cancelled.
+     *
+     * @param candidates The listener addresses of the suggested peers.
+     */
+    private void connectToCandidates(List<InetSocketAddress> candidates) {
+        ConnectRace race = new ConnectRace(joinLinks, connectsCancelled);
+        for (InetSocketAddress candidate : candidates) {
+            connectToPeer(candidate.getHostString(), candidate.getPort(), race, Collections.emptyList());
         }
     }
 
     /**
      * Attempts to establish a connection with the specified peer.
      * If the peer is already connected or the current peer has reached the maximum number of neighbors,
-     * it redirects the connection request to another neighbor (if possible).
+     * the connection is not attempted.
+     * The connection is made on the thread pool with a timeout, so this returns right away.
      *
-     * @param host The host address of the target peer.
-     * @param port The listening port of the target peer.
+     * @param host    The host address of the target peer.
+     * @param port    The listening port of the target peer.
+     * @param race    The attempts this one competes with.
+     * @param visited The peers this attempt was redirected from, oldest first.
      */
-    private static void connectToPeer(String host, int port) {
+    private void connectToPeer(String host, int port, ConnectRace race, List<InetSocketAddress> visited) {
         InetSocketAddress peerAddress = new InetSocketAddress(host, port);
 
         // Prevent connecting to self
         if (peerPort == port && serverIPAddress.equals(host)) {
-            System.out.println("Attempted to connect to self. Ignoring.");
+            console.println("Attempted to connect to self. Ignoring.");
             return;
         }
 
         // Ensure the peer is not already connected
-        if (neighbors.containsKey(peerAddress)) {
-            System.out.println("Already connected to peer: " + peerAddress.getHostName());
+        if (neighbors.containsKey(peerAddress) || isNeighbor(peerAddress)) {
+            console.println("Already connected to peer: " + peerAddress.getHostName());
             return;
         }
 
-        // Attempt to connect
-        try {
-            Socket peerSocket = new Socket(host, port);
+        if (neighbors.size() >= 3) {
+            console.println("Maximum number of neighbors reached. Not connecting to: " + peerAddress);
+            return;
+        }
 
-            // Start a new thread to handle the peer connection
-            threadPool.submit(() -> {
-                try {
-                    handlePeerConnection(peerSocket, peerAddress);
-                } catch (IOException ignored) {
+        Socket peerSocket = new Socket();
+        if (!race.register(peerSocket)) {
+            return; // Enough of the other candidates accepted already
+        }
+        dialing.add(peerAddress);
 
+        // Attempt to connect on a new thread to handle the peer connection
+        threadPool.submit(() -> {
+            try {
+                peerSocket.connect(peerAddress, connectTimeoutMillis);
+                dialPeerConnection(peerSocket, peerAddress, race, visited);
+            } catch (IOException e) {
+                // A closed socket was cancelled by the race
+                if (!peerSocket.isClosed()) {
+                    connectsFailed.increment();
+                    if (peerSocket.isConnected()) {
+                        console.println("Error with peer " + peerAddress + ": " + e.getMessage());
+                    } else {
+                        console.println("Error connecting to peer: " + host + ":" + port);
+                    }
+                }
+            } finally {
+                dialing.remove(peerAddress);
+                if (race.finished(peerSocket)) {
+                    console.println("None of the suggested peers accepted the connection.");
                 }
-            });
+                // Only clean up the neighbor if it is this connection, another attempt may have reached the same peer
+                NeighborLink link = neighbors.get(peerAddress);
+                if (link != null && link.getSocket() == peerSocket) {
+                    cleanupPeer(peerAddress);
+                }
+                closeQuietly(peerSocket);
+            }
+        });
+    }
 
-        } catch (IOException e) {
-            System.out.println("Error connecting to peer: " + host + ":" + port);
+    /**
+     * Handles a connection accepted by this peer's server.
+     * A peer that opens with the framed protocol line gets the framed protocol and introduces itself
+     * with its listener port; anything else (or silence) is an older peer using the text protocol.
+     * If the current peer has already reached the maximum number of neighbors, it redirects the
+     * connection to another neighbor. Otherwise, it manages the peer's communication and updates its
+     * own neighbors list.
+     *
+     * @param peerSocket    The socket representing the connection with the peer.
+     * @param remoteAddress The address of the connecting peer.
+     * @return true if the connection was handed over to the file transfers, which close it.
+     * @throws IOException If there is an error in communication with the peer.
+     */
+    private boolean acceptPeerConnection(Socket peerSocket, InetSocketAddress remoteAddress) throws IOException {
+        // Every message is a whole frame or line that is flushed at once, so do not hold back small writes
+        peerSocket.setTcpNoDelay(true);
+        InputStream input = peerSocket.getInputStream();
+        OutputStream output = new BufferedOutputStream(peerSocket.getOutputStream());
+
+        String firstLine;
+        boolean silent = false;
+        peerSocket.setSoTimeout(helloTimeoutMillis);
+        try {
+            firstLine = Frames.readLine(input);
+        } catch (SocketTimeoutException e) {
+            firstLine = null;
+            silent = true;
+        }
+        peerSocket.setSoTimeout(0);
+        if (firstLine == null && !silent) {
+            return false; // Closed before saying anything
         }
+
+        if (useFramedProtocol && Frames.PROTOCOL_LINE.equals(firstLine)) {
+            output.write((Frames.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+
+            FrameReader frames = new FrameReader(new BufferedInputStream(input), Frames.MAX_MESSAGE_LENGTH);
+            Opcode opening = frames.next();
+            if (opening == Opcode.FIND_NODE) {
+                answerFindNode(frames.payload(), peerSocket, output);
+                return false;
+            }
+            if (opening == Opcode.FILE_QUERY || opening == Opcode.CHUNK_REQUEST) {
+                fileShare.accept(opening, frames, peerSocket);
+                return true;
+            }
+            if (opening != Opcode.HELLO) {
+                return false;
+            }
+            InetSocketAddress listenerAddress;
+            List<InetSocketAddress> visited;
+            try {
+                listenerAddress = new InetSocketAddress(peerSocket.getInetAddress(), checkPort(frames.payload().getInt()));
+                visited = readAddresses(frames.payload());
+            } catch (BufferUnderflowException e) {
+                throw new IOException("HELLO too short from " + remoteAddress, e);
+            }
+            NeighborLink link = new NeighborLink(peerSocket, output, true, listenerAddress, metrics);
+
+            // Two peers replacing lost neighbors may dial each other at once, only one link is kept
+            if (isNeighbor(listenerAddress) || (dialing.contains(listenerAddress) && !otherDialerWins(peerSocket, listenerAddress))) {
+                console.println("Duplicate connection detected. Ignoring: " + remoteAddress);
+                return false;
+            }
+
+            // Check if max neighbors reached
+            if (neighbors.size() >= 3) {
+                redirectPeer(link, remoteAddress, visited);
+                return false;
+            }
+            if (!addNeighbor(remoteAddress, link)) {
+                return false;
+            }
+            link.send(Opcode.ACCEPT);
+            handleNeighborFrames(frames, remoteAddress);
+        } else {
+            NeighborLink link = new NeighborLink(peerSocket, output, false, remoteAddress, metrics);
+
+            // Check if max neighbors reached
+            if (neighbors.size() >= 3) {
+                redirectPeer(link, remoteAddress, Collections.emptyList());
+                return false;
+            }
+            if (!addNeighbor(remoteAddress, link)) {
+                return false;
+            }
+
+            // Send acknowledgment to the peer
+            link.sendLine("Accepted connection");
+
+            BufferedReader lines = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            if (firstLine == null || handleNeighborMessage(firstLine, remoteAddress)) {
+                handleNeighborLines(lines, remoteAddress);
+            }
+        }
+        return false;
     }
 
     /**
-     * Handles an incoming or established connection with a peer.
-     * If the current peer has already reached the maximum number of neighbors,
-     * it redirects the connection to another neighbor. Otherwise, it manages the
-     * peer's communication and updates its own neighbors list.
+     * Handles a connection this peer opened to another peer's server.
+     * Requests the framed protocol; an older peer ignores the request and answers right away in
+     * the text protocol with "Accepted connection" or "REDIRECT &lt;host&gt; &lt;port&gt;".
      *
-     * @param peerSocket   The socket representing the connection with the peer.
-     * @param remoteAddress The address of the connecting peer.
+     * Until the peer accepts, reads time out after <code>peer.connectTimeoutMs</code>; an accepted
+     * connection is only kept if it is among the first ones of its race.
+     *
+     * @param peerSocket  The socket representing the connection with the peer.
+     * @param peerAddress The listener address of the peer.
+     * @param race        The attempts this one competes with.
+     * @param visited     The peers this attempt was redirected from, oldest first.
      * @throws IOException If there is an error in communication with the peer.
      */
-    private static void handlePeerConnection(Socket peerSocket, InetSocketAddress remoteAddress) throws IOException {
-        // Check if already connected or max neighbors reached
-        if (neighbors.size() >= 3) {
-            redirectPeer(peerSocket, remoteAddress);
-            return;
+    private void dialPeerConnection(Socket peerSocket, InetSocketAddress peerAddress, ConnectRace race,
+                                    List<InetSocketAddress> visited) throws IOException {
+        peerSocket.setSoTimeout(connectTimeoutMillis);
+        peerSocket.setTcpNoDelay(true);
+        InputStream input = peerSocket.getInputStream();
+        OutputStream output = new BufferedOutputStream(peerSocket.getOutputStream());
+
+        if (useFramedProtocol) {
+            output.write((Frames.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
         }
 
-        // Add the peer to the neighbors map
-        if (neighbors.putIfAbsent(remoteAddress, peerSocket) != null) {
-            System.out.println("Duplicate connection detected. Ignoring: " + remoteAddress);
+        String firstLine = Frames.readLine(input);
+        if (firstLine == null) {
             return;
         }
 
-        System.out.println("Connected to peer: " + remoteAddress.getHostName());
+        if (useFramedProtocol && Frames.PROTOCOL_LINE.equals(firstLine)) {
+            NeighborLink link = new NeighborLink(peerSocket, output, true, peerAddress, metrics);
+            link.sendHello(peerPort, visited);
 
-        try (BufferedReader input = new BufferedReader(new InputStreamReader(peerSocket.getInputStream()));
-             BufferedWriter output = new BufferedWriter(new OutputStreamWriter(peerSocket.getOutputStream()))) {
+            FrameReader frames = new FrameReader(new BufferedInputStream(input), Frames.MAX_MESSAGE_LENGTH);
+            Opcode reply = frames.next();
+            // An accepting peer announces its new number of neighbors and its other neighbors before the ACCEPT
+            List<InetSocketAddress> itsNeighbors = Collections.emptyList();
+            while (reply == Opcode.DEGREE) {
+                ByteBuffer payload = frames.payload();
+                link.degreeAnnounced(payload.getInt());
+                itsNeighbors = readAddresses(payload);
+                reply = frames.next();
+            }
+            if (reply == Opcode.REDIRECT) {
+                InetSocketAddress target = Frames.getAddress(frames.payload());
+                peerSocket.close();
+                followRedirect(target.getAddress().getHostAddress(), target.getPort(), peerAddress, race, visited);
+                return;
+            }
+            if (reply == Opcode.ACCEPT && isNeighbor(peerAddress)) {
+                // The other peer dialed this one at the same time, and that connection was kept
+                link.sendDisconnect();
+                link.closeWhenSent();
+                link.awaitClosed();
+                return;
+            }
+            if (reply != Opcode.ACCEPT || !keepAccepted(link, race, visited)) {
+                return;
+            }
+            repair.announced(peerAddress, itsNeighbors);
+            if (!addNeighbor(peerAddress, link)) {
+                return;
+            }
+            handleNeighborFrames(frames, peerAddress);
+        } else {
+            if (handleRedirect(firstLine, peerAddress, race, visited)) {
+                return;
+            }
+
+            NeighborLink link = new NeighborLink(peerSocket, output, false, peerAddress, metrics);
+            if (!keepAccepted(link, race, visited) || !addNeighbor(peerAddress, link)) {
+                return;
+            }
 
             // Send acknowledgment to the peer
-            output.write("Accepted connection\n");
-            output.flush();
+            link.sendLine("Accepted connection");
+
+            BufferedReader lines = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            if (handleNeighborMessage(firstLine, peerAddress)) {
+                handleNeighborLines(lines, peerAddress);
+            }
+        }
+    }
+
+    /**
+     * Decides whether a connection the other peer accepted is kept. If enough other candidates
+     * accepted first, the other peer is told that this peer disconnects.
+     *
+     * @param visited The peers the connection was redirected from.
+     * @return true if the connection becomes a neighbor link.
+     */
+    private boolean keepAccepted(NeighborLink link, ConnectRace race, List<InetSocketAddress> visited) throws IOException {
+        if (!race.claim(link.getSocket())) {
+            link.sendDisconnect();
+            link.closeWhenSent();
+            link.awaitClosed();
+            return false;
+        }
+        link.getSocket().setSoTimeout(0);
+        redirectHops.record(visited.size());
+        return true;
+    }
+
+    /**
+     * Continues a connection attempt at the peer it was redirected to, unless the attempt ran out
+     * of redirects or is sent back to a peer it already tried.
+     *
+     * @param host    The host address of the redirect target.
+     * @param port    The listening port of the redirect target.
+     * @param from    The listener address of the peer that redirected.
+     * @param race    The attempts this one competes with.
+     * @param visited The peers the attempt was redirected from before.
+     */
+    private void followRedirect(String host, int port, InetSocketAddress from, ConnectRace race, List<InetSocketAddress> visited) {
+        InetSocketAddress target = new InetSocketAddress(host, port);
+        if (visited.size() >= maxRedirects || target.equals(from) || visited.contains(target)) {
+            console.println("Not following redirect to " + host + ":" + port + " after " + visited.size() + " redirects.");
+            redirectsExhausted.increment();
+            return;
+        }
+        console.println("Redirecting connection to: " + host + ":" + port);
+        redirects.increment();
+
+        List<InetSocketAddress> nextVisited = new ArrayList<>(visited.size() + 1);
+        nextVisited.addAll(visited);
+        nextVisited.add(from);
+        connectToPeer(host, port, race, nextVisited);
+    }
+
+    /**
+     * Releases {@link #awaitJoined} and records the join latency, once.
+     */
+    private void markJoined() {
+        if (joined.compareAndSet(false, true)) {
+            joinLatency.recordSince(joinStartNanos);
+            joinedNetwork.countDown();
+            if (!leaving) {
+                repair.start(); // A join may link to fewer than peer.minDegree neighbors
+            }
+        }
+    }
+
+    /**
+     * Adds the peer to the neighbors map.
+     *
+     * @return false if a connection to the peer already exists.
+     */
+    private boolean addNeighbor(InetSocketAddress remoteAddress, NeighborLink link) {
+        if (neighbors.putIfAbsent(remoteAddress, link) != null) {
+            console.println("Duplicate connection detected. Ignoring: " + remoteAddress);
+            return false;
+        }
+        console.println("Connected to peer: " + remoteAddress.getHostName());
+        neighborsConnected.increment();
+        markJoined();
+        neighborsChanged();
+        repair.neighborAdded();
+        if (dht != null && link.isFramed()) {
+            threadPool.submit(() -> bootstrapDht(link.getListenerAddress()));
+        }
+        return true;
+    }
+
+    /**
+     * Enters the structured overlay through a new neighbor: the neighbors are the peers this peer
+     * is sure to know, so each of them is asked for contacts before this peer looks itself up.
+     */
+    private void bootstrapDht(InetSocketAddress neighbor) {
+        try {
+            NodeLookup.Result result = dht.bootstrap(neighbor);
+            lookupHops.record(result.rounds);
+            lookupQueries.record(result.queries);
+        } catch (IOException e) {
+            console.println("Neighbor " + neighbor + " keeps no routing table: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a FIND_NODE query on a connection of its own and reads the answer.
+     *
+     * @param address The listener address of the peer to ask.
+     * @throws IOException If the peer does not answer in <code>peer.connectTimeoutMs</code> or
+     *                     keeps no routing table.
+     */
+    private NodeLookup.Reply findNode(InetSocketAddress address, long target) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, connectTimeoutMillis);
+            socket.setSoTimeout(connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            output.write((Frames.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+            FrameWriter writer = new FrameWriter(output);
+            ByteBuffer query = writer.begin(Opcode.FIND_NODE);
+            query.putLong(dht.getTable().getSelfId());
+            query.putInt(peerPort);
+            query.putLong(target);
+            writer.end();
+
+            InputStream input = socket.getInputStream();
+            if (!Frames.PROTOCOL_LINE.equals(Frames.readLine(input))) {
+                throw new IOException("Peer " + address + " does not speak the framed protocol");
+            }
+            FrameReader frames = new FrameReader(new BufferedInputStream(input), Frames.MAX_MESSAGE_LENGTH);
+            if (frames.next() != Opcode.NODES) {
+                throw new IOException("Peer " + address + " did not answer FIND_NODE");
+            }
+            ByteBuffer payload = frames.payload();
+            try {
+                long responderId = payload.getLong();
+                int count = Frames.getCount(payload, 8 + Frames.MIN_ADDRESS_LENGTH);
+                List<Contact> closest = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = payload.getLong();
+                    closest.add(new Contact(id, Frames.getAddress(payload)));
+                }
+                return new NodeLookup.Reply(responderId, closest);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("NODES too short from " + address, e);
+            }
+        }
+    }
+
+    /**
+     * Answers a FIND_NODE query with the contacts closest to its target, and records the querying
+     * peer. Peers without a routing table just close the connection, which the querier counts as
+     * a failed query.
+     *
+     * @param query  The FIND_NODE frame's payload.
+     * @param socket The query's connection.
+     * @param output The (buffered) output stream of the socket.
+     */
+    private void answerFindNode(ByteBuffer query, Socket socket, OutputStream output) throws IOException {
+        if (dht == null) {
+            return;
+        }
+        long senderId;
+        int senderPort;
+        long target;
+        try {
+            senderId = query.getLong();
+            senderPort = query.getInt();
+            target = query.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("FIND_NODE too short from " + socket.getRemoteSocketAddress(), e);
+        }
+        Contact sender = senderPort == 0 ? null : new Contact(senderId, new InetSocketAddress(socket.getInetAddress(), checkPort(senderPort)));
+        List<Contact> closest = dht.answer(sender, target);
 
-            // Handle incoming messages
+        FrameWriter writer = new FrameWriter(output);
+        ByteBuffer reply = writer.begin(Opcode.NODES);
+        reply.putLong(dht.getTable().getSelfId());
+        reply.putInt(closest.size());
+        for (Contact contact : closest) {
+            reply = writer.ensureRemaining(8 + 1 + 16 + 2);
+            reply.putLong(contact.getId());
+            Frames.putAddress(reply, contact.getAddress().getAddress(), contact.getAddress().getPort());
+        }
+        writer.end();
+        findNodesAnswered.increment();
+    }
+
+    /**
+     * Handles incoming text messages from a neighbor until it disconnects.
+     */
+    private void handleNeighborLines(BufferedReader input, InetSocketAddress remoteAddress) throws IOException {
+        try {
             String message;
             while ((message = input.readLine()) != null) {
-                System.out.println("Message from " + remoteAddress + ": " + message);
-
-                if (message.startsWith("REDIRECT")) {
-                    String[] parts = message.split(" ");
-                    if (parts.length == 3) {
-                        String redirectHost = parts[1];
-                        int redirectPort = Integer.parseInt(parts[2]);
-                        System.out.println("Redirecting connection to: " + redirectHost + ":" + redirectPort);
-                        cleanupPeer(remoteAddress);
-                        connectToPeer(redirectHost, redirectPort);
-                        break;
-                    } else {
-                        System.out.println("Malformed REDIRECT message from " + remoteAddress);
-                    }
+                if (!handleNeighborMessage(message, remoteAddress)) {
+                    break;
                 }
+            }
+        } catch (SocketException e) {
+            handleNeighborReset(e, remoteAddress);
+        }
+    }
 
-                if ("disconnected!".equalsIgnoreCase(message.trim())) {
+    /**
+     * Handles incoming frames from a neighbor until it disconnects.
+     */
+    private void handleNeighborFrames(FrameReader frames, InetSocketAddress remoteAddress) throws IOException {
+        try {
+            Opcode opcode;
+            while ((opcode = frames.next()) != null) {
+                if (opcode == Opcode.DISCONNECT) {
+                    console.println("Peer " + remoteAddress + " disconnected.");
                     cleanupPeer(remoteAddress);
                     break;
+                } else if (opcode == Opcode.DEGREE) {
+                    NeighborLink link = neighbors.get(remoteAddress);
+                    if (link != null) {
+                        ByteBuffer payload = frames.payload();
+                        link.degreeAnnounced(payload.getInt());
+                        repair.announced(link.getListenerAddress(), readAddresses(payload));
+                    }
+                } else if (opcode == Opcode.GOSSIP) {
+                    gossip.handle(frames.payload(), remoteAddress);
+                } else if (opcode == Opcode.QUERY) {
+                    ByteBuffer payload = frames.payload();
+                    long id = payload.getLong();
+                    int hopsLeft = Byte.toUnsignedInt(payload.get());
+                    String key = Frames.getString(payload);
+                    // A hit for a longer name might not fit in a frame, and this peer never asks for one
+                    if (key.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH
+                            && !queries.handleQuery(remoteAddress, id, hopsLeft, key)) {
+                        queryDuplicates.increment();
+                    }
+                } else if (opcode == Opcode.QUERY_HIT) {
+                    handleQueryHit(frames.payload(), remoteAddress);
+                } else {
+                    console.println("Message from " + remoteAddress + ": " + opcode);
                 }
             }
         } catch (SocketException e) {
-            if (e.getMessage().equals("Connection reset")) {
-                System.out.println("Peer " + remoteAddress + " disconnected abruptly.");
-            } else {
-                throw e;
+            handleNeighborReset(e, remoteAddress);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Frame too short from " + remoteAddress, e);
+        }
+    }
+
+    /**
+     * Passes a hit from a neighbor to the query router. A holder that names itself as 0.0.0.0
+     * sent the hit directly, so it is the neighbor's own address.
+     */
+    private void handleQueryHit(ByteBuffer payload, InetSocketAddress remoteAddress) throws IOException {
+        long id = payload.getLong();
+        String key = Frames.getString(payload);
+        int count = Frames.getCount(payload, Frames.MIN_ADDRESS_LENGTH);
+        List<InetSocketAddress> holders = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            InetSocketAddress holder = Frames.getAddress(payload);
+            if (holder.getAddress().isAnyLocalAddress()) {
+                holder = new InetSocketAddress(remoteAddress.getAddress(), holder.getPort());
+            }
+            holders.add(holder);
+        }
+        queries.handleHit(id, key, holders);
+    }
+
+    /**
+     * Sends the query router's messages over the framed neighbor links.
+     */
+    private final class QueryLinks implements QueryRouter.Links<InetSocketAddress> {
+        @Override
+        public Iterable<InetSocketAddress> neighbors() {
+            List<InetSocketAddress> framed = new ArrayList<>();
+            for (Map.Entry<InetSocketAddress, NeighborLink> neighbor : neighbors.entrySet()) {
+                if (neighbor.getValue().isFramed()) {
+                    framed.add(neighbor.getKey());
+                }
+            }
+            return framed;
+        }
+
+        @Override
+        public List<InetSocketAddress> localHolders(String key) {
+            if (!fileShare.holds(key)) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new InetSocketAddress(ANY_ADDRESS, peerPort));
+        }
+
+        @Override
+        public void sendQuery(InetSocketAddress neighbor, long id, int hopsLeft, String key) {
+            byte[] text = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 8 + 1 + 2 + text.length);
+            int start = Frames.begin(frame, Opcode.QUERY);
+            frame.putLong(id);
+            frame.put((byte) hopsLeft);
+            Frames.putString(frame, key);
+            Frames.end(frame, start);
+            frame.flip();
+            if (send(neighbor, frame)) {
+                queriesSent.increment();
+            }
+        }
+
+        @Override
+        public void sendHit(InetSocketAddress neighbor, long id, String key, List<InetSocketAddress> holders) {
+            byte[] text = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 8 + 2 + text.length + 4 + holders.size() * (1 + 16 + 2));
+            int start = Frames.begin(frame, Opcode.QUERY_HIT);
+            frame.putLong(id);
+            Frames.putString(frame, key);
+            frame.putInt(holders.size());
+            for (InetSocketAddress holder : holders) {
+                Frames.putAddress(frame, holder.getAddress(), holder.getPort());
+            }
+            Frames.end(frame, start);
+            frame.flip();
+            if (send(neighbor, frame)) {
+                queryHitsSent.increment();
+            }
+        }
+
+        private boolean send(InetSocketAddress neighbor, ByteBuffer frame) {
+            NeighborLink link = neighbors.get(neighbor);
+            if (link == null) {
+                return false; // Left meanwhile
+            }
+            try {
+                link.sendFrame(frame);
+                return true;
+            } catch (IOException e) {
+                return false; // The neighbor's reader notices the lost connection
+            }
+        }
+    }
+
+    /**
+     * Opens the overlay repair's connections: to candidates over the thread pool, and to the server
+     * for PEERS requests.
+     */
+    private final class RepairLinks implements OverlayRepair.Links {
+        @Override
+        public void connect(InetSocketAddress candidate, ConnectRace race) {
+            connectToPeer(candidate.getHostString(), candidate.getPort(), race, Collections.emptyList());
+        }
+
+        @Override
+        public boolean requestPeers(int count) {
+            return server.requestPeers(count);
+        }
+    }
+
+    /**
+     * Lets the server session join this peer to the network and report its neighbors.
+     */
+    private final class SessionOverlay implements ServerSession.Overlay {
+        @Override
+        public int listenerPort() {
+            return peerPort;
+        }
+
+        @Override
+        public List<InetSocketAddress> neighbors() {
+            List<InetSocketAddress> listenerAddresses = new ArrayList<>();
+            for (NeighborLink link : neighbors.values()) {
+                listenerAddresses.add(link.getListenerAddress());
             }
+            return listenerAddresses;
+        }
+
+        @Override
+        public boolean hasJoined() {
+            return joined.get();
+        }
+
+        @Override
+        public void join(List<InetSocketAddress> suggestedPeers) {
+            connectToCandidates(suggestedPeers);
+        }
+
+        @Override
+        public void joinedAsFirst() {
+            markJoined();
+        }
+
+        @Override
+        public void peersSuggested(List<InetSocketAddress> suggestedPeers) {
+            repair.serverSuggested(suggestedPeers);
+        }
+    }
+
+    /**
+     * Handles one text message from a neighbor.
+     *
+     * @return false if the connection is finished.
+     */
+    private boolean handleNeighborMessage(String message, InetSocketAddress remoteAddress) {
+        console.println("Message from " + remoteAddress + ": " + message);
+
+        if (handleRedirect(message, remoteAddress, new ConnectRace(1, connectsCancelled), Collections.emptyList())) {
+            return false;
+        }
+
+        if ("disconnected!".equalsIgnoreCase(message.trim())) {
+            cleanupPeer(remoteAddress);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Follows a text "REDIRECT &lt;host&gt; &lt;port&gt;" message.
+     *
+     * @param race    The attempts the redirected connection competes with.
+     * @param visited The peers the connection was redirected from before.
+     * @return true if the message was a redirect.
+     */
+    private boolean handleRedirect(String message, InetSocketAddress remoteAddress, ConnectRace race,
+                                   List<InetSocketAddress> visited) {
+        if (!message.startsWith("REDIRECT")) {
+            return false;
+        }
+
+        InetSocketAddress target;
+        try {
+            target = parseRedirect(message);
+        } catch (IOException e) {
+            console.println("Malformed REDIRECT message from " + remoteAddress + ": " + e.getMessage());
+            return false;
+        }
+        if (target == null) {
+            return false;
+        }
+        cleanupPeer(remoteAddress);
+        followRedirect(target.getHostString(), target.getPort(), remoteAddress, race, visited);
+        return true;
+    }
+
+    /**
+     * Parses a "REDIRECT &lt;host&gt; &lt;port&gt;" message.
+     *
+     * @param message The line received from a peer.
+     * @return The address to connect to instead, or null if the message is not a redirect.
+     * @throws IOException If the message is a redirect without a valid address.
+     */
+    static InetSocketAddress parseRedirect(String message) throws IOException {
+        String[] parts = message.split(" ");
+        if (!parts[0].equals("REDIRECT")) {
+            return null;
+        }
+        if (parts.length != 3) {
+            throw new IOException("Expected a host and a port");
+        }
+        return InetSocketAddress.createUnresolved(parts[1], parsePort(parts[2]));
+    }
+
+    private void handleNeighborReset(SocketException e, InetSocketAddress remoteAddress) throws SocketException {
+        if ("Connection reset".equals(e.getMessage())) {
+            console.println("Peer " + remoteAddress + " disconnected abruptly.");
+        } else if (neighbors.containsKey(remoteAddress)) {
+            throw e;
         }
+        // Otherwise the socket was closed locally while leaving the network
     }
 
     /**
      * Redirects a peer connection to a random neighbor when the maximum neighbor limit is reached.
-     * Sends a "REDIRECT" message to the peer with the new target host and port, and cleans up the
+     * Sends a redirect to the peer with the new target host and port, and cleans up the
      * connection for the redirected peer.
      *
-     * @param peerSocket   The socket representing the connection with the peer to be redirected.
+     * @param link          The connection with the peer to be redirected.
      * @param remoteAddress The address of the peer being redirected.
+     * @param visited       The peers the connection was already redirected from.
      */
-    private static void redirectPeer(Socket peerSocket, InetSocketAddress remoteAddress) {
-        try (BufferedWriter output = new BufferedWriter(new OutputStreamWriter(peerSocket.getOutputStream()))) {
-            InetSocketAddress redirectTarget = getRandomNeighbor();
+    private void redirectPeer(NeighborLink link, InetSocketAddress remoteAddress, List<InetSocketAddress> visited) {
+        try {
+            InetSocketAddress redirectTarget = getRandomNeighbor(link.getListenerAddress(), visited);
             if (redirectTarget != null) {
-                output.write("REDIRECT " + redirectTarget.getAddress().getHostAddress() + " " + redirectTarget.getPort() + "\n");
-                output.flush();
-                System.out.println("Redirected peer " + remoteAddress + " to " + redirectTarget);
+                link.sendRedirect(redirectTarget);
+                console.println("Redirected peer " + remoteAddress + " to " + redirectTarget);
             } else {
-                System.out.println("No neighbors available for redirection.");
+                console.println("No neighbors available for redirection.");
             }
         } catch (IOException e) {
-            System.out.println("Error redirecting peer " + remoteAddress + ": " + e.getMessage());
+            console.println("Error redirecting peer " + remoteAddress + ": " + e.getMessage());
         } finally {
-            cleanupPeer(remoteAddress);
+            link.closeWhenSent();
+            link.awaitClosed(); // The socket is closed once this returns
         }
     }
 
-    private static void cleanupPeer(InetSocketAddress remoteAddress) {
+    private void cleanupPeer(InetSocketAddress remoteAddress) {
         if (remoteAddress != null) {
             try {
                 // Remove the peer from neighbors and close the socket
-                Socket removedSocket = neighbors.remove(remoteAddress);
-                if (removedSocket != null && !removedSocket.isClosed()) {
-                    removedSocket.close();
-                    System.out.println("Closed socket for peer: " + remoteAddress);
+                NeighborLink removedLink = neighbors.remove(remoteAddress);
+                if (removedLink != null) {
+                    neighborsDisconnected.increment();
+                    neighborsChanged();
+                    repair.neighborLost(removedLink.getListenerAddress());
+                }
+                if (removedLink != null && !removedLink.getSocket().isClosed()) {
+                    removedLink.close();
+                    console.println("Closed socket for peer: " + remoteAddress);
                 }
             } catch (IOException e) {
-                System.out.println("Failed to close socket for peer: " + remoteAddress + ". Error: " + e.getMessage());
+                console.println("Failed to close socket for peer: " + remoteAddress + ". Error: " + e.getMessage());
             }
         }
     }
 
     /**
-     * Disconnects from the central server.
+     * @return true if one of the neighbors accepts peer connections at the address.
      */
-    private static void disconnectFromServer() {
+    private boolean isNeighbor(InetSocketAddress listenerAddress) {
+        for (NeighborLink link : neighbors.values()) {
+            if (link.getListenerAddress().equals(listenerAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decides between two connections that two peers dialed to each other at once, the same way
+     * at both ends: the one dialed by the peer with the smaller listener address is kept.
+     *
+     * @param socket        The connection the other peer dialed.
+     * @param otherListener The other peer's listener address.
+     * @return true if the connection the other peer dialed is kept.
+     */
+    private boolean otherDialerWins(Socket socket, InetSocketAddress otherListener) {
+        int order = Arrays.compareUnsigned(otherListener.getAddress().getAddress(), socket.getLocalAddress().getAddress());
+        return order != 0 ? order < 0 : otherListener.getPort() < peerPort;
+    }
+
+    static void closeQuietly(Closeable socket) {
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-                isConnectedToServer = false;
-                System.out.println("Disconnected from the central server.");
+            if (socket != null) {
+                socket.close();
             }
-        } catch (IOException e) {
-            System.out.println("Error disconnecting from the server: " + e.getMessage());
+        } catch (IOException ignored) {
         }
     }
 
     /**
      * Disconnects from all neighbors.
      */
-    private static void disconnectFromNeighbors() {
+    private void disconnectFromNeighbors() {
+        List<NeighborLink> notified = new ArrayList<>();
         for (InetSocketAddress neighbor : neighbors.keySet()) {
-            try (Socket neighborSocket = neighbors.remove(neighbor);
-                 BufferedWriter neighborOutput = new BufferedWriter(new OutputStreamWriter(neighborSocket.getOutputStream()))) {
-
-                neighborOutput.write("disconnected!\n");
-                neighborOutput.flush();
-                cleanupPeer(neighbor);
-                System.out.println("Notified neighbor: " + neighbor.getHostName());
+            NeighborLink link = neighbors.remove(neighbor);
+            if (link == null) {
+                continue;
+            }
+            neighborsDisconnected.increment();
+            neighborLinks = neighbors.values().toArray(new NeighborLink[0]);
+            try {
+                link.sendDisconnect();
+                console.println("Notified neighbor: " + neighbor.getHostName());
             } catch (IOException e) {
-                System.out.println("Failed to notify neighbor: " + neighbor);
+                console.println("Failed to notify neighbor: " + neighbor);
+            } finally {
+                link.closeWhenSent();
+                notified.add(link);
             }
         }
+        // The notices are written by the links' writers, let them finish before this peer exits
+        for (NeighborLink link : notified) {
+            link.awaitClosed();
+        }
     }
 
     /**
-     * Returns a random neighbor from the current list of neighbors.
+     * Returns a random neighbor to redirect a connection to. Neighbors that recently announced a
+     * free slot are preferred over neighbors that did not announce, and those over full ones.
      *
-     * @return A random neighbor's InetSocketAddress or null if no neighbors are present
+     * @param joiner  The listener address of the redirected peer, never returned.
+     * @param visited The peers the connection was already redirected from, never returned.
+     * @return A random neighbor's listener address or null if no neighbor qualifies
      */
-    private static InetSocketAddress getRandomNeighbor() {
-        if (neighbors.isEmpty()) {
-            return null;
+    private InetSocketAddress getRandomNeighbor(InetSocketAddress joiner, List<InetSocketAddress> visited) {
+        NeighborLink chosen = null;
+        int chosenRank = Integer.MAX_VALUE;
+        int ties = 0;
+        for (NeighborLink link : neighborLinks) {
+            InetSocketAddress listenerAddress = link.getListenerAddress();
+            if (listenerAddress.equals(joiner) || visited.contains(listenerAddress)) {
+                continue;
+            }
+            int degree = link.knownDegree(degreeTtlNanos);
+            int rank = degree < 0 ? 1 : degree < 3 ? 0 : 2;
+            if (rank < chosenRank) {
+                chosen = link;
+                chosenRank = rank;
+                ties = 1;
+            } else if (rank == chosenRank && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                chosen = link; // Each of the equally ranked neighbors is picked with the same probability
+            }
+        }
+        return chosen == null ? null : chosen.getListenerAddress();
+    }
+
+    /**
+     * Looks up a node ID in the structured overlay and displays the closest peers found.
+     *
+     * @param id The node ID in hex, as printed when the peer starts.
+     */
+    private void displayLookup(String id) {
+        if (dht == null) {
+            console.println("The structured overlay is off, start the peer with -Dpeer.dht=true.");
+            return;
+        }
+        long target;
+        try {
+            target = RoutingTable.parseId(id);
+        } catch (NumberFormatException e) {
+            console.println("Invalid node ID: " + id);
+            return;
+        }
+        NodeLookup.Result result = lookupNode(target);
+        console.println("Closest peers to " + RoutingTable.formatId(target) + " (" + result.rounds + " hops, "
+                + result.queries + " queries, " + result.failures + " failed):");
+        for (Contact contact : result.closest) {
+            console.println("- " + contact);
+        }
+    }
+
+    /**
+     * Searches for the peers that share a file and displays them.
+     */
+    private void displaySearch(String name) {
+        long start = System.nanoTime();
+        List<InetSocketAddress> holders;
+        try {
+            holders = search(name);
+        } catch (IllegalArgumentException e) {
+            console.println(e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (holders.isEmpty()) {
+            console.println("No peer within " + queryTtl + " hops shares " + name + " (" + millis + " ms).");
+            return;
+        }
+        console.println("Peers sharing " + name + " (" + millis + " ms):");
+        for (InetSocketAddress holder : holders) {
+            console.println("- " + (holder.getAddress().isAnyLocalAddress() ? "this peer" : memberKey(holder)));
+        }
+    }
+
+    /**
+     * Downloads a file from the neighbors and the peers a search finds, and displays how it went.
+     */
+    private void fetchFile(String name) {
+        try {
+            FileDownload.Result result = download(name);
+            console.printf("Downloaded %s (%d bytes) from %d peers in %.1f s (%.1f MB/s), %d chunks fetched, %d resumed.%n",
+                    result.path, result.size, result.sources, result.nanos / 1e9, result.megabytesPerSecond(),
+                    result.chunksFetched, result.chunksResumed);
+        } catch (IOException e) {
+            console.println("Download of " + name + " failed: " + e.getMessage());
         }
-        int randomIndex = new Random().nextInt(neighbors.size());
-        return (InetSocketAddress) neighbors.keySet().toArray()[randomIndex];
     }
 
     /**
      * Displays the current neighbors of this peer.
      */
-    private static void displayNeighbors() {
+    private void displayNeighbors() {
         if (neighbors.isEmpty()) {
-            System.out.println("No neighbors connected.");
+            console.println("No neighbors connected.");
         } else {
-            System.out.println("Your neighbors:");
+            console.println("Your neighbors:");
             for (InetSocketAddress neighbor : neighbors.keySet()) {
-                System.out.println("- " + neighbor.getHostName());
+                console.println("- " + neighbor.getHostName());
             }
         }
+        console.println("Replacement candidates known: " + repair.candidateCount());
     }
 }
\ No newline at end of file
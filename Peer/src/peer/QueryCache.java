@@ -0,0 +1,107 @@
+package peer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recent answers to "who has X?" queries: the holders found for each key, or that nobody was
+ * found. Bounded in both size and age: the least recently used key is dropped when the cache is
+ * full, and an answer expires after a while, a negative one sooner, since holders come and go.
+ */
+class QueryCache {
+    private final int capacity;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    private final int maxHolders;
+    private final LinkedHashMap<String, Entry> entries; // guarded by this
+
+    private static final class Entry {
+        final Set<InetSocketAddress> holders; // empty for a negative answer
+        long expiresNanos;
+
+        Entry(Set<InetSocketAddress> holders, long expiresNanos) {
+            this.holders = holders;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * @param capacity         How many keys are cached at most; 0 disables the cache.
+     * @param positiveTtlNanos How long found holders are trusted.
+     * @param negativeTtlNanos How long "nobody has it" is trusted.
+     * @param maxHolders       How many holders are kept per key.
+     */
+    QueryCache(int capacity, long positiveTtlNanos, long negativeTtlNanos, int maxHolders) {
+        this.capacity = capacity;
+        this.positiveTtlNanos = positiveTtlNanos;
+        this.negativeTtlNanos = negativeTtlNanos;
+        this.maxHolders = Math.max(1, maxHolders);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > QueryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return The cached holders of a key, empty if it is known that nobody has it, or null if
+     *         there is no current answer.
+     */
+    synchronized List<InetSocketAddress> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresNanos > 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.holders.isEmpty() ? Collections.<InetSocketAddress>emptyList() : new ArrayList<>(entry.holders);
+    }
+
+    /**
+     * Adds holders of a key that a query found. A current negative answer becomes positive.
+     */
+    synchronized void addHolders(String key, List<InetSocketAddress> holders) {
+        if (capacity == 0 || holders.isEmpty()) {
+            return;
+        }
+        long expires = System.nanoTime() + positiveTtlNanos;
+        Entry entry = entries.get(key);
+        if (entry == null || entry.holders.isEmpty() || System.nanoTime() - entry.expiresNanos > 0) {
+            entry = new Entry(new LinkedHashSet<InetSocketAddress>(), expires);
+            entries.put(key, entry);
+        }
+        entry.expiresNanos = expires;
+        for (InetSocketAddress holder : holders) {
+            if (entry.holders.size() >= maxHolders) {
+                break;
+            }
+            entry.holders.add(holder);
+        }
+    }
+
+    /**
+     * Records that a query found nobody holding the key, unless holders are known.
+     */
+    synchronized void addNegative(String key) {
+        if (capacity == 0) {
+            return;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || entry.holders.isEmpty() || System.nanoTime() - entry.expiresNanos > 0) {
+            entries.put(key, new Entry(Collections.<InetSocketAddress>emptySet(), System.nanoTime() + negativeTtlNanos));
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,237 @@
+package peer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Who has X?" search over the unstructured overlay, Gnutella style.
+ * <p>
+ * A query floods over the neighbor links for a limited number of hops. Every peer remembers which
+ * neighbor it first got a query from, drops later copies, and sends hits back to that neighbor,
+ * so hits retrace the query's path to the peer that asked instead of flooding too.
+ * <p>
+ * Every peer caches the hits passing through it and the queries it asked that found nothing
+ * (see {@link QueryCache}). A peer that already knows the answer to a query it is asked answers
+ * it and does not forward it, so under a skewed workload, where a few keys get most of the
+ * queries, popular queries are answered by the asking peer itself or a neighbor and most
+ * flooding stops.
+ *
+ * @param <N> Identifies a neighbor.
+ */
+class QueryRouter<N> {
+    /**
+     * Sends queries and hits to neighbors, and knows what this peer holds.
+     */
+    interface Links<N> {
+        /**
+         * @return The neighbors queries are flooded to.
+         */
+        Iterable<N> neighbors();
+
+        /**
+         * @return This peer as a holder of the key, or an empty list.
+         */
+        List<InetSocketAddress> localHolders(String key);
+
+        void sendQuery(N neighbor, long id, int hopsLeft, String key);
+
+        void sendHit(N neighbor, long id, String key, List<InetSocketAddress> holders);
+    }
+
+    /**
+     * A query this peer asked. Collects the holders that hits report.
+     */
+    static final class Search {
+        final String key;
+        final long id;
+        final boolean fromCache;
+        private final long startNanos = System.nanoTime();
+        private final Set<InetSocketAddress> holders = new LinkedHashSet<>(); // guarded by this
+        private long firstHitNanos = 0; // guarded by this
+
+        Search(String key, long id, List<InetSocketAddress> known, boolean fromCache) {
+            this.key = key;
+            this.id = id;
+            this.fromCache = fromCache;
+            holders.addAll(known);
+            if (!known.isEmpty()) {
+                firstHitNanos = startNanos;
+            }
+        }
+
+        synchronized void add(List<InetSocketAddress> found) {
+            if (firstHitNanos == 0 && !found.isEmpty()) {
+                firstHitNanos = System.nanoTime();
+            }
+            holders.addAll(found);
+            notifyAll();
+        }
+
+        /**
+         * Waits for hits until the timeout elapses or <code>graceMillis</code> after the first
+         * one; more hits from farther away are not worth waiting for.
+         *
+         * @return The holders found.
+         */
+        synchronized List<InetSocketAddress> await(long timeoutMillis, long graceMillis) throws InterruptedException {
+            if (!fromCache) {
+                long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (true) {
+                    long end = firstHitNanos == 0 ? deadline
+                            : Math.min(deadline, firstHitNanos + TimeUnit.MILLISECONDS.toNanos(graceMillis));
+                    long remaining = end - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return holders();
+        }
+
+        synchronized List<InetSocketAddress> holders() {
+            return new ArrayList<>(holders);
+        }
+
+        /**
+         * @return Nanoseconds from asking to the first hit, or -1 if there was none.
+         */
+        synchronized long firstHitNanos() {
+            return firstHitNanos == 0 ? -1 : firstHitNanos - startNanos;
+        }
+    }
+
+    private final Links<N> links;
+    private final int ttl;
+    private final SeenMessages seen;
+    private final QueryCache cache;
+    // The neighbor each recent query came from, to send its hits back; bounded like the seen IDs
+    private final LinkedHashMap<Long, N> reversePaths; // guarded by itself
+    private final ConcurrentHashMap<Long, Search> searches = new ConcurrentHashMap<>();
+
+    /**
+     * @param links        Reaches the neighbors.
+     * @param ttl          How many hops a query travels at most.
+     * @param seenCapacity How many recent queries are remembered to drop copies and route hits.
+     * @param cache        The answers of recent queries.
+     */
+    QueryRouter(Links<N> links, int ttl, int seenCapacity, QueryCache cache) {
+        this.links = links;
+        this.ttl = ttl;
+        this.seen = new SeenMessages(seenCapacity);
+        this.cache = cache;
+        this.reversePaths = new LinkedHashMap<Long, N>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, N> eldest) {
+                return size() > seenCapacity;
+            }
+        };
+    }
+
+    QueryCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Starts a search for the holders of a key. A cached answer completes it right away;
+     * otherwise the query is flooded and the search collects the hits until {@link #finish}.
+     */
+    Search search(String key) {
+        List<InetSocketAddress> local = links.localHolders(key);
+        List<InetSocketAddress> cached = cache.get(key);
+        if (cached != null) {
+            List<InetSocketAddress> known = new ArrayList<>(local);
+            known.addAll(cached);
+            return new Search(key, 0, known, true);
+        }
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (!seen.add(id)); // Also drops the query when it comes back around a loop
+        Search search = new Search(key, id, local, false);
+        searches.put(id, search);
+        for (N neighbor : links.neighbors()) {
+            links.sendQuery(neighbor, id, ttl, key);
+        }
+        return search;
+    }
+
+    /**
+     * Stops collecting hits for a search and caches its answer.
+     */
+    void finish(Search search) {
+        if (searches.remove(search.id) == null) {
+            return; // Answered from the cache
+        }
+        List<InetSocketAddress> holders = search.holders();
+        holders.removeAll(links.localHolders(search.key));
+        if (holders.isEmpty()) {
+            cache.addNegative(search.key);
+        } else {
+            cache.addHolders(search.key, holders);
+        }
+    }
+
+    /**
+     * Handles a query from a neighbor: answers it if this peer holds the key or knows who does,
+     * and passes it on with one hop less unless the cache answered it or it was seen before.
+     *
+     * @return false if the query was a copy of one seen before.
+     */
+    boolean handleQuery(N from, long id, int hopsLeft, String key) {
+        if (!seen.add(id)) {
+            return false;
+        }
+        synchronized (reversePaths) {
+            reversePaths.put(id, from);
+        }
+        List<InetSocketAddress> holders = new ArrayList<>(links.localHolders(key));
+        List<InetSocketAddress> cached = cache.get(key);
+        if (cached != null) {
+            holders.addAll(cached);
+        }
+        if (!holders.isEmpty()) {
+            links.sendHit(from, id, key, holders);
+        }
+        if (cached == null && hopsLeft > 1) {
+            for (N neighbor : links.neighbors()) {
+                if (!neighbor.equals(from)) {
+                    links.sendQuery(neighbor, id, hopsLeft - 1, key);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a hit from a neighbor: caches it and hands it to the search that asked, or sends
+     * it on toward the peer that asked.
+     *
+     * @return false if the query it answers is no longer known here.
+     */
+    boolean handleHit(long id, String key, List<InetSocketAddress> holders) {
+        cache.addHolders(key, holders);
+        Search search = searches.get(id);
+        if (search != null) {
+            search.add(holders);
+            return true;
+        }
+        N back;
+        synchronized (reversePaths) {
+            back = reversePaths.get(id);
+        }
+        if (back == null) {
+            return false;
+        }
+        links.sendHit(back, id, key, holders);
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+package peer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kademlia routing table of a peer in the structured overlay. Node IDs are 64 bit; the distance
+ * between two IDs is their XOR, compared unsigned.
+ * <p>
+ * Contacts are sorted into 64 buckets by the highest bit in which their ID differs from this
+ * peer's, so bucket i covers the distances [2^i, 2^(i+1)) and every bucket halves the remaining
+ * ID space. A bucket holds at most k contacts, least recently seen first. A full bucket keeps its
+ * contacts and ignores newcomers: contacts that stayed up for long are the likeliest to stay up,
+ * and ones that stop answering are removed, which makes room again.
+ */
+class RoutingTable {
+    private final long selfId;
+    private final int k;
+    // Allocated on first use, most buckets of a large network stay empty
+    private final Contact[][] buckets = new Contact[64][]; // guarded by this
+    private final int[] sizes = new int[64]; // guarded by this
+    private int size = 0; // guarded by this
+
+    /**
+     * @param selfId This peer's node ID.
+     * @param k      How many contacts a bucket holds, and how many a lookup returns.
+     */
+    RoutingTable(long selfId, int k) {
+        this.selfId = selfId;
+        this.k = k;
+    }
+
+    long getSelfId() {
+        return selfId;
+    }
+
+    /**
+     * Records that a contact answered or sent a query: moves it to the end of its bucket, or adds
+     * it if the bucket has room.
+     *
+     * @return false if the contact is this peer or its bucket is full.
+     */
+    synchronized boolean seen(Contact contact) {
+        if (contact.getId() == selfId) {
+            return false;
+        }
+        int index = bucketOf(contact.getId());
+        Contact[] bucket = buckets[index];
+        if (bucket == null) {
+            bucket = buckets[index] = new Contact[k];
+        }
+        int count = sizes[index];
+        for (int i = 0; i < count; i++) {
+            if (bucket[i].getId() == contact.getId()) {
+                // Most recently seen last; also takes the contact's current address
+                System.arraycopy(bucket, i + 1, bucket, i, count - i - 1);
+                bucket[count - 1] = contact;
+                return true;
+            }
+        }
+        if (count == k) {
+            return false;
+        }
+        bucket[count] = contact;
+        sizes[index]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * Forgets a contact that did not answer.
+     */
+    synchronized void remove(long id) {
+        if (id == selfId) {
+            return;
+        }
+        int index = bucketOf(id);
+        Contact[] bucket = buckets[index];
+        int count = sizes[index];
+        for (int i = 0; i < count; i++) {
+            if (bucket[i].getId() == id) {
+                System.arraycopy(bucket, i + 1, bucket, i, count - i - 1);
+                bucket[count - 1] = null;
+                sizes[index]--;
+                size--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The known contacts closest to the target, closest first.
+     */
+    synchronized List<Contact> closest(long target, int count) {
+        // Insertion into a short sorted array; count is small and most contacts are rejected at once
+        Contact[] best = new Contact[count];
+        int found = 0;
+        for (int index = 0; index < 64; index++) {
+            Contact[] bucket = buckets[index];
+            for (int i = 0; i < sizes[index]; i++) {
+                Contact contact = bucket[i];
+                if (found == count && !closer(contact.getId(), best[count - 1].getId(), target)) {
+                    continue;
+                }
+                int position = found == count ? count - 1 : found++;
+                while (position > 0 && closer(contact.getId(), best[position - 1].getId(), target)) {
+                    best[position] = best[position - 1];
+                    position--;
+                }
+                best[position] = contact;
+            }
+        }
+        List<Contact> closest = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            closest.add(best[i]);
+        }
+        return closest;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return true if <code>a</code> is closer to the target than <code>b</code>.
+     */
+    static boolean closer(long a, long b, long target) {
+        return Long.compareUnsigned(a ^ target, b ^ target) < 0;
+    }
+
+    static String formatId(long id) {
+        return String.format("%016x", id);
+    }
+
+    /**
+     * Parses an ID as printed by {@link #formatId(long)}.
+     *
+     * @throws NumberFormatException If it is not up to 16 hex digits.
+     */
+    static long parseId(String id) {
+        return Long.parseUnsignedLong(id, 16);
+    }
+
+    private int bucketOf(long id) {
+        return 63 - Long.numberOfLeadingZeros(id ^ selfId);
+    }
+}
@@ -0,0 +1,71 @@
+package peer;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the IDs of recently seen gossip messages in constant memory, so a message that
+ * reaches a peer again over another path is dropped instead of being forwarded in circles.
+ * <p>
+ * The IDs are kept in two open-addressing tables of <code>capacity</code> entries each: new IDs
+ * go to the current one, and once it is full the older table is cleared and becomes the current
+ * one. Every ID is remembered for at least the next <code>capacity</code> messages, long enough
+ * for all copies of a message to die out, and unlike a Bloom filter a new message is never
+ * mistaken for a seen one. ID 0 marks a free slot and is never a valid ID.
+ */
+class SeenMessages {
+    private final int capacity;
+    private final int mask;
+    private long[] current; // guarded by this
+    private long[] previous; // guarded by this
+    private int currentSize = 0; // guarded by this
+
+    /**
+     * @param capacity How many IDs are remembered at least.
+     */
+    SeenMessages(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        // A power of two at least twice the capacity, so probe sequences stay short
+        int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.current = new long[tableSize];
+        this.previous = new long[tableSize];
+    }
+
+    /**
+     * Records a message ID.
+     *
+     * @return true if the ID was not seen before and the message should be handled.
+     */
+    synchronized boolean add(long id) {
+        if (id == 0 || contains(current, id) || contains(previous, id)) {
+            return false;
+        }
+        if (currentSize == capacity) {
+            long[] oldest = previous;
+            Arrays.fill(oldest, 0);
+            previous = current;
+            current = oldest;
+            currentSize = 0;
+        }
+        int slot = slotOf(id);
+        while (current[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        current[slot] = id;
+        currentSize++;
+        return true;
+    }
+
+    private boolean contains(long[] table, long id) {
+        for (int slot = slotOf(id); table[slot] != 0; slot = (slot + 1) & mask) {
+            if (table[slot] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int slotOf(long id) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
@@ -0,0 +1,715 @@
+package peer;
+
+import common.FrameReader;
+import common.FrameWriter;
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A peer's connection to the central server: joins the network through it, keeps the peer's lease
+ * alive with heartbeats, reports the peer's neighbors, and keeps a membership view from the
+ * updates the server pushes. A lost connection is reconnected in the background, and the server
+ * resumes the peer's registration with the session token it gave.
+ */
+class ServerSession {
+    private static final int serverPort = Integer.getInteger("peer.serverPort", 9090); // Central server port
+    // Bounds connecting to the central server and waiting for each of its replies while joining
+    private static final int serverTimeoutMillis = Integer.getInteger("peer.serverTimeoutMs", 5000);
+    // Keeps each peer's lease on the server alive; the server drops peers that stay silent for too long
+    private static final long heartbeatIntervalMillis = Long.getLong("peer.heartbeatMs", 5000);
+    // How many peers the server is asked to suggest; all of them are tried at once
+    private static final int joinCandidates = Integer.getInteger("peer.joinCandidates", 3);
+    // How often a busy server's "retry after" is honored before giving up on joining
+    private static final int serverRetries = Integer.getInteger("peer.serverRetries", 20);
+    // Waits between attempts to reconnect after losing the server: doubling from the initial wait up to the longest
+    private static final long reconnectInitialMillis = Long.getLong("peer.reconnect.initialMs", 500);
+    private static final long reconnectMaxMillis = Long.getLong("peer.reconnect.maxMs", 8000);
+
+    /**
+     * The peer the session joins to the network.
+     */
+    interface Overlay {
+        /**
+         * @return The port the peer accepts peer connections on.
+         */
+        int listenerPort();
+
+        /**
+         * @return The listener addresses of the peer's neighbors.
+         */
+        List<InetSocketAddress> neighbors();
+
+        /**
+         * @return true once the peer has had a neighbor or learned that it is the first peer.
+         */
+        boolean hasJoined();
+
+        /**
+         * Connects to the peers the server suggested for joining.
+         */
+        void join(List<InetSocketAddress> suggestedPeers);
+
+        /**
+         * Called when the server said this is the first peer in the network.
+         */
+        void joinedAsFirst();
+
+        /**
+         * Called with the server's answer to {@link #requestPeers}.
+         */
+        void peersSuggested(List<InetSocketAddress> suggestedPeers);
+    }
+
+    private final String serverIPAddress; // Central server IP address
+    private final Overlay overlay;
+    private final ScheduledExecutorService scheduler;
+    private final PrintStream console;
+    // The shard of a sharded central server that registers this peer, null until a shard redirects
+    private InetSocketAddress serverShard;
+    private volatile boolean isConnectedToServer = false; // Track connection status
+    private volatile boolean closed = false; // Set once the peer quits, so a lost server is not reconnected
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    // Lets the server resume this peer's registration after reconnecting, 0 if it gave none
+    private volatile long sessionToken = 0;
+    private Socket serverSocket; // The connection to the central server
+    private BufferedReader serverInput; // Text protocol
+    private BufferedWriter serverOutput;
+    private FrameReader serverFrameReader; // Framed protocol
+    private FrameWriter serverFrameWriter;
+    // Listener addresses ("ip:port") of all peers in the network, kept current by the server's pushes
+    private final Set<String> membershipView = ConcurrentHashMap.newKeySet();
+    private volatile long membershipSequence = -1;
+    private ScheduledFuture<?> heartbeatTask;
+
+    private final Metrics.Counter serverRetriesTaken;
+    private final Metrics.Counter serverReconnects;
+    private final Metrics.Counter sessionsResumed;
+
+    /**
+     * @param serverIPAddress The central server's IP address.
+     * @param overlay         The peer the session joins to the network.
+     * @param scheduler       Sends the heartbeats.
+     * @param metrics         Where retries, reconnects and resumed sessions are counted.
+     * @param console         Where status messages are printed.
+     */
+    ServerSession(String serverIPAddress, Overlay overlay, ScheduledExecutorService scheduler, Metrics metrics,
+                  PrintStream console) {
+        this.serverIPAddress = serverIPAddress;
+        this.overlay = overlay;
+        this.scheduler = scheduler;
+        this.console = console;
+        this.serverRetriesTaken = metrics.counter("server.retries");
+        this.serverReconnects = metrics.counter("server.reconnects");
+        this.sessionsResumed = metrics.counter("server.sessions_resumed");
+        metrics.gauge("membership.size", membershipView::size);
+    }
+
+    /**
+     * @return true while the peer is connected to the central server.
+     */
+    boolean isConnected() {
+        return isConnectedToServer;
+    }
+
+    /**
+     * Attempts to connect to the central server, preferring the framed protocol. While the server
+     * is too busy to take the peer, waits as long as it asks plus up to half of that again at
+     * random, so peers it turned away at the same moment do not all come back together. A sharded
+     * server may instead name the shard to join, which is tried right away; once that shard
+     * cannot be reached the server the peer was started with is asked again.
+     * <p>
+     * After losing the server the peer comes back with its session token, and the server resumes
+     * its registration in place; without one it joins anew but keeps its neighbors.
+     */
+    synchronized void connect() {
+        if (isConnectedToServer) {
+            return; // Reconnected meanwhile
+        }
+        for (int attempt = 0; ; attempt++) {
+            InetSocketAddress shard = serverShard;
+            try {
+                if (!Peer.useFramedProtocol || !connect(true)) {
+                    connect(false);
+                }
+                if (isConnectedToServer || shard == null || attempt >= serverRetries) {
+                    return;
+                }
+                // The shard failed, the entry server knows which one registers this peer now
+                serverShard = null;
+                console.println("Trying the central server at " + serverIPAddress + ":" + serverPort + " again.");
+            } catch (RetryLaterException e) {
+                if (attempt >= serverRetries) {
+                    console.println("The central server is busy. Giving up after " + attempt + " retries.");
+                    return;
+                }
+                if (e.serverShard != null) {
+                    serverShard = e.serverShard;
+                    console.println("Redirected to the central server shard at " + Peer.memberKey(serverShard));
+                    continue;
+                }
+                long delayMillis = e.retryAfterMillis + ThreadLocalRandom.current().nextLong(e.retryAfterMillis / 2 + 1);
+                console.println("The central server is busy, retrying in " + delayMillis + " ms.");
+                serverRetriesTaken.increment();
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown when the central server turned the connection away and asked to retry later, or to
+     * join another shard.
+     */
+    private static final class RetryLaterException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+        private final InetSocketAddress serverShard; // null to retry the same server
+
+        RetryLaterException(long retryAfterMillis) {
+            super("Server busy, retry after " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+            this.serverShard = null;
+        }
+
+        RetryLaterException(InetSocketAddress serverShard) {
+            super("Join the server shard at " + serverShard);
+            this.retryAfterMillis = 0;
+            this.serverShard = serverShard;
+        }
+    }
+
+    /**
+     * Attempts to connect to the central server with the given protocol.
+     *
+     * @param framed Whether to request the framed protocol.
+     * @return false if the server did not accept the framed protocol (only possible when requested).
+     * @throws RetryLaterException If the server is too busy and asked to retry later.
+     */
+    private boolean connect(boolean framed) throws RetryLaterException {
+        serverFrameReader = null;
+        serverFrameWriter = null;
+        try {
+            // Establish connection to the central server
+            serverSocket = new Socket();
+            serverSocket.connect(serverShard == null
+                    ? new InetSocketAddress(serverIPAddress, serverPort)
+                    : serverShard, serverTimeoutMillis);
+            serverSocket.setSoTimeout(serverTimeoutMillis); // Until joined, a server that stops answering is given up
+            InputStream input = serverSocket.getInputStream();
+            OutputStream output = new BufferedOutputStream(serverSocket.getOutputStream());
+
+            if (framed) {
+                output.write((Frames.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+                output.flush();
+                String reply = Frames.readLine(input);
+                throwIfRetryAfter(reply);
+                if (!Frames.PROTOCOL_LINE.equals(reply)) {
+                    // An older server that only speaks the text protocol
+                    serverSocket.close();
+                    return false;
+                }
+            }
+
+            int outgoingPort = serverSocket.getLocalPort();
+            console.println("Connected to the central server on port: " + Peer.BOLD_UNDERLINE + outgoingPort + Peer.RESET_FORMATTING);
+
+            if (framed) {
+                // The membership pushes list every peer, so they may be as long as a frame can be
+                serverFrameReader = new FrameReader(new BufferedInputStream(input), Frames.MAX_FRAME_LENGTH);
+                serverFrameWriter = new FrameWriter(output);
+                joinFramed();
+            } else {
+                serverInput = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                serverOutput = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                joinText();
+            }
+            // Only now, so no topology report gets in ahead of the join
+            isConnectedToServer = true;
+            if (overlay.hasJoined() || !overlay.neighbors().isEmpty()) {
+                reportTopology(); // Neighbors may have changed while the server was unreachable
+            }
+
+            // Ask the server to keep pushing membership changes over this connection
+            sendCommand(Opcode.SUBSCRIBE, "subscribe");
+            startHeartbeats();
+            serverSocket.setSoTimeout(0); // The pushes come whenever the membership changes
+            new Thread(this::listen, "server-listener-" + overlay.listenerPort()).start();
+        } catch (RetryLaterException e) {
+            isConnectedToServer = false;
+            Peer.closeQuietly(serverSocket);
+            throw e;
+        } catch (IOException e) {
+            isConnectedToServer = false;
+            Peer.closeQuietly(serverSocket);
+            console.println("Failed to connect to the central server: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Registers with the server in the text protocol and connects to the peer it suggests.
+     */
+    private void joinText() throws IOException {
+        // Send the peer's listener port to the server
+        serverOutput.write(overlay.listenerPort() + "\n"); // Send peer's listener port
+        serverOutput.flush();
+        console.println("Server is aware of this clients peerListener for peer connections");
+
+        // Handle initial server response
+        String response = serverInput.readLine();
+        throwIfRetryAfter(response);
+        InetSocketAddress suggestedPeer = parseConnectTo(response);
+        if (!overlay.neighbors().isEmpty()) {
+            console.println("Rejoined the central server, keeping the current neighbors.");
+        } else if (suggestedPeer != null) {
+            overlay.join(Collections.singletonList(suggestedPeer)); // Attempt to connect to the suggested peer
+        } else {
+            console.println(response); // "You are the first peer in the network."
+            overlay.joinedAsFirst();
+        }
+    }
+
+    /**
+     * Registers with the server in the framed protocol and connects to the peers it suggests, or
+     * resumes the registration with the session token from an earlier connection. A peer that
+     * still has neighbors when it has to join anew keeps them and ignores the suggestions.
+     */
+    private void joinFramed() throws IOException {
+        // Send the peer's listener port to the server
+        long token = sessionToken;
+        ByteBuffer hello = serverFrameWriter.begin(token != 0 ? Opcode.RESUME : Opcode.HELLO);
+        if (token != 0) {
+            hello.putLong(token);
+        }
+        hello.putInt(overlay.listenerPort());
+        hello.putInt(joinCandidates);
+        hello.putInt(Frames.FEATURE_SHARD_REDIRECT | Frames.FEATURE_SESSION);
+        serverFrameWriter.end();
+        console.println("Server is aware of this clients peerListener for peer connections");
+
+        // Handle initial server response
+        Opcode response = serverFrameReader.next();
+        if (response == Opcode.RESUMED) {
+            sessionToken = serverFrameReader.payload().getLong();
+            sessionsResumed.increment();
+            console.println("Resumed the session with the central server.");
+            return;
+        }
+        if (response == Opcode.SESSION) {
+            sessionToken = serverFrameReader.payload().getLong();
+            response = serverFrameReader.next();
+        }
+        if ((response == Opcode.CONNECT_TO || response == Opcode.FIRST_PEER) && !overlay.neighbors().isEmpty()) {
+            console.println("Rejoined the central server, keeping the current neighbors.");
+        } else if (response == Opcode.CONNECT_TO) {
+            ByteBuffer payload = serverFrameReader.payload();
+            List<InetSocketAddress> suggestedPeers = new ArrayList<>();
+            while (payload.hasRemaining()) {
+                suggestedPeers.add(Frames.getAddress(payload));
+            }
+            overlay.join(suggestedPeers);
+        } else if (response == Opcode.FIRST_PEER) {
+            console.println("You are the first peer in the network.");
+            overlay.joinedAsFirst();
+        } else if (response == Opcode.SERVER_AT) {
+            // Another shard of the central server registers this peer
+            throw new RetryLaterException(Frames.getAddress(serverFrameReader.payload()));
+        } else if (response == Opcode.ERROR) {
+            console.println("Error: " + Frames.getString(serverFrameReader.payload()));
+        } else {
+            if (response == null && token != 0) {
+                sessionToken = 0; // An older server that does not know RESUME, join anew next time
+            }
+            throw new IOException("Unexpected reply from the central server: " + response);
+        }
+    }
+
+    /**
+     * Checks for the "Retry after: &lt;ms&gt;" line a busy server sends instead of its reply.
+     *
+     * @param line The line received from the server, may be null.
+     * @throws RetryLaterException If the line asks to retry later.
+     */
+    private static void throwIfRetryAfter(String line) throws RetryLaterException {
+        if (line == null || !line.startsWith(Frames.RETRY_AFTER_PREFIX)) {
+            return;
+        }
+        long retryAfterMillis;
+        try {
+            retryAfterMillis = Long.parseLong(line.substring(Frames.RETRY_AFTER_PREFIX.length()).trim());
+        } catch (NumberFormatException e) {
+            retryAfterMillis = 1000;
+        }
+        throw new RetryLaterException(Math.max(1, retryAfterMillis));
+    }
+
+    /**
+     * Parses the server's "Connect to: &lt;ip&gt; &lt;port&gt;" reply.
+     *
+     * @param response The line received from the server.
+     * @return The suggested peer's listener address, or null if the line is not a connect reply.
+     * @throws IOException If the line is a connect reply without a valid address.
+     */
+    static InetSocketAddress parseConnectTo(String response) throws IOException {
+        if (response == null || !response.startsWith("Connect to:")) {
+            return null;
+        }
+        String[] parts = response.split(" ");
+        if (parts.length != 4) {
+            throw new IOException("Malformed reply from the central server: " + response);
+        }
+        return InetSocketAddress.createUnresolved(parts[2], Peer.parsePort(parts[3]));
+    }
+
+    /**
+     * Sends a command to the central server in whichever protocol is in use.
+     *
+     * @param opcode      The command as a frame.
+     * @param textCommand The command in the text protocol.
+     */
+    private void sendCommand(Opcode opcode, String textCommand) throws IOException {
+        if (serverFrameWriter != null) {
+            synchronized (serverFrameWriter) {
+                serverFrameWriter.write(opcode);
+            }
+        } else {
+            synchronized (serverOutput) {
+                serverOutput.write(textCommand + "\n");
+                serverOutput.flush();
+            }
+        }
+    }
+
+    /**
+     * Tells the server which neighbors this peer has, so it only assigns joiners to peers with a
+     * free neighbor slot.
+     */
+    void reportTopology() {
+        if (!isConnectedToServer) {
+            return;
+        }
+        List<InetSocketAddress> listenerAddresses = overlay.neighbors();
+
+        try {
+            if (serverFrameWriter != null) {
+                synchronized (serverFrameWriter) {
+                    ByteBuffer payload = serverFrameWriter.begin(Opcode.TOPOLOGY);
+                    payload.putInt(listenerAddresses.size());
+                    for (InetSocketAddress neighbor : listenerAddresses) {
+                        payload = serverFrameWriter.ensureRemaining(1 + 16 + 2);
+                        Frames.putAddress(payload, neighbor.getAddress(), neighbor.getPort());
+                    }
+                    serverFrameWriter.end();
+                }
+            } else {
+                StringBuilder report = new StringBuilder("topology");
+                for (InetSocketAddress neighbor : listenerAddresses) {
+                    report.append(' ').append(Peer.memberKey(neighbor));
+                }
+                sendCommand(null, report.toString());
+            }
+        } catch (IOException e) {
+            // The server listener notices the lost connection
+        }
+    }
+
+    /**
+     * Asks the server for peers to replace lost neighbors; it answers with a CONNECT_TO, which is
+     * passed to {@link Overlay#peersSuggested}.
+     *
+     * @return false if this peer is not connected to a server that speaks the framed protocol.
+     */
+    boolean requestPeers(int count) {
+        FrameWriter writer = serverFrameWriter;
+        if (!isConnectedToServer || writer == null) {
+            return false;
+        }
+        try {
+            synchronized (writer) {
+                writer.begin(Opcode.PEERS).putInt(count);
+                writer.end();
+            }
+            return true;
+        } catch (IOException e) {
+            return false; // The server listener notices the lost connection
+        }
+    }
+
+    /**
+     * Sends a heartbeat to the server every interval while connected.
+     */
+    private void startHeartbeats() {
+        stopHeartbeats();
+        heartbeatTask = scheduler.scheduleAtFixedRate(() -> {
+            if (!isConnectedToServer) {
+                return;
+            }
+            try {
+                sendCommand(Opcode.HEARTBEAT, "heartbeat");
+            } catch (IOException e) {
+                // The server listener notices the lost connection
+            }
+        }, heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopHeartbeats() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+    }
+
+    /**
+     * Reads messages pushed by the central server after the handshake until the connection closes,
+     * then reconnects unless the peer is leaving.
+     */
+    private void listen() {
+        Socket socket = serverSocket;
+        FrameReader frames = serverFrameReader;
+        String reason = "closed by the server";
+        try {
+            if (frames != null) {
+                Opcode opcode;
+                while ((opcode = frames.next()) != null) {
+                    try {
+                        handleFrame(opcode, frames.payload());
+                    } catch (BufferUnderflowException e) {
+                        throw new IOException("Frame too short: " + opcode, e);
+                    }
+                }
+            } else {
+                String message;
+                while ((message = serverInput.readLine()) != null) {
+                    handleMessage(message);
+                }
+            }
+        } catch (IOException e) {
+            reason = e.getMessage();
+        } finally {
+            boolean lost = isConnectedToServer;
+            isConnectedToServer = false;
+            Peer.closeQuietly(socket);
+            if (lost && !closed) {
+                console.println("Lost connection to the central server: " + reason);
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Reconnects to the central server in the background until it succeeds or the peer leaves.
+     * The waits between attempts grow exponentially from <code>peer.reconnect.initialMs</code>
+     * (default 500) up to <code>peer.reconnect.maxMs</code> (default 8000, well within the
+     * server's lease, so a restarted server still holds the peer's restored registration). Each
+     * wait is drawn at random from the upper half of its range, so the peers that lost the server
+     * together do not all come back at once.
+     */
+    private void reconnect() {
+        if (!reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread reconnector = new Thread(() -> {
+            try {
+                for (int attempt = 0; !closed && !isConnectedToServer; attempt++) {
+                    long delayMillis = reconnectDelayMillis(attempt);
+                    console.println("Reconnecting to the central server in " + delayMillis + " ms.");
+                    Thread.sleep(delayMillis);
+                    if (!closed) {
+                        connect();
+                    }
+                }
+                if (isConnectedToServer) {
+                    serverReconnects.increment();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                reconnecting.set(false);
+            }
+            if (!closed && !isConnectedToServer) {
+                reconnect(); // Lost again before this attempt ended
+            }
+        }, "server-reconnect-" + overlay.listenerPort());
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    /**
+     * @return How long to wait before the given reconnect attempt, counting from 0.
+     */
+    static long reconnectDelayMillis(int attempt) {
+        long ceiling = Math.min(reconnectMaxMillis, reconnectInitialMillis << Math.min(attempt, 30));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Applies a message pushed by the central server.
+     * "MEMBERS seq ip:port..." replaces the membership view, "DELTA seq +ip:port -ip:port..." updates it.
+     *
+     * @param message The message from the server.
+     */
+    private void handleMessage(String message) {
+        String[] parts = message.split(" ");
+        boolean membership = parts[0].equals("MEMBERS") || parts[0].equals("DELTA");
+        long sequence = 0;
+        if (membership) {
+            try {
+                sequence = Long.parseLong(parts.length >= 2 ? parts[1] : "");
+            } catch (NumberFormatException e) {
+                console.println("Ignoring malformed message from the central server: " + message);
+                return;
+            }
+        }
+        if (parts[0].equals("MEMBERS")) {
+            membershipView.clear();
+            for (int i = 2; i < parts.length; i++) {
+                membershipView.add(parts[i]);
+            }
+            membershipSequence = sequence;
+        } else if (parts[0].equals("DELTA")) {
+            // Changes are idempotent, so a delta that overlaps the initial view is applied as is
+            for (int i = 2; i < parts.length; i++) {
+                if (parts[i].startsWith("+")) {
+                    membershipView.add(parts[i].substring(1));
+                } else if (parts[i].startsWith("-")) {
+                    membershipView.remove(parts[i].substring(1));
+                }
+            }
+            membershipSequence = sequence;
+        } else {
+            console.println("Message from the central server: " + message);
+        }
+    }
+
+    /**
+     * Applies a frame pushed by the central server, the framed equivalent of {@link #handleMessage(String)}.
+     *
+     * @param opcode  The frame's opcode.
+     * @param payload The frame's payload.
+     */
+    private void handleFrame(Opcode opcode, ByteBuffer payload) throws IOException {
+        switch (opcode) {
+            case MEMBERS: {
+                long sequence = payload.getLong();
+                int count = Frames.getCount(payload, Frames.MIN_ADDRESS_LENGTH);
+                membershipView.clear();
+                for (int i = 0; i < count; i++) {
+                    membershipView.add(Peer.memberKey(Frames.getAddress(payload)));
+                }
+                membershipSequence = sequence;
+                break;
+            }
+            case DELTA: {
+                long sequence = payload.getLong();
+                int count = Frames.getCount(payload, 1 + Frames.MIN_ADDRESS_LENGTH);
+                for (int i = 0; i < count; i++) {
+                    boolean joined = payload.get() == 1;
+                    String member = Peer.memberKey(Frames.getAddress(payload));
+                    if (joined) {
+                        membershipView.add(member);
+                    } else {
+                        membershipView.remove(member);
+                    }
+                }
+                membershipSequence = sequence;
+                break;
+            }
+            case NOTICE:
+                console.println("Message from the central server: " + Frames.getString(payload));
+                break;
+            case CONNECT_TO: {
+                // The answer to a PEERS request
+                List<InetSocketAddress> suggestedPeers = new ArrayList<>();
+                while (payload.hasRemaining()) {
+                    suggestedPeers.add(Frames.getAddress(payload));
+                }
+                overlay.peersSuggested(suggestedPeers);
+                break;
+            }
+            default:
+                console.println("Unexpected message from the central server: " + opcode);
+        }
+    }
+
+    /**
+     * Disconnects from the central server for good: it is not reconnected after this.
+     */
+    void disconnect() {
+        closed = true;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                isConnectedToServer = false;
+                stopHeartbeats();
+                sendCommand(Opcode.QUIT, "quit");
+                serverSocket.close();
+                console.println("Disconnected from the central server.");
+            }
+        } catch (IOException e) {
+            console.println("Error disconnecting from the server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Displays the membership view pushed by the central server.
+     */
+    void displayMembers() {
+        if (membershipSequence < 0) {
+            console.println("No membership view received from the server.");
+        } else {
+            console.println("Peers in the network (update " + membershipSequence + "):");
+            for (String member : membershipView) {
+                console.println("- " + member);
+            }
+        }
+    }
+
+    /**
+     * Displays whether this peer is connected to the central server, and how.
+     */
+    void displayStatus() {
+        String server = serverShard != null ? Peer.memberKey(serverShard) : serverIPAddress + ":" + serverPort;
+        Socket socket = serverSocket;
+        if (!isConnectedToServer || socket == null) {
+            console.println("Not connected to the central server at " + server
+                    + (reconnecting.get() ? ", reconnecting." : ". Use reconnect to try again."));
+            return;
+        }
+        console.println("Connected to the central server at " + server + " from port " + socket.getLocalPort()
+                + " (" + (serverFrameWriter != null ? "framed" : "text") + " protocol"
+                + (sessionToken != 0 ? ", session can be resumed" : "") + ").");
+        console.println("Membership view: " + membershipView.size() + " peers (update " + membershipSequence + ").");
+    }
+}
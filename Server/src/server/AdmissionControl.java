@@ -0,0 +1,75 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how fast the server takes on new connections, so a join storm (e.g. every peer
+ * restarting at once) is served at a steady rate instead of swamping the handshake path and
+ * the log.
+ * <p>
+ * A connection is admitted if the token bucket has a token and fewer than <code>maxPending</code>
+ * handshakes are in progress; the bucket refills at <code>ratePerSecond</code> up to
+ * <code>burst</code> tokens. Every other connection is rejected right away with a time to retry
+ * after. Rejected connections are handed consecutive retry slots one token apart, so a storm
+ * comes back spread over time at the rate the server can take instead of all at once.
+ */
+class AdmissionControl {
+    private final double tokensPerNano;
+    private final double burst;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private double tokens; // guarded by this
+    private long lastRefillNanos = System.nanoTime(); // guarded by this
+    // The earliest time not yet promised to a rejected connection
+    private long nextRetrySlotNanos = lastRefillNanos; // guarded by this
+
+    /**
+     * @param ratePerSecond Handshakes admitted per second on average.
+     * @param burst         Handshakes admitted at once after a quiet period.
+     * @param maxPending    Handshakes in progress at most.
+     */
+    AdmissionControl(int ratePerSecond, int burst, int maxPending) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.maxPending = maxPending;
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Admits a new connection or tells it when to come back. An admitted connection must be
+     * passed to {@link #release()} once its handshake is over.
+     *
+     * @return 0 if the connection is admitted, otherwise how many milliseconds it should wait.
+     */
+    synchronized long tryAdmit() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+
+        if (tokens >= 1 && pending.get() < maxPending) {
+            tokens -= 1;
+            pending.incrementAndGet();
+            return 0;
+        }
+
+        long tokenIntervalNanos = (long) (1 / tokensPerNano);
+        long retryAt = Math.max(nextRetrySlotNanos, now + (long) ((1 - Math.min(tokens, 1)) / tokensPerNano));
+        nextRetrySlotNanos = retryAt + tokenIntervalNanos;
+        return Math.max(1, (retryAt - now) / 1_000_000);
+    }
+
+    /**
+     * Ends the handshake of an admitted connection, whether it joined or not.
+     */
+    void release() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * @return The number of handshakes in progress.
+     */
+    int pending() {
+        return pending.get();
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+/**
+ * Writes log records to a file on a background thread, so connection threads never wait for
+ * the disk. Records go into a bounded ring buffer; a single writer thread drains it, formats
+ * the records and writes and flushes them as one batch.
+ * <p>
+ * When the buffer is full the overflow policy decides: {@link #DROP} discards the record and
+ * counts it (the count is written to the log later), {@link #BLOCK} waits for space.
+ */
+class AsyncLogHandler extends Handler {
+    static final String DROP = "drop";
+    static final String BLOCK = "block";
+
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private final BlockingQueue<LogRecord> buffer;
+    private final boolean blockWhenFull;
+    private final Writer output;
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param fileName       The file to append to.
+     * @param capacity       How many records may wait for the writer.
+     * @param overflowPolicy {@link #DROP} or {@link #BLOCK}.
+     * @throws IOException If the file could not be opened.
+     */
+    AsyncLogHandler(String fileName, int capacity, String overflowPolicy) throws IOException {
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.blockWhenFull = BLOCK.equalsIgnoreCase(overflowPolicy);
+        this.output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8));
+        setFormatter(new SimpleFormatter());
+
+        this.writerThread = new Thread(this::writeLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // The caller is found by walking the stack, which only works on the logging thread
+        record.getSourceClassName();
+
+        if (blockWhenFull) {
+            try {
+                buffer.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    int queuedRecords() {
+        return buffer.size();
+    }
+
+    /**
+     * Records are flushed by the writer thread after every batch.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes the remaining records and closes the file.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<LogRecord> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (!closed) {
+                try {
+                    batch.add(buffer.take());
+                } catch (InterruptedException e) {
+                    break; // Closing, write what is left below
+                }
+                buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+                write(batch);
+                batch.clear();
+            }
+
+            buffer.drainTo(batch);
+            write(batch);
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                reportError("Failed to close log file", e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    private void write(List<LogRecord> batch) {
+        Formatter formatter = getFormatter();
+        try {
+            long droppedRecords = dropped.getAndSet(0);
+            if (droppedRecords > 0) {
+                LogRecord notice = new LogRecord(Level.WARNING, droppedRecords + " log records were dropped because the log buffer was full");
+                notice.setLoggerName(AsyncLogHandler.class.getName());
+                notice.setSourceClassName(AsyncLogHandler.class.getName());
+                output.write(formatter.format(notice));
+            }
+            for (LogRecord record : batch) {
+                output.write(formatter.format(record));
+            }
+            output.flush();
+        } catch (Exception e) {
+            reportError("Failed to write log records", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+}
@@ -1,20 +1,192 @@
 package server;
 
+import common.ConnectionExecutors;
+import common.Frames;
+import common.Metrics;
+import common.MetricsEndpoint;
+
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
 
 public class Central_Server {
-    static int serverPort = 9090;
-    private static final ConcurrentMap<InetSocketAddress, PeerInfoRecord> connectedPeers = new ConcurrentHashMap<>();
+    private static final Logger LOGGER = Logger.getLogger(Central_Server.class.getName());
+    private static final Metrics metrics = new Metrics("p2p_server");
+    private static final Metrics.Counter joins = metrics.counter("joins");
+    private static final Metrics.Counter leaves = metrics.counter("leaves");
+    private static final Metrics.Histogram broadcastDuration = metrics.histogram("broadcast.duration_us");
+    static int serverPort = Integer.getInteger("server.port", 9090);
+    // "threads" for one PeerHandler thread per peer, "virtual" for one PeerHandler virtual thread per peer,
+    // "nio" for the selector based engine
+    static String serverEngine = System.getProperty("server.engine", "threads");
+    static int eventLoopCount = Integer.getInteger("server.eventLoops", Runtime.getRuntime().availableProcessors());
+    private static final PeerRegistry connectedPeers = new PeerRegistry();
+    // Reported neighbors per peer, used to assign joiners to peers with a free neighbor slot
+    private static final TopologyIndex topology = new TopologyIndex(Integer.getInteger("server.maxDegree", 3));
+    // The most peers a joiner is offered to connect to in parallel
+    private static final int joinCandidates = Integer.getInteger("server.joinCandidates", 3);
+    private static final Metrics.Counter assignedToFreePeer = metrics.counter("assignments.free_peer");
+    private static final Metrics.Counter assignedToAnyPeer = metrics.counter("assignments.any_peer");
+    private static final Metrics.Counter assignedToRemotePeer = metrics.counter("assignments.remote_peer");
+    private static final PeerBroadcaster broadcaster = new PeerBroadcaster(
+            Integer.getInteger("server.broadcast.maxInFlight", 256),
+            Integer.getInteger("server.broadcast.connectTimeoutMs", 1000),
+            Long.getLong("server.broadcast.deadlineMs", 10000));
+    // A subscriber with server.push.maxQueued pushes waiting, or whose write takes server.push.stallMs, is disconnected
+    private static final MembershipPublisher membershipPublisher = new MembershipPublisher(
+            Integer.getInteger("server.push.maxQueued", 64),
+            Long.getLong("server.push.stallMs", 5000),
+            Integer.getInteger("server.push.threads", 16));
+    // Peers that stop sending heartbeats for server.leaseMs are removed
+    private static final long leaseMillis = Long.getLong("server.leaseMs", 15000);
+    private static final LeaseWheel<PeerSession> leaseWheel = new LeaseWheel<>(
+            Long.getLong("server.leaseTickMs", 500), 512, leaseMillis, PeerSession::expire);
+    // Admits at most server.admission.rate handshakes per second, rejecting the rest with a time to retry
+    private static final AdmissionControl admission = new AdmissionControl(
+            Integer.getInteger("server.admission.rate", 500),
+            Integer.getInteger("server.admission.burst", 100),
+            Integer.getInteger("server.admission.maxPending", 256));
+    private static final Metrics.Counter rejectedConnections = metrics.counter("admission.rejected");
+    // Persists the registry across restarts, null if disabled or not opened (e.g. in benchmarks)
+    private static volatile RegistryStore registryStore;
+    // The other servers when the registry is split by server.shards, null when this server holds all of it
+    private static volatile ShardCluster shardCluster;
+    // The session of every framed peer by its token, so a peer that lost its connection can resume it
+    private static final ConcurrentHashMap<Long, PeerSession> sessions = new ConcurrentHashMap<>();
+    private static final SecureRandom sessionTokens = new SecureRandom();
+    // Peers restored after a restart by listener address, until they resume their session or their lease runs out
+    private static final ConcurrentHashMap<InetSocketAddress, PeerSession> restoredPeers = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
+        ServerLogging.initialize();
+        startShards();
+        membershipPublisher.start(Long.getLong("server.push.intervalMs", 100));
+        leaseWheel.start();
+        restoreRegistry();
+        startMetrics();
+
+        if ("nio".equalsIgnoreCase(serverEngine)) {
+            runNioServer();
+        } else {
+            runThreadedServer(createPeerHandlerExecutor());
+        }
+    }
+
+    /**
+     * Joins the servers listed in <code>server.shards</code> ("host:port,host:port...", the same
+     * list on every server, this one included), which split the registry between them. See
+     * {@link ShardCluster}.
+     */
+    private static void startShards() {
+        String shards = System.getProperty("server.shards", "");
+        if (shards.isEmpty()) {
+            return;
+        }
+        ShardCluster cluster;
+        try {
+            cluster = ShardCluster.parse(shards, serverPort,
+                    Integer.getInteger("server.shardSampleSize", 64),
+                    Integer.getInteger("server.shardTimeoutMs", 1000));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid server.shards: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        cluster.start(Long.getLong("server.shardSyncMs", 1000));
+        metrics.gauge("shards.reachable", cluster::reachableShards);
+        shardCluster = cluster;
+        System.out.println("Sharing the registry with the shards: " + shards);
+    }
+
+    /**
+     * Reloads the peers that were registered when the server last stopped, so joining peers can be
+     * assigned a neighbor right away. Restored peers keep their entry for one lease period; until
+     * then they are handed out like any other peer, and a peer that comes back resumes its entry
+     * (see {@link PeerSession}). The files are <code>server.registryFile</code>
+     * (default "server-registry", or "server-registry-&lt;port&gt;" for a shard; "none" to disable)
+     * with the extensions .dat and .log, rewritten every <code>server.registryCompactMs</code>
+     * (default 60000) so peers that are still alive are restored however long ago they joined.
+     */
+    private static void restoreRegistry() {
+        String baseName = System.getProperty("server.registryFile",
+                shardCluster == null ? "server-registry" : "server-registry-" + serverPort);
+        if ("none".equalsIgnoreCase(baseName)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        RegistryStore store = new RegistryStore(baseName, Integer.getInteger("server.registryLogCapacity", 65536),
+                leaseMillis, connectedPeers);
+        try {
+            Map<InetSocketAddress, PeerInfoRecord> restored = store.open(Long.getLong("server.restoreMaxAgeMs", 600000));
+            for (Map.Entry<InetSocketAddress, PeerInfoRecord> peer : restored.entrySet()) {
+                PeerInfoRecord record = peer.getValue();
+                topology.add(peer.getKey(), record);
+                restoredPeers.put(new InetSocketAddress(record.getAddress(), record.getPeerListenerPort()),
+                        PeerSession.restore(peer.getKey(), record.getPeerListenerPort()));
+            }
+            registryStore = store;
+            store.startCompacting(Long.getLong("server.registryCompactMs", 60000));
+            System.out.println("Restored " + restored.size() + " peers in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Failed to restore the peer registry, starting empty: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the gauges and serves all metrics on 127.0.0.1:<code>server.metricsPort</code>
+     * (default the server port + 1, i.e. 9091; 0 to disable).
+     */
+    private static void startMetrics() {
+        metrics.gauge("peers.active", connectedPeers::size);
+        metrics.gauge("peers.full", topology::fullPeers);
+        metrics.gauge("membership.subscribers", membershipPublisher::subscriberCount);
+        metrics.gauge("log.queue", ServerLogging::queuedRecords);
+        metrics.gauge("admission.pending", admission::pending);
+        metrics.gauge("sessions.open", sessions::size);
+
+        int metricsPort = Integer.getInteger("server.metricsPort", serverPort + 1);
+        if (metricsPort > 0) {
+            try {
+                MetricsEndpoint.start(metrics, metricsPort);
+                System.out.println("Metrics at http://127.0.0.1:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Failed to start the metrics endpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Picks where PeerHandlers run: a virtual thread per peer in "virtual" mode (when the JVM
+     * supports it), otherwise a new platform thread per peer.
+     */
+    private static Executor createPeerHandlerExecutor() {
+        if (ConnectionExecutors.VIRTUAL.equalsIgnoreCase(serverEngine)) {
+            ExecutorService virtualExecutor = ConnectionExecutors.newVirtualThreadExecutor("peer-handler");
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+            System.out.println("Virtual threads are not supported by this JVM, using a thread per peer.");
+        }
+        return handler -> new Thread(handler).start();
+    }
+
+    /**
+     * Runs the server with one blocking {@link PeerHandler} per connected peer.
+     *
+     * @param peerHandlerExecutor Runs each PeerHandler.
+     */
+    private static void runThreadedServer(Executor peerHandlerExecutor) {
         try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
             System.out.println("The Server is on!");
-            System.out.println("See server-logs.txt for logs");
+            System.out.println("See " + ServerLogging.fileName() + " for logs");
 
             // Start a thread to listen for terminal commands
             new Thread(() -> handleServerCommands(serverSocket)).start();
@@ -23,7 +195,12 @@ public class Central_Server {
             while (!serverSocket.isClosed()) {
                 try {
                     Socket PeerSocket = serverSocket.accept();
-                    new Thread(new PeerHandler(PeerSocket)).start();
+                    long retryAfterMillis = admitConnection();
+                    if (retryAfterMillis > 0) {
+                        rejectConnection(PeerSocket, retryAfterMillis);
+                        continue;
+                    }
+                    peerHandlerExecutor.execute(new PeerHandler(PeerSocket));
                 } catch (IOException e) {
                     if (serverSocket.isClosed()) {
                         break; // Exit the loop when the server socket is closed
@@ -42,55 +219,189 @@ public class Central_Server {
     }
 
     /**
-     * Notifies all connected peers with a specific message.
+     * Tells a connection that was not admitted when to retry and closes it, on the accept thread.
+     * Bytes the peer already sent are discarded first, so closing sends a FIN rather than a reset
+     * that could destroy the reply before the peer reads it.
+     */
+    private static void rejectConnection(Socket peerSocket, long retryAfterMillis) {
+        try (Socket socket = peerSocket) {
+            socket.getOutputStream().write((Frames.RETRY_AFTER_PREFIX + retryAfterMillis + "\n").getBytes(StandardCharsets.UTF_8));
+            InputStream input = socket.getInputStream();
+            while (input.available() > 0) {
+                input.skip(input.available());
+            }
+        } catch (IOException e) {
+            // The peer is gone already
+        }
+    }
+
+    /**
+     * Checks whether a new connection may start its handshake now, see {@link AdmissionControl}.
+     * An admitted connection's session calls {@link #handshakeFinished()} when the handshake ends.
+     *
+     * @return 0 if admitted, otherwise how many milliseconds the peer should wait before retrying.
+     */
+    static long admitConnection() {
+        long retryAfterMillis = admission.tryAdmit();
+        if (retryAfterMillis > 0) {
+            rejectedConnections.increment();
+        }
+        return retryAfterMillis;
+    }
+
+    static void handshakeFinished() {
+        admission.release();
+    }
+
+    /**
+     * Runs the server on a fixed number of selector event loops instead of a thread per peer.
+     */
+    private static void runNioServer() {
+        NioServerEngine engine = new NioServerEngine(serverPort, eventLoopCount);
+        System.out.println("The Server is on! (NIO engine, " + eventLoopCount + " event loops)");
+        System.out.println("See " + ServerLogging.fileName() + " for logs");
+
+        // Start a thread to listen for terminal commands
+        new Thread(() -> handleServerCommands(engine)).start();
+
+        try {
+            engine.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notifies all connected peers with a specific message. Peers subscribed to membership
+     * updates get it over their open server connection, the rest are dialed on their listener port.
      *
      * @param message The message to send.
+     * @return How many of the dialed peers were reached.
      */
-    public static void notifyAllPeers(String message) {
-        for (PeerInfoRecord peerInfo : connectedPeers.values()) {
-            try (Socket peerSocket = new Socket(peerInfo.getAddress(), peerInfo.getPeerListenerPort());
-                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(peerSocket.getOutputStream()))) {
+    public static PeerBroadcaster.BroadcastReport notifyAllPeers(String message) {
+        long start = System.nanoTime();
+        int pushed = membershipPublisher.sendToAll(message);
+
+        List<PeerInfoRecord> unsubscribedPeers = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, PeerInfoRecord> peer : connectedPeers.snapshot().getPeers().entrySet()) {
+            if (!membershipPublisher.isSubscribed(peer.getKey())) {
+                unsubscribedPeers.add(peer.getValue());
+            }
+        }
+        PeerBroadcaster.BroadcastReport report = broadcaster.broadcast(unsubscribedPeers, message);
+        broadcastDuration.recordSince(start);
+        System.out.println("Pushed to " + pushed + " subscribed peers. Notified other peers: " + report);
+        return report;
+    }
 
-                // Send the notification message
-                writer.write(message + "\n");
-                writer.flush();
-                System.out.println("Notified peer: " + peerInfo);
+    /**
+     * Starts pushing membership changes to a peer over its server connection.
+     *
+     * @param peerAddress The peer's address as seen by the server.
+     * @param session     The peer's server connection.
+     */
+    static void subscribeToMembership(InetSocketAddress peerAddress, PeerSession session) {
+        membershipPublisher.subscribe(peerAddress, session, connectedPeers);
+    }
 
-            } catch (IOException e) {
-                System.err.println("Failed to notify peer: " + peerInfo + ". Error: " + e.getMessage());
+    static void unsubscribeFromMembership(InetSocketAddress peerAddress) {
+        membershipPublisher.unsubscribe(peerAddress);
+    }
+
+    /**
+     * Issues a session token for a framed peer.
+     *
+     * @return The token, never 0.
+     */
+    static long openSession(PeerSession session) {
+        while (true) {
+            long token = sessionTokens.nextLong();
+            if (token != 0 && sessions.putIfAbsent(token, session) == null) {
+                return token;
             }
         }
     }
 
     /**
-     * Handles terminal commands <b>server side</b> (members/quit).
+     * @return The session the token was issued for, or null if it is unknown or ended.
+     */
+    static PeerSession findSession(long token) {
+        return token == 0 ? null : sessions.get(token);
+    }
+
+    /**
+     * Hands a token over to the connection that resumed its session.
+     */
+    static void resumeSession(long token, PeerSession session) {
+        sessions.put(token, session);
+    }
+
+    /**
+     * Forgets a token when its peer is removed, unless another connection resumed it meanwhile.
+     */
+    static void endSession(long token, PeerSession session) {
+        if (token != 0) {
+            sessions.remove(token, session);
+        }
+    }
+
+    /**
+     * Takes the session of a peer restored after a restart, so the peer can resume it.
+     *
+     * @param listenerAddress The peer's address and listener port.
+     * @return The restored session, or null if there is none.
+     */
+    static PeerSession takeRestoredPeer(InetSocketAddress listenerAddress) {
+        return restoredPeers.remove(listenerAddress);
+    }
+
+    static void forgetRestoredPeer(InetSocketAddress listenerAddress, PeerSession session) {
+        restoredPeers.remove(listenerAddress, session);
+    }
+
+    static LeaseWheel<PeerSession> getLeaseWheel() {
+        return leaseWheel;
+    }
+
+    static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Handles terminal commands <b>server side</b> (members/stats/quit).
      *
-     * @param serverSocket The main server socket.
+     * @param server The main server socket or engine, closed on quit.
      */
-    private static void handleServerCommands(ServerSocket serverSocket) {
+    private static void handleServerCommands(Closeable server) {
         try (Scanner scanner = new Scanner(System.in)) {
             while (true) {
-                System.out.print("Enter command (members/quit): ");
+                System.out.print("Enter command (members/stats/quit): ");
+                if (!scanner.hasNextLine()) {
+                    return; // No console, e.g. a shard started in the background
+                }
                 String command = scanner.nextLine().trim();
 
                 if (command.equalsIgnoreCase("members")) {
                     // List all connected peers
-                    if (connectedPeers.isEmpty()) {
+                    PeerRegistry.Snapshot members = connectedPeers.snapshot();
+                    if (members.getPeers().isEmpty()) {
                         System.out.println("No peers are currently connected.");
                     } else {
                         System.out.println("Connected peers:");
-                        for (InetSocketAddress peer : connectedPeers.keySet()) {
+                        for (InetSocketAddress peer : members.getPeers().keySet()) {
                             System.out.println("- " + peer);
                         }
                     }
+                } else if (command.equalsIgnoreCase("stats")) {
+                    System.out.print(metrics.format());
                 } else if (command.equalsIgnoreCase("quit")) {
                     notifyAllPeers("Server Shutdown");
                     // Shut down the server
                     System.out.println("Shutting down the server...");
-                    serverSocket.close(); // Stop accepting new connections
+                    server.close(); // Stop accepting new connections
                     System.exit(0); // Exit the program
                 } else {
-                    System.out.println("Unknown command. Available commands: members, quit.");
+                    System.out.println("Unknown command. Available commands: members, stats, quit.");
                 }
             }
         } catch (IOException e) {
@@ -104,67 +415,167 @@ public class Central_Server {
      * @param peerSocket       The socket used to connect to the server (provides outgoing port).
      * @param peerListenerPort The port the peer is listening on for connections from other peers.
      */
-    public static synchronized void addPeer(Socket peerSocket, int peerListenerPort) {
-        InetAddress address = peerSocket.getInetAddress();
-        int outgoingPort = peerSocket.getPort(); // The port used by the peer to connect to the server
+    public static void addPeer(Socket peerSocket, int peerListenerPort) {
+        // The outgoing port is the port used by the peer to connect to the server
+        addPeer(peerSocket.getInetAddress(), peerSocket.getPort(), peerListenerPort);
+    }
 
+    /**
+     * Adds a peer to the list of connected peers.
+     *
+     * @param address          The peer's address.
+     * @param outgoingPort     The port the peer used to connect to the server.
+     * @param peerListenerPort The port the peer is listening on for connections from other peers.
+     */
+    public static void addPeer(InetAddress address, int outgoingPort, int peerListenerPort) {
         // Create a PeerInfoRecord to store both ports
         PeerInfoRecord peerInfo = new PeerInfoRecord(address, outgoingPort, peerListenerPort);
 
         // Use the outgoing port to index connectedPeers
         InetSocketAddress peerAddress = new InetSocketAddress(address, outgoingPort);
 
-        // Add to the connectedPeers map
-        PeerInfoRecord existingPeer = connectedPeers.put(peerAddress, peerInfo);
+        // Add to the registry of connected peers
+        PeerInfoRecord existingPeer = connectedPeers.add(peerAddress, peerInfo);
+        topology.add(peerAddress, peerInfo);
+        joins.increment();
+        RegistryStore store = registryStore;
+        if (store != null) {
+            store.peerAdded(peerInfo);
+        }
         if (existingPeer != null) {
-            System.out.println("Replaced existing peer: " + existingPeer + " with: " + peerInfo);
+            membershipPublisher.peerLeft(existingPeer);
+        }
+        membershipPublisher.peerJoined(peerInfo);
+        if (existingPeer != null) {
+            LOGGER.info(() -> "Replaced existing peer: " + existingPeer + " with: " + peerInfo);
         } else {
-            System.out.println("Peer added: " + peerInfo);
+            LOGGER.info(() -> "Peer added: " + peerInfo);
         }
     }
 
     /**
-     * Removes a peer from the connectedPeers map.
+     * Removes a peer from the registry of connected peers.
      *
      * @param peerAddress The address of the peer to remove.
      */
-    public static synchronized void removePeer(InetSocketAddress peerAddress) {
+    public static void removePeer(InetSocketAddress peerAddress) {
         PeerInfoRecord removedPeer = connectedPeers.remove(peerAddress);
+        topology.remove(peerAddress);
         if (removedPeer != null) {
-            System.out.println("\nPeer removed: " + removedPeer);
+            leaves.increment();
+            RegistryStore store = registryStore;
+            if (store != null) {
+                store.peerRemoved(removedPeer);
+            }
+            membershipPublisher.peerLeft(removedPeer);
+            LOGGER.info(() -> "Peer removed: " + removedPeer);
         } else {
-            System.out.println("Peer not found in the network: " + peerAddress);
+            LOGGER.fine(() -> "Peer not found in the network: " + peerAddress);
         }
     }
 
 
     /**
      * Returns a random peer's PeerInfoRecord from the list of connected peers, excluding a specific peer.
+     * Peers with a free neighbor slot are preferred, so the joiner is not redirected; only when
+     * every peer is full is any peer picked.
      *
      * @param excludingPeer The peer to exclude from the random selection.
      * @return A PeerInfoRecord of a random peer, or null if no other peers are available.
      */
-    public static synchronized PeerInfoRecord getRandomPeer(InetSocketAddress excludingPeer) {
-        // Filter out the requesting peer based on the outgoing port
-        List<PeerInfoRecord> availablePeers = connectedPeers.entrySet().stream()
-                .filter(entry -> {
-                    InetSocketAddress key = entry.getKey();
-                    PeerInfoRecord value = entry.getValue();
-
-                    // Exclude the peer if its outgoing port matches the requesting peer's outgoing port
-                    return !(key.getPort() == excludingPeer.getPort() &&
-                            key.getAddress().equals(excludingPeer.getAddress()));
-                })
-                .map(Map.Entry::getValue) // Extract the PeerInfoRecord values
-                .collect(Collectors.toList());
+    public static PeerInfoRecord getRandomPeer(InetSocketAddress excludingPeer) {
+        List<PeerInfoRecord> peers = getRandomPeers(excludingPeer, 1);
+        return peers.isEmpty() ? null : peers.get(0);
+    }
 
-        // Return null if no other peers are available
-        if (availablePeers.isEmpty()) {
-            return null;
+    /**
+     * Returns distinct random peers for a joiner to try in parallel, preferring peers with a free
+     * neighbor slot like {@link #getRandomPeer}. If every peer is full, a single random peer is
+     * returned, since the joiner is redirected from there anyway. When the registry is sharded,
+     * peers with a free slot are drawn from all shards, see {@link ShardCluster#takeRemotePeers}.
+     *
+     * @param excludingPeer The peer to exclude from the random selection.
+     * @param count         How many peers the joiner asked for, capped at <code>server.joinCandidates</code>.
+     * @return The peers, empty if no other peers are available.
+     */
+    public static List<PeerInfoRecord> getRandomPeers(InetSocketAddress excludingPeer, int count) {
+        // Constant time regardless of the number of connected peers
+        int wanted = Math.max(1, Math.min(count, joinCandidates));
+        ShardCluster cluster = shardCluster;
+        if (cluster != null) {
+            List<PeerInfoRecord> remotePeers = cluster.takeRemotePeers(wanted, topology.freePeers(excludingPeer));
+            List<PeerInfoRecord> peers = topology.assign(excludingPeer, wanted - remotePeers.size());
+            assignedToFreePeer.add(peers.size());
+            if (peers.size() + remotePeers.size() < wanted) {
+                // This shard ran out of free peers, another may still have some
+                List<PeerInfoRecord> morePeers = cluster.takeRemotePeers(wanted - peers.size() - remotePeers.size(), 0);
+                if (!morePeers.isEmpty()) {
+                    remotePeers = new ArrayList<>(remotePeers);
+                    remotePeers.addAll(morePeers);
+                }
+            }
+            if (!remotePeers.isEmpty()) {
+                assignedToRemotePeer.add(remotePeers.size());
+                List<PeerInfoRecord> allPeers = new ArrayList<>(peers);
+                allPeers.addAll(remotePeers);
+                return allPeers;
+            }
+            if (!peers.isEmpty()) {
+                return peers;
+            }
+        } else {
+            List<PeerInfoRecord> peers = topology.assign(excludingPeer, wanted);
+            if (!peers.isEmpty()) {
+                assignedToFreePeer.add(peers.size());
+                return peers;
+            }
+        }
+        PeerInfoRecord peer = connectedPeers.randomExcluding(excludingPeer);
+        if (peer == null) {
+            return Collections.emptyList();
         }
+        assignedToAnyPeer.increment();
+        return Collections.singletonList(peer);
+    }
 
-        // Randomly select a peer
-        Random random = new Random();
-        return availablePeers.get(random.nextInt(availablePeers.size()));
+    /**
+     * Finds the shard that registers a joining peer.
+     *
+     * @param address          The peer's address.
+     * @param peerListenerPort The port the peer listens on for peer connections.
+     * @return The owning shard's address, or null if this server registers the peer.
+     */
+    static InetSocketAddress ownerShard(InetAddress address, int peerListenerPort) {
+        ShardCluster cluster = shardCluster;
+        return cluster == null ? null : cluster.ownerOf(address, peerListenerPort);
+    }
+
+    /**
+     * Answers another shard's request for peers with a free neighbor slot.
+     *
+     * @param count How many peers to include at most.
+     * @return The reply line, see {@link ShardCluster#SAMPLE_REQUEST}.
+     */
+    static String shardSample(int count) {
+        return ShardCluster.formatSample(topology.freePeers(null), topology.sample(Math.min(count, ShardCluster.MAX_SAMPLE_SIZE)));
+    }
+
+    /**
+     * Frees the neighbor slot reserved on a suggested peer that the joiner did not connect to.
+     *
+     * @param peer The suggested peer.
+     */
+    static void releaseSuggestion(PeerInfoRecord peer) {
+        topology.release(new InetSocketAddress(peer.getAddress(), peer.getOutgoingPort()));
+    }
+
+    /**
+     * Records the neighbors a peer reported.
+     *
+     * @param peerAddress The peer's address as seen by the server.
+     * @param neighbors   The listener addresses of its neighbors.
+     */
+    static void updateTopology(InetSocketAddress peerAddress, List<InetSocketAddress> neighbors) {
+        topology.reportNeighbors(peerAddress, neighbors);
     }
-}
\ No newline at end of file
+}
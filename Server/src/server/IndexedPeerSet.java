@@ -0,0 +1,111 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Peers stored in a dense array with a key to slot index, so adding, removing and picking a
+ * uniformly random peer are all O(1). Removal moves the last peer into the freed slot.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+class IndexedPeerSet {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<InetSocketAddress, Integer> slots = new HashMap<>();
+    private InetSocketAddress[] keys = new InetSocketAddress[INITIAL_CAPACITY];
+    private PeerInfoRecord[] records = new PeerInfoRecord[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Adds or replaces a peer.
+     *
+     * @return The record previously stored for the key, or null.
+     */
+    PeerInfoRecord put(InetSocketAddress key, PeerInfoRecord record) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            PeerInfoRecord previous = records[slot];
+            records[slot] = record;
+            return previous;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            records = Arrays.copyOf(records, size * 2);
+        }
+        keys[size] = key;
+        records[size] = record;
+        slots.put(key, size);
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes a peer by swapping the last peer into its slot.
+     *
+     * @return The removed record, or null if the key was not present.
+     */
+    PeerInfoRecord remove(InetSocketAddress key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) {
+            return null;
+        }
+
+        PeerInfoRecord removed = records[slot];
+        int last = --size;
+        if (slot != last) {
+            keys[slot] = keys[last];
+            records[slot] = records[last];
+            slots.put(keys[slot], slot);
+        }
+        keys[last] = null;
+        records[last] = null;
+        return removed;
+    }
+
+    /**
+     * Picks a uniformly random peer other than the excluded one.
+     *
+     * @param excludedKey The peer to leave out, may be null or absent.
+     * @param random      The source of randomness.
+     * @return A random peer, or null if there is no other peer.
+     */
+    PeerInfoRecord randomExcluding(InetSocketAddress excludedKey, Random random) {
+        Integer excludedSlot = excludedKey == null ? null : slots.get(excludedKey);
+        if (excludedSlot == null) {
+            return size == 0 ? null : records[random.nextInt(size)];
+        }
+        if (size <= 1) {
+            return null;
+        }
+
+        // Draw from the other size - 1 slots by skipping over the excluded one
+        int slot = random.nextInt(size - 1);
+        if (slot >= excludedSlot) {
+            slot++;
+        }
+        return records[slot];
+    }
+
+    PeerInfoRecord get(InetSocketAddress key) {
+        Integer slot = slots.get(key);
+        return slot == null ? null : records[slot];
+    }
+
+    /**
+     * Adds every peer in this set to the given map.
+     */
+    void copyInto(Map<InetSocketAddress, PeerInfoRecord> target) {
+        for (int i = 0; i < size; i++) {
+            target.put(keys[i], records[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
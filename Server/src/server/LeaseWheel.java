@@ -0,0 +1,144 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks leases in a hashed timer wheel. Each tick only looks at the leases filed in the slot
+ * for that tick, never at all leases, so expiry costs O(1) per lease.
+ * <p>
+ * Renewing a lease just moves its deadline forward without touching the wheel. When the
+ * lease's old slot comes up, a lease that is still valid is filed again under its new deadline,
+ * and one that is not is expired.
+ *
+ * @param <K> The key identifying the lease holder.
+ */
+class LeaseWheel<K> {
+    private final long tickMillis;
+    private final long leaseMillis;
+    private final ArrayDeque<Lease<K>>[] slots; // guarded by this
+    private final Consumer<K> onExpire;
+    private long processedTick; // guarded by this
+
+    /**
+     * A lease held by one key.
+     */
+    static final class Lease<K> {
+        private final K key;
+        private volatile long expiresAt;
+        private volatile boolean cancelled = false;
+
+        private Lease(K key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        K getKey() {
+            return key;
+        }
+
+        long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * @param tickMillis  Resolution of the wheel; leases expire up to one tick late.
+     * @param slotCount   Number of slots; one revolution should be longer than a lease.
+     * @param leaseMillis How long a lease lasts without renewal.
+     * @param onExpire    Called on the wheel thread for every lease that expired.
+     */
+    @SuppressWarnings("unchecked")
+    LeaseWheel(long tickMillis, int slotCount, long leaseMillis, Consumer<K> onExpire) {
+        this.tickMillis = tickMillis;
+        this.leaseMillis = leaseMillis;
+        this.onExpire = onExpire;
+        this.slots = (ArrayDeque<Lease<K>>[]) new ArrayDeque<?>[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.processedTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * Starts ticking on a daemon thread.
+     */
+    void start() {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Grants a new lease to the key.
+     */
+    Lease<K> grant(K key) {
+        Lease<K> lease = new Lease<>(key, System.currentTimeMillis() + leaseMillis);
+        synchronized (this) {
+            file(lease, processedTick + 1);
+        }
+        return lease;
+    }
+
+    /**
+     * Extends the lease by a full lease period from now. Lock free.
+     */
+    void renew(Lease<K> lease) {
+        lease.expiresAt = System.currentTimeMillis() + leaseMillis;
+    }
+
+    /**
+     * Ends the lease without expiring it. It is dropped the next time its slot comes up.
+     */
+    void cancel(Lease<K> lease) {
+        lease.cancelled = true;
+    }
+
+    /**
+     * Processes every slot up to the current time.
+     */
+    void tick() {
+        long now = System.currentTimeMillis();
+        long currentTick = now / tickMillis;
+        ArrayDeque<Lease<K>> expired = new ArrayDeque<>();
+
+        synchronized (this) {
+            // Catch up on ticks missed because of scheduling delays, at most one revolution
+            long firstTick = Math.max(processedTick + 1, currentTick - slots.length + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                ArrayDeque<Lease<K>> slot = slots[(int) (tick % slots.length)];
+                for (int i = slot.size(); i > 0; i--) {
+                    Lease<K> lease = slot.poll();
+                    if (lease.cancelled) {
+                        continue;
+                    }
+                    if (lease.expiresAt <= now) {
+                        expired.add(lease);
+                    } else {
+                        file(lease, currentTick + 1); // Renewed since it was filed, or due in a later revolution
+                    }
+                }
+            }
+            processedTick = currentTick;
+        }
+
+        // Call back outside the lock so expiry handling may grant or cancel leases
+        for (Lease<K> lease : expired) {
+            onExpire.accept(lease.key);
+        }
+    }
+
+    /**
+     * Files the lease under the tick of its deadline, but no earlier than <code>earliestTick</code>.
+     */
+    private void file(Lease<K> lease, long earliestTick) {
+        long tick = Math.max(lease.expiresAt / tickMillis, earliestTick);
+        slots[(int) (tick % slots.length)].add(lease);
+    }
+}
@@ -0,0 +1,327 @@
+package server;
+
+import common.ConnectionExecutors;
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+/**
+ * Pushes membership changes to subscribed peers over the connection they already hold to the
+ * server. Joins and leaves are buffered and flushed periodically as one numbered delta, and a
+ * join followed by a leave of the same peer (or the other way round) cancels out before it is
+ * ever sent. A subscribe flushes the pending changes first, so a change the new subscriber's view
+ * already contains is never cancelled by one it has to be told about.
+ * <p>
+ * Messages:
+ * <ul>
+ *     <li><code>MEMBERS &lt;seq&gt; &lt;ip:port&gt;...</code> the full view, sent once on subscribe.</li>
+ *     <li><code>DELTA &lt;seq&gt; +&lt;ip:port&gt; -&lt;ip:port&gt;...</code> peers that joined (+) or left (-).</li>
+ * </ul>
+ * Addresses are the peers' listener addresses. Applying a delta is idempotent, so a delta that
+ * overlaps the initial view is harmless. Peers using the framed protocol get the same content as
+ * {@link Opcode#MEMBERS} and {@link Opcode#DELTA} frames.
+ * <p>
+ * Every subscriber has its own queue of pushes, written by a pusher task of its own, so a peer
+ * that stops reading only holds up its own pushes. A subscriber whose queue fills up or whose
+ * write does not finish in time is disconnected; the peer reconnects and subscribes again, which
+ * gets it the full view.
+ */
+class MembershipPublisher {
+    private static final Logger LOGGER = Logger.getLogger(MembershipPublisher.class.getName());
+
+    // Largest encoded address: length byte, IPv6 address, port
+    private static final int MAX_ADDRESS_LENGTH = 1 + 16 + 2;
+
+    private final Metrics.Counter deltasSent = Central_Server.getMetrics().counter("membership.deltas_sent");
+    private final Metrics.Counter subscribersDropped = Central_Server.getMetrics().counter("membership.subscribers_dropped");
+    private final Map<InetSocketAddress, Subscriber> subscribers = new ConcurrentHashMap<>();
+    // Pending changes by listener address, true for a join and false for a leave (guarded by this)
+    private Map<PeerInfoRecord, Boolean> pendingChanges = new LinkedHashMap<>();
+    private long sequence = 0; // guarded by this
+    private final int maxQueued;
+    private final long stallNanos;
+    private final ExecutorService pushers;
+
+    /**
+     * @param maxQueued    Pushes queued for one subscriber at most before it is dropped.
+     * @param stallMillis  How long writing one push to a subscriber may take before it is dropped.
+     * @param pusherThreads Threads writing pushes when virtual threads are not available.
+     */
+    MembershipPublisher(int maxQueued, long stallMillis, int pusherThreads) {
+        this.maxQueued = Math.max(1, maxQueued);
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        this.pushers = ConnectionExecutors.create(ConnectionExecutors.VIRTUAL, pusherThreads, "membership-pusher");
+    }
+
+    /**
+     * Starts flushing pending changes every interval.
+     *
+     * @param intervalMillis How long changes are collected before they are pushed.
+     */
+    void start(long intervalMillis) {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "membership-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            dropStalledSubscribers();
+            flush();
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribes a peer and sends it the current membership view. The pending changes are flushed
+     * to the other subscribers first and the view is taken while no delta can be numbered, so
+     * every change it misses is in a delta the subscriber gets.
+     *
+     * @param peerAddress The subscriber's address as seen by the server.
+     * @param session     The subscriber's connection.
+     * @param registry    The registry whose contents make up the view.
+     */
+    synchronized void subscribe(InetSocketAddress peerAddress, PeerSession session, PeerRegistry registry) {
+        flush();
+        PeerRegistry.Snapshot members = registry.snapshot();
+        Subscriber subscriber = subscribers.get(peerAddress);
+        if (subscriber != null && subscriber.session == session) {
+            subscriber.discardQueued(); // Subscribed again, the new view makes them redundant
+        } else {
+            if (subscriber != null) {
+                subscriber.cancel();
+            }
+            subscriber = new Subscriber(peerAddress, session);
+            subscribers.put(peerAddress, subscriber);
+        }
+        if (session.isFramed()) {
+            ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 8 + 4 + members.getPeers().size() * MAX_ADDRESS_LENGTH);
+            int start = Frames.begin(frame, Opcode.MEMBERS);
+            frame.putLong(sequence);
+            frame.putInt(members.getPeers().size());
+            for (PeerInfoRecord member : members.getPeers().values()) {
+                Frames.putAddress(frame, member.getAddress(), member.getPeerListenerPort());
+            }
+            Frames.end(frame, start);
+            frame.flip();
+            subscriber.offer(null, frame);
+        } else {
+            StringBuilder view = new StringBuilder("MEMBERS ").append(sequence);
+            for (PeerInfoRecord member : members.getPeers().values()) {
+                view.append(' ').append(listenerAddress(member));
+            }
+            subscriber.offer(view.toString(), null);
+        }
+        LOGGER.info(() -> "Peer subscribed to membership updates: " + peerAddress);
+    }
+
+    void unsubscribe(InetSocketAddress peerAddress) {
+        Subscriber subscriber = subscribers.remove(peerAddress);
+        if (subscriber != null) {
+            subscriber.cancel();
+        }
+    }
+
+    boolean isSubscribed(InetSocketAddress peerAddress) {
+        return subscribers.containsKey(peerAddress);
+    }
+
+    long subscriberCount() {
+        return subscribers.size();
+    }
+
+    synchronized void peerJoined(PeerInfoRecord peer) {
+        record(peer, true);
+    }
+
+    synchronized void peerLeft(PeerInfoRecord peer) {
+        record(peer, false);
+    }
+
+    /**
+     * Sends a notice to every subscriber right away.
+     *
+     * @return The number of subscribers the message was queued for.
+     */
+    int sendToAll(String message) {
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 2 + message.length() * 3);
+        int start = Frames.begin(frame, Opcode.NOTICE);
+        Frames.putString(frame, message);
+        Frames.end(frame, start);
+        frame.flip();
+        return sendToAll(message, frame);
+    }
+
+    private int sendToAll(String line, ByteBuffer frame) {
+        int sent = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.offer(line, frame)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Drops the subscribers whose current write has not finished in time. Their pusher stays
+     * blocked until the connection is closed, which is what dropping them does.
+     */
+    private void dropStalledSubscribers() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.isStalled(now)) {
+                drop(subscriber, "a push took longer than " + TimeUnit.NANOSECONDS.toMillis(stallNanos) + " ms");
+            }
+        }
+    }
+
+    /**
+     * Pushes the changes collected since the last flush as one delta. Deltas are queued for the
+     * subscribers in the order they are numbered, which the lock keeps.
+     */
+    synchronized void flush() {
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        Map<PeerInfoRecord, Boolean> changes = pendingChanges;
+        pendingChanges = new LinkedHashMap<>();
+        long deltaSequence = ++sequence;
+
+        // Encode the delta once for each protocol and share it between all subscribers
+        StringBuilder line = new StringBuilder("DELTA ").append(deltaSequence);
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + 8 + 4 + changes.size() * (1 + MAX_ADDRESS_LENGTH));
+        int start = Frames.begin(frame, Opcode.DELTA);
+        frame.putLong(deltaSequence);
+        frame.putInt(changes.size());
+        for (Map.Entry<PeerInfoRecord, Boolean> change : changes.entrySet()) {
+            PeerInfoRecord peer = change.getKey();
+            line.append(' ').append(change.getValue() ? '+' : '-').append(listenerAddress(peer));
+            frame.put((byte) (change.getValue() ? 1 : 0));
+            Frames.putAddress(frame, peer.getAddress(), peer.getPeerListenerPort());
+        }
+        Frames.end(frame, start);
+        frame.flip();
+        deltasSent.add(sendToAll(line.toString(), frame));
+    }
+
+    private void record(PeerInfoRecord peer, boolean joined) {
+        // Changes are keyed by listener address, which is what subscribers see
+        PeerInfoRecord key = new PeerInfoRecord(peer.getAddress(), 0, peer.getPeerListenerPort());
+        Boolean pending = pendingChanges.get(key);
+        if (pending != null && pending != joined) {
+            pendingChanges.remove(key); // Joined and left again, nothing to report
+        } else {
+            pendingChanges.put(key, joined);
+        }
+    }
+
+    private void drop(Subscriber subscriber, String reason) {
+        if (!subscribers.remove(subscriber.peerAddress, subscriber)) {
+            return;
+        }
+        LOGGER.warning("Dropping membership subscriber " + subscriber.peerAddress + ": " + reason);
+        subscribersDropped.increment();
+        subscriber.cancel();
+        subscriber.session.disconnect(); // The peer reconnects and subscribes again
+    }
+
+    private static String listenerAddress(PeerInfoRecord peer) {
+        return peer.getAddress().getHostAddress() + ":" + peer.getPeerListenerPort();
+    }
+
+    /**
+     * A subscribed peer and the pushes not yet written to it. At most one pusher task writes
+     * them, in order.
+     */
+    private final class Subscriber implements Runnable {
+        final InetSocketAddress peerAddress;
+        final PeerSession session;
+        // The pushes in the peer's protocol: a String per text line or a ByteBuffer per frame
+        private final ArrayDeque<Object> queue = new ArrayDeque<>(); // guarded by this
+        private boolean writing = false; // guarded by this
+        private boolean cancelled = false; // guarded by this
+        // When the write in progress started, 0 if none is
+        private volatile long writeStartedNanos = 0;
+
+        Subscriber(InetSocketAddress peerAddress, PeerSession session) {
+            this.peerAddress = peerAddress;
+            this.session = session;
+        }
+
+        /**
+         * Queues a push, in whichever protocol the peer speaks, and starts a pusher if none runs.
+         *
+         * @param line  The message in the text protocol.
+         * @param frame The message as an encoded frame, shared with other subscribers and left untouched.
+         * @return false if the subscriber was dropped instead.
+         */
+        boolean offer(String line, ByteBuffer frame) {
+            synchronized (this) {
+                if (cancelled) {
+                    return false;
+                }
+                if (queue.size() < maxQueued) {
+                    queue.add(session.isFramed() ? frame.duplicate() : line);
+                    if (!writing) {
+                        writing = true;
+                        pushers.execute(this);
+                    }
+                    return true;
+                }
+            }
+            drop(this, maxQueued + " pushes waiting");
+            return false;
+        }
+
+        synchronized void discardQueued() {
+            queue.clear();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+
+        boolean isStalled(long now) {
+            long started = writeStartedNanos;
+            return started != 0 && now - started > stallNanos;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Object push;
+                synchronized (this) {
+                    push = cancelled ? null : queue.poll();
+                    if (push == null) {
+                        writing = false;
+                        return;
+                    }
+                }
+                writeStartedNanos = System.nanoTime();
+                try {
+                    if (push instanceof ByteBuffer) {
+                        session.push(null, (ByteBuffer) push);
+                    } else {
+                        session.push((String) push, null);
+                    }
+                } catch (IOException e) {
+                    drop(this, e.getMessage());
+                } finally {
+                    writeStartedNanos = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package server;
+
+import common.Frames;
+import common.Opcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.*;
+
+/**
+ * Non-blocking alternative to one {@link PeerHandler} thread per peer.
+ * A single acceptor hands new connections to a small, fixed set of selector event loops,
+ * so the number of server threads stays the same no matter how many peers are connected.
+ * The protocol itself is handled by {@link PeerSession}.
+ */
+class NioServerEngine implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(NioServerEngine.class.getName());
+    // Fits the longest frame a peer may send (see Frames.MAX_MESSAGE_LENGTH), and text lines as long
+    private static final int MAX_MESSAGE_LENGTH = Frames.HEADER_LENGTH + Frames.MAX_MESSAGE_LENGTH;
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /**
+     * @param port           The port to accept peer connections on.
+     * @param eventLoopCount The number of selector threads serving peer connections.
+     */
+    NioServerEngine(int port, int eventLoopCount) {
+        this.port = port;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    /**
+     * Starts the event loops and accepts peer connections until {@link #close()} is called.
+     *
+     * @throws IOException If the server channel could not be opened.
+     */
+    void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "nio-event-loop-" + i).start();
+        }
+
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel peerChannel = serverChannel.accept();
+                peerChannel.configureBlocking(false);
+                long retryAfterMillis = Central_Server.admitConnection();
+                if (retryAfterMillis > 0) {
+                    reject(peerChannel, retryAfterMillis);
+                    continue;
+                }
+                eventLoops[next].register(peerChannel);
+                next = (next + 1) % eventLoops.length;
+            } catch (ClosedChannelException e) {
+                break; // Exit the loop when the server channel is closed
+            } catch (IOException e) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tells a connection that was not admitted when to retry and closes it, on the acceptor thread.
+     * The reply fits into the empty socket buffer of a new connection, so writing never blocks.
+     * Bytes the peer already sent are discarded first, so closing does not reset the connection.
+     */
+    private static void reject(SocketChannel channel, long retryAfterMillis) {
+        try (SocketChannel peerChannel = channel) {
+            peerChannel.write(ByteBuffer.wrap((Frames.RETRY_AFTER_PREFIX + retryAfterMillis + "\n").getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer discarded = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+            while (peerChannel.read(discarded) > 0) {
+                discarded.clear();
+            }
+        } catch (IOException e) {
+            // The peer is gone already
+        }
+    }
+
+    /**
+     * Stops accepting connections and shuts down all event loops.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A selector thread that owns a subset of the peer connections.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        // Connections that were written to from another thread and need flushing on this one
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a freshly accepted channel to this event loop.
+         */
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks this event loop to flush a connection written to from another thread.
+         */
+        void scheduleFlush(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (running) {
+                    selector.select();
+                    registerPendingChannels();
+                    flushPendingWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // Only this connection is closed, the others on the loop carry on
+                            LOGGER.log(Level.SEVERE, "Error handling peer: " + connection.session.getPeerAddress(), e);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Event loop failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void flushPendingWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    if (connection.closeRequested) {
+                        connection.close();
+                    } else if (connection.channel.isOpen()) {
+                        connection.flushOrWaitForWritable();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Error handling peer: " + connection.session.getPeerAddress(), e);
+                    connection.close();
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    InetSocketAddress peerAddress = (InetSocketAddress) channel.getRemoteAddress();
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key, peerAddress));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to register peer channel", e);
+                    Central_Server.handshakeFinished(); // No session was created to end it
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers and splits the bytes of one peer connection into lines or frames.
+     * Reads and socket writes only happen on the owning event loop; other threads may queue
+     * messages with {@link #sendLine(String)} and {@link #sendFrame(ByteBuffer)}, or close it with
+     * {@link #disconnect()}.
+     */
+    private static final class Connection implements PeerSession.Channel {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final PeerSession session;
+        private final ByteBuffer input = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private boolean closeAfterFlush = false;
+        private volatile boolean closeRequested = false;
+
+        Connection(EventLoop eventLoop, SocketChannel channel, SelectionKey key, InetSocketAddress peerAddress) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.key = key;
+            this.session = new PeerSession(peerAddress, this);
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(input) < 0) {
+                close();
+                return;
+            }
+
+            input.flip();
+            while (!closeAfterFlush && (session.isFramed() ? readFrame() : readLine())) {
+                // Keep going while complete messages are buffered
+            }
+            input.compact();
+
+            if (!input.hasRemaining()) {
+                LOGGER.warning("Message too long from peer: " + session.getPeerAddress());
+                closeAfterFlush = true;
+            }
+            if (closeAfterFlush && output.isEmpty()) {
+                close();
+            }
+        }
+
+        /**
+         * Hands the next buffered line to the session.
+         *
+         * @return false if no complete line is buffered.
+         */
+        private boolean readLine() throws IOException {
+            int lineStart = input.position();
+            for (int i = lineStart; i < input.limit(); i++) {
+                if (input.get(i) == '\n') {
+                    int lineEnd = (i > lineStart && input.get(i - 1) == '\r') ? i - 1 : i;
+                    String line = new String(input.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                    input.position(i + 1);
+                    if (!session.onLine(line)) {
+                        closeAfterFlush = true;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Hands the next buffered frame to the session, decoded in place in the input buffer.
+         *
+         * @return false if no complete frame is buffered.
+         */
+        private boolean readFrame() throws IOException {
+            int length = Frames.completeFrameLength(input);
+            if (length < 0) {
+                return false;
+            }
+
+            int frameEnd = input.position() + Frames.HEADER_LENGTH + length;
+            int bufferedLimit = input.limit();
+            input.position(input.position() + Frames.HEADER_LENGTH);
+            input.limit(frameEnd);
+            Opcode opcode = Opcode.fromCode(input.get());
+            if (opcode != null && !session.onFrame(opcode, input)) {
+                closeAfterFlush = true;
+            }
+            input.limit(bufferedLimit);
+            input.position(frameEnd);
+            return true;
+        }
+
+        void onWritable() throws IOException {
+            flush();
+            if (output.isEmpty()) {
+                if (closeAfterFlush) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        @Override
+        public void sendLine(String line) throws IOException {
+            enqueue(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) throws IOException {
+            if (eventLoop.inEventLoop() && output.isEmpty() && channel.isOpen()) {
+                // Write straight from the caller's buffer and only copy what did not fit
+                channel.write(frame);
+                if (!frame.hasRemaining()) {
+                    return;
+                }
+            }
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame).flip();
+            enqueue(copy);
+        }
+
+        private void enqueue(ByteBuffer buffer) throws IOException {
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            output.add(buffer);
+            if (eventLoop.inEventLoop()) {
+                flushOrWaitForWritable();
+            } else {
+                eventLoop.scheduleFlush(this);
+            }
+        }
+
+        void flushOrWaitForWritable() throws IOException {
+            flush();
+            if (!output.isEmpty() && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return; // Socket buffer is full, wait for OP_WRITE
+                }
+                output.poll();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            if (eventLoop.inEventLoop()) {
+                close();
+            } else {
+                closeRequested = true;
+                eventLoop.scheduleFlush(this);
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            key.cancel();
+            session.close();
+            try {
+                channel.close();
+                LOGGER.info(() -> "Closed connection for peer: " + session.getPeerAddress());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing client socket for peer: " + session.getPeerAddress(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import common.ConnectionExecutors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+/**
+ * Sends a message to many peers at once by dialing their listener ports concurrently.
+ * The number of connections in flight is bounded, every connect has a timeout and the whole
+ * broadcast has a deadline, so unreachable peers cannot stall it.
+ */
+class PeerBroadcaster {
+    private static final Logger LOGGER = Logger.getLogger(PeerBroadcaster.class.getName());
+
+    private final int maxInFlight;
+    private final int connectTimeoutMillis;
+    private final long deadlineMillis;
+
+    /**
+     * @param maxInFlight          Maximum number of peers being notified at the same time.
+     * @param connectTimeoutMillis Connect timeout for a single peer.
+     * @param deadlineMillis       Time after which the broadcast gives up on the remaining peers.
+     */
+    PeerBroadcaster(int maxInFlight, int connectTimeoutMillis, long deadlineMillis) {
+        this.maxInFlight = maxInFlight;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Sends the message to every peer and waits until all peers are done or the deadline passed.
+     *
+     * @param peers   The peers to notify.
+     * @param message The message to send, without line terminator.
+     * @return How many peers received the message and why the others did not.
+     */
+    BroadcastReport broadcast(Collection<PeerInfoRecord> peers, String message) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        byte[] payload = (message + "\n").getBytes(StandardCharsets.UTF_8);
+
+        AtomicInteger delivered = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        CountDownLatch done = new CountDownLatch(peers.size());
+        ExecutorService executor = ConnectionExecutors.create(ConnectionExecutors.VIRTUAL, maxInFlight, "broadcast");
+
+        try {
+            for (PeerInfoRecord peer : peers) {
+                if (!inFlight.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break; // Deadline passed, the remaining peers count as timed out
+                }
+                executor.execute(() -> {
+                    try {
+                        send(peer, payload, deadline);
+                        delivered.incrementAndGet();
+                        LOGGER.fine("Notified peer: " + peer);
+                    } catch (ConnectException e) {
+                        refused.incrementAndGet();
+                        LOGGER.fine("Peer refused notification: " + peer);
+                    } catch (SocketTimeoutException e) {
+                        LOGGER.fine("Timed out notifying peer: " + peer);
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        LOGGER.warning("Failed to notify peer: " + peer + ". Error: " + e.getMessage());
+                    } finally {
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Anything that did not finish one way or another by now ran into a timeout
+        int deliveredCount = delivered.get();
+        int refusedCount = refused.get();
+        int failedCount = failed.get();
+        int timedOutCount = peers.size() - deliveredCount - refusedCount - failedCount;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new BroadcastReport(peers.size(), deliveredCount, timedOutCount, refusedCount, failedCount, elapsedMillis);
+    }
+
+    private void send(PeerInfoRecord peer, byte[] payload, long deadline) throws IOException {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0) {
+            throw new SocketTimeoutException("Broadcast deadline passed");
+        }
+
+        try (Socket peerSocket = new Socket()) {
+            InetSocketAddress listenerAddress = new InetSocketAddress(peer.getAddress(), peer.getPeerListenerPort());
+            peerSocket.connect(listenerAddress, (int) Math.min(connectTimeoutMillis, remainingMillis));
+            OutputStream output = peerSocket.getOutputStream();
+            output.write(payload);
+            output.flush();
+        }
+    }
+
+    /**
+     * Outcome of a single broadcast.
+     */
+    static final class BroadcastReport {
+        private final int total;
+        private final int delivered;
+        private final int timedOut;
+        private final int refused;
+        private final int failed;
+        private final long elapsedMillis;
+
+        BroadcastReport(int total, int delivered, int timedOut, int refused, int failed, long elapsedMillis) {
+            this.total = total;
+            this.delivered = delivered;
+            this.timedOut = timedOut;
+            this.refused = refused;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        int getTotal() {
+            return total;
+        }
+
+        int getDelivered() {
+            return delivered;
+        }
+
+        int getTimedOut() {
+            return timedOut;
+        }
+
+        int getRefused() {
+            return refused;
+        }
+
+        int getFailed() {
+            return failed;
+        }
+
+        long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Delivered to " + delivered + "/" + total + " peers in " + elapsedMillis + " ms"
+                    + " (timed out: " + timedOut + ", refused: " + refused + ", failed: " + failed + ")";
+        }
+    }
+}
@@ -1,16 +1,18 @@
 package server;
 
+import common.FrameReader;
+import common.Frames;
+import common.Opcode;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.*;
 
 class PeerHandler implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(PeerHandler.class.getName());
 
-    static {
-        initializeLogger();
-    }
-
     private final Socket peerSocket;
 
     // Constructor
@@ -22,61 +24,67 @@ class PeerHandler implements Runnable {
      * Handles client connections and interactions for each peer.
      * Registers the peer with the central server, provides it with a random
      * peer for connection (if available), and listens for commands from the peer.
-     * Supported commands include:
-     * - "quit": Removes the peer from the network and terminates the connection.
+     * Supported commands are described in {@link PeerSession#onLine(String)}.
      */
     @Override
     public void run() {
         InetSocketAddress peerAddress = new InetSocketAddress(peerSocket.getInetAddress(), peerSocket.getPort());
+        PeerSession session = null;
+
+        try (InputStream input = peerSocket.getInputStream();
+             OutputStream output = new BufferedOutputStream(peerSocket.getOutputStream())) {
+
+            session = new PeerSession(peerAddress, new PeerSession.Channel() {
+                @Override
+                public void sendLine(String line) throws IOException {
+                    synchronized (output) {
+                        output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                        output.flush();
+                    }
+                }
 
-        try (BufferedReader input = new BufferedReader(new InputStreamReader(peerSocket.getInputStream()));
-             BufferedWriter output = new BufferedWriter(new OutputStreamWriter(peerSocket.getOutputStream()))) {
+                @Override
+                public void sendFrame(ByteBuffer frame) throws IOException {
+                    synchronized (output) {
+                        output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        output.flush();
+                    }
+                }
 
-            // Read the peer's listener port from the input stream
-            String portLine = input.readLine();
-            int peerListenerPort = Integer.parseInt(portLine);
+                @Override
+                public void disconnect() throws IOException {
+                    peerSocket.close(); // Unblocks the read below
+                }
+            });
 
-            // Registering the peer with the Central Server
-            Central_Server.addPeer(peerSocket, peerListenerPort);
-            LOGGER.info("Peer joined: " + peerAddress + " (is listening on port " + peerListenerPort + ") for peer connections");
+            // The first line is the peer's listener port or the request for the framed protocol.
+            // It is read without buffering so the rest of the stream can be read either way.
+            String firstLine = Frames.readLine(input);
+            if (firstLine == null || !session.onLine(firstLine)) {
+                return;
+            }
 
-            // Provide a random peer's listener port or status message
-            PeerInfoRecord randomPeer = Central_Server.getRandomPeer(peerAddress);
-            if (randomPeer != null) {
-                // Validate the random peer's details
-                if (randomPeer.getPeerListenerPort() <= 0 || randomPeer.getPeerListenerPort() > 65535) {
-                    LOGGER.warning("Invalid random peer retrieved: " + randomPeer);
-                    output.write("Error: Invalid peer details.\n");
-                } else {
-                    // Send the random peer's listener port to the connecting peer
-                    String connectMessage = "Connect to: " + randomPeer.getAddress().getHostAddress()+ " " + randomPeer.getPeerListenerPort();
-                    output.write(connectMessage + "\n");
-                    LOGGER.info("Sent random peer to " + peerAddress + ": " + connectMessage);
+            if (session.isFramed()) {
+                FrameReader frames = new FrameReader(new BufferedInputStream(input), Frames.MAX_MESSAGE_LENGTH);
+                Opcode opcode;
+                while ((opcode = frames.next()) != null) {
+                    if (!session.onFrame(opcode, frames.payload())) {
+                        break;
+                    }
                 }
             } else {
-                // No other peers available
-                output.write("You are the first peer in the network.\n");
-                LOGGER.info("First peer in the network: " + peerAddress);
-            }
-            output.flush();
-
-            // Handle commands from the peer
-            String command;
-            while ((command = input.readLine()) != null) {
-                LOGGER.info("Received command from " + peerAddress + ": " + command);
-
-                if (command.equalsIgnoreCase("quit")) {
-                    LOGGER.info("Peer disconnecting: " + peerAddress);
-                    Central_Server.removePeer(peerAddress);
-                    break;
-                } else {
-                    LOGGER.warning("Unknown command from peer: " + command);
+                BufferedReader lines = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (!session.onLine(line)) {
+                        break;
+                    }
                 }
             }
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Error handling peer: " + peerAddress, e);
         } finally {
-            cleanup(peerAddress);
+            cleanup(peerAddress, session);
         }
     }
 
@@ -84,32 +92,19 @@ class PeerHandler implements Runnable {
      * Cleans up the connection and removes the peer from the network.
      *
      * @param peerAddress The address of the peer to clean up.
+     * @param session     The peer's session, null if the connection failed before it was created.
      */
-    private void cleanup(InetSocketAddress peerAddress) {
+    private void cleanup(InetSocketAddress peerAddress, PeerSession session) {
         try {
-            Central_Server.removePeer(peerAddress);
+            if (session != null) {
+                session.close(); // Also ends the peer's lease and pending handshake
+            } else {
+                Central_Server.handshakeFinished();
+            }
             peerSocket.close();
-            LOGGER.info("Closed connection for peer: " + peerAddress);
+            LOGGER.info(() -> "Closed connection for peer: " + peerAddress);
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Error closing client socket for peer: " + peerAddress, e);
         }
     }
-
-    /**
-     * Initializes the logger for the PeerHandler class.
-     */
-    private static void initializeLogger() {
-        try {
-            FileHandler fileHandler = new FileHandler("server-logs.txt", true); // Append mode
-            fileHandler.setFormatter(new SimpleFormatter());
-            LOGGER.addHandler(fileHandler);
-
-            Logger rootLogger = Logger.getLogger("");
-            rootLogger.removeHandler(rootLogger.getHandlers()[0]); // Removes logging in the server console
-
-            LOGGER.setLevel(Level.INFO);
-        } catch (IOException e) {
-            System.err.println("Failed to set up file handler for logger: " + e.getMessage());
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,192 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The set of peers registered with the Central Server.
+ * <p>
+ * Peers are spread over lock stripes by address, so joins and leaves of different peers do not
+ * contend on a single monitor. Readers that need to see every peer (the <code>members</code>
+ * command, broadcasts) use {@link #snapshot()}, which returns an immutable copy that is only
+ * rebuilt after the registry changed.
+ */
+public class PeerRegistry {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int MAX_SAMPLE_ATTEMPTS = 8;
+
+    private final Stripe[] stripes;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyMap());
+
+    public PeerRegistry() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripeCount Number of lock stripes, rounded up to a power of two.
+     */
+    public PeerRegistry(int stripeCount) {
+        int count = 1;
+        while (count < stripeCount) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Adds or replaces a peer.
+     *
+     * @return The record previously registered under the key, or null.
+     */
+    public PeerInfoRecord add(InetSocketAddress key, PeerInfoRecord record) {
+        Stripe stripe = stripeFor(key);
+        PeerInfoRecord previous;
+        synchronized (stripe) {
+            previous = stripe.peers.put(key, record);
+            stripe.size = stripe.peers.size();
+        }
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        version.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * Removes a peer.
+     *
+     * @return The removed record, or null if the peer was not registered.
+     */
+    public PeerInfoRecord remove(InetSocketAddress key) {
+        Stripe stripe = stripeFor(key);
+        PeerInfoRecord removed;
+        synchronized (stripe) {
+            removed = stripe.peers.remove(key);
+            stripe.size = stripe.peers.size();
+        }
+        if (removed != null) {
+            size.decrementAndGet();
+            version.incrementAndGet();
+        }
+        return removed;
+    }
+
+    public PeerInfoRecord get(InetSocketAddress key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.peers.get(key);
+        }
+    }
+
+    /**
+     * Picks a uniformly random peer other than the excluded one. A stripe is chosen with
+     * probability proportional to its size and then sampled in O(1), so only that one stripe
+     * is locked.
+     *
+     * @param excludedKey The peer to leave out, may be null.
+     * @return A random peer, or null if there is no other peer.
+     */
+    public PeerInfoRecord randomExcluding(InetSocketAddress excludedKey) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Stripe excludedStripe = excludedKey == null ? null : stripeFor(excludedKey);
+
+        for (int attempt = 0; attempt < MAX_SAMPLE_ATTEMPTS; attempt++) {
+            int excludedPresent = (excludedStripe != null && excludedStripe.size > 0 && get(excludedKey) != null) ? 1 : 0;
+            int total = size.get() - excludedPresent;
+            if (total <= 0) {
+                return null;
+            }
+
+            // Walk the stripe sizes to find the stripe holding the target position
+            int target = random.nextInt(total);
+            for (Stripe stripe : stripes) {
+                int weight = stripe.size - (stripe == excludedStripe ? excludedPresent : 0);
+                if (target < weight) {
+                    synchronized (stripe) {
+                        PeerInfoRecord peer = stripe.peers.randomExcluding(excludedKey, random);
+                        if (peer != null) {
+                            return peer;
+                        }
+                    }
+                    break; // The stripe emptied concurrently, draw again
+                }
+                target -= weight;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Returns an immutable view of every registered peer. The copy is cached and shared until
+     * the registry changes again.
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current;
+        }
+
+        Map<InetSocketAddress, PeerInfoRecord> peers = new LinkedHashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.peers.copyInto(peers);
+            }
+        }
+        Snapshot rebuilt = new Snapshot(currentVersion, Collections.unmodifiableMap(peers));
+        if (rebuilt.version > snapshot.version) {
+            snapshot = rebuilt;
+        }
+        return rebuilt;
+    }
+
+    private Stripe stripeFor(InetSocketAddress key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16); // Spread the port bits over the low bits used for the index
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    private static final class Stripe {
+        final IndexedPeerSet peers = new IndexedPeerSet();
+        volatile int size = 0;
+    }
+
+    /**
+     * An immutable copy of the registry at a given version.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Map<InetSocketAddress, PeerInfoRecord> peers;
+
+        Snapshot(long version, Map<InetSocketAddress, PeerInfoRecord> peers) {
+            this.version = version;
+            this.peers = peers;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Map<InetSocketAddress, PeerInfoRecord> getPeers() {
+            return peers;
+        }
+    }
+}
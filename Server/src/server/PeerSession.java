@@ -0,0 +1,685 @@
+package server;
+
+import common.Frames;
+import common.Metrics;
+import common.Opcode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.*;
+
+/**
+ * Protocol state for a single peer connection, independent of how the bytes are moved.
+ * Both the blocking {@link PeerHandler} and the {@link NioServerEngine} feed received lines
+ * and frames into a session, so the handshake and command handling only exist once.
+ * <p>
+ * A connection starts in the text protocol. If the first line is {@link Frames#PROTOCOL_LINE}
+ * the session echoes it and expects frames from then on (see {@link #isFramed()}).
+ * <p>
+ * Framed peers that ask for it get a session token when they join. When such a peer's connection
+ * drops, its registration stays for one more lease, and a new connection that presents the token
+ * takes it over in place: same registry entry, same neighbors, no leave and join for the other
+ * peers to see.
+ */
+class PeerSession {
+    private static final Logger LOGGER = Logger.getLogger(PeerSession.class.getName());
+    // From accepting the connection until the join reply is sent
+    private static final Metrics.Histogram HANDSHAKE_LATENCY = Central_Server.getMetrics().histogram("handshake.latency_us");
+    private static final Metrics.Counter EXPIRED_LEASES = Central_Server.getMetrics().counter("leases.expired");
+    private static final Metrics.Counter SHARD_REDIRECTS = Central_Server.getMetrics().counter("shard.redirects");
+    private static final Metrics.Counter SESSIONS_RESUMED = Central_Server.getMetrics().counter("sessions.resumed");
+    // The most peers suggested in one join reply, whatever the peer asks for
+    private static final int MAX_SUGGESTIONS = 8;
+
+    /**
+     * Sink for messages to the peer. Implementations must allow sending from any thread, since
+     * membership updates are pushed by the {@link MembershipPublisher}.
+     */
+    interface Channel {
+        /**
+         * Sends a line of the text protocol.
+         */
+        void sendLine(String line) throws IOException;
+
+        /**
+         * Sends the encoded frames between the buffer's position and limit. The buffer may be
+         * reused by the caller once this returns.
+         */
+        void sendFrame(ByteBuffer frame) throws IOException;
+
+        /**
+         * Closes the connection. May be called from any thread.
+         */
+        void disconnect() throws IOException;
+    }
+
+    // The channel of restored peers, which have no connection to the server
+    private static final Channel DISCONNECTED = new Channel() {
+        @Override
+        public void sendLine(String line) throws IOException {
+            throw new IOException("Not connected");
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) throws IOException {
+            throw new IOException("Not connected");
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    };
+
+    // The peer's key in the registry: its address and outgoing port when it joined. A connection
+    // that resumes a session takes over the key of the one it resumes.
+    private volatile InetSocketAddress peerAddress;
+    private int peerListenerPort; // guarded by this
+    private final Channel channel;
+    private final long connectedNanos = System.nanoTime();
+    // Replies are only encoded on the thread reading from the peer, the largest is a SESSION
+    // followed by a CONNECT_TO with MAX_SUGGESTIONS addresses of up to 19 bytes
+    private final ByteBuffer replyBuffer = ByteBuffer.allocate(64 + MAX_SUGGESTIONS * 19);
+    private volatile boolean framed = false;
+    private boolean joined = false;
+    // Granted on connect so a handshake cannot hang forever, then kept for framed peers; text
+    // peers get it back on their first heartbeat, so old peers that never send heartbeats are
+    // only removed when their connection closes
+    private volatile LeaseWheel.Lease<PeerSession> lease;
+    // Whether this connection still counts against the server's pending handshakes
+    private final AtomicBoolean handshakePending = new AtomicBoolean(true);
+    // Peers suggested on join or on request whose reserved slots are released by the next topology report
+    private List<PeerInfoRecord> suggestedPeers = Collections.emptyList();
+    // Lets the peer resume its registration from a new connection, 0 if it did not ask for one
+    private long sessionToken = 0; // guarded by this
+    // Set once the peer was removed, or its registration was taken over by a resumed connection
+    private boolean ended = false; // guarded by this
+    // Whether the join reply still has to carry the token (only touched on the reading thread)
+    private boolean tokenPending = false;
+
+    /**
+     * @param peerAddress The peer's address as seen by the server (outgoing port).
+     * @param channel     Where replies to the peer are written.
+     */
+    PeerSession(InetSocketAddress peerAddress, Channel channel) {
+        this.peerAddress = peerAddress;
+        this.channel = channel;
+        renewLease();
+    }
+
+    /**
+     * Creates the session of a peer restored by the {@link RegistryStore} after a restart. It has
+     * no connection; the peer stays registered until its lease runs out.
+     *
+     * @param peerAddress      The peer's address as seen by the server before the restart.
+     * @param peerListenerPort The port the peer listens on for peer connections.
+     */
+    static PeerSession restore(InetSocketAddress peerAddress, int peerListenerPort) {
+        PeerSession session = new PeerSession(peerAddress, DISCONNECTED);
+        session.joined = true;
+        session.peerListenerPort = peerListenerPort;
+        session.handshakePending.set(false); // Was never admitted
+        session.renewLease();
+        return session;
+    }
+
+    /**
+     * @return true once the peer negotiated the framed protocol and only frames follow.
+     */
+    boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Handles one line of the text protocol. The first line is the peer's listener port (or the
+     * framed protocol request, or another shard's {@link ShardCluster#SAMPLE_REQUEST}), every
+     * following line is a command:
+     * - "heartbeat": Renews the peer's lease.
+     * - "subscribe": Pushes the membership view and then membership changes to the peer.
+     * - "topology ip:port...": Reports the listener addresses of the peer's neighbors.
+     * - "quit": Removes the peer from the network and terminates the connection.
+     *
+     * @param line The received line without its terminator.
+     * @return false once the connection should be closed.
+     * @throws IOException If the reply could not be written.
+     */
+    boolean onLine(String line) throws IOException {
+        if (!joined) {
+            if (line.equals(Frames.PROTOCOL_LINE)) {
+                framed = true;
+                channel.sendLine(Frames.PROTOCOL_LINE);
+                return true;
+            }
+            if (line.startsWith(ShardCluster.SAMPLE_REQUEST)) {
+                return answerSample(line);
+            }
+
+            try {
+                return join(Integer.parseInt(line.trim()), 1, false);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid listener port from " + peerAddress + ": " + line);
+                return false;
+            }
+        }
+
+        if (line.equalsIgnoreCase("heartbeat")) {
+            renewLease();
+            return true;
+        }
+        renewLeaseIfGranted();
+        LOGGER.info(() -> "Received command from " + peerAddress + ": " + line);
+
+        if (line.equalsIgnoreCase("quit")) {
+            return quit();
+        } else if (line.equalsIgnoreCase("subscribe")) {
+            Central_Server.subscribeToMembership(peerAddress, this);
+        } else if (line.startsWith("topology")) {
+            updateTopology(parseTopology(line));
+        } else {
+            LOGGER.warning("Unknown command from peer: " + line);
+        }
+        return true;
+    }
+
+    /**
+     * Handles one frame of the framed protocol. The first frame is {@link Opcode#HELLO} with the
+     * peer's listener port, how many peers it wants suggested and its feature bits, or
+     * {@link Opcode#RESUME} with a session token in front of the same. The others are {@link Opcode#HEARTBEAT}, {@link Opcode#SUBSCRIBE},
+     * {@link Opcode#TOPOLOGY}, {@link Opcode#PEERS} and {@link Opcode#QUIT}.
+     *
+     * @param opcode  The frame's opcode.
+     * @param payload The frame's payload, only valid during this call.
+     * @return false once the connection should be closed.
+     * @throws IOException If the frame is malformed or the reply could not be written.
+     */
+    boolean onFrame(Opcode opcode, ByteBuffer payload) throws IOException {
+        try {
+            return handleFrame(opcode, payload);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Frame too short: " + opcode, e);
+        }
+    }
+
+    private boolean handleFrame(Opcode opcode, ByteBuffer payload) throws IOException {
+        if (!joined) {
+            if (opcode != Opcode.HELLO && opcode != Opcode.RESUME) {
+                LOGGER.warning("Expected HELLO from " + peerAddress + " but got " + opcode);
+                return false;
+            }
+            long token = opcode == Opcode.RESUME ? payload.getLong() : 0;
+            int peerListenerPort = payload.getInt();
+            // Older peers only send the port and get a single suggestion
+            int suggestions = payload.remaining() >= 4 ? payload.getInt() : 1;
+            int features = payload.remaining() >= 4 ? payload.getInt() : 0;
+            if (opcode == Opcode.RESUME && resume(token, peerListenerPort)) {
+                return true;
+            }
+            // A session that cannot be resumed is joined anew
+            if ((features & Frames.FEATURE_SHARD_REDIRECT) != 0) {
+                InetSocketAddress owner = Central_Server.ownerShard(peerAddress.getAddress(), peerListenerPort);
+                if (owner != null) {
+                    return redirectToShard(owner);
+                }
+            }
+            boolean open = join(peerListenerPort, suggestions, (features & Frames.FEATURE_SESSION) != 0);
+            renewLease(); // Framed peers always send heartbeats
+            return open;
+        }
+
+        renewLease();
+        if (opcode == Opcode.HEARTBEAT) {
+            return true;
+        }
+        LOGGER.info(() -> "Received command from " + peerAddress + ": " + opcode);
+
+        switch (opcode) {
+            case QUIT:
+                return quit();
+            case SUBSCRIBE:
+                Central_Server.subscribeToMembership(peerAddress, this);
+                break;
+            case TOPOLOGY: {
+                int count = Frames.getCount(payload, Frames.MIN_ADDRESS_LENGTH);
+                List<InetSocketAddress> neighbors = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    neighbors.add(Frames.getAddress(payload));
+                }
+                updateTopology(neighbors);
+                break;
+            }
+            case PEERS:
+                suggestPeers(payload.getInt());
+                break;
+            default:
+                LOGGER.warning("Unknown command from peer: " + opcode);
+        }
+        return true;
+    }
+
+    /**
+     * Sends a pushed message in whichever protocol the peer speaks.
+     *
+     * @param line  The message in the text protocol.
+     * @param frame The message as an encoded frame, left untouched.
+     */
+    void push(String line, ByteBuffer frame) throws IOException {
+        if (framed) {
+            channel.sendFrame(frame.duplicate());
+        } else {
+            channel.sendLine(line);
+        }
+    }
+
+    /**
+     * Removes the peer from the network once its connection is gone. A peer with a session token
+     * stays registered for one more lease instead, so it can resume the session.
+     */
+    void close() {
+        finishHandshake();
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            if (joined && sessionToken != 0) {
+                Central_Server.unsubscribeFromMembership(peerAddress);
+                renewLease(); // A whole lease to come back
+                LOGGER.info(() -> "Connection lost, keeping the session for resumption: " + peerAddress);
+                return;
+            }
+        }
+        remove();
+    }
+
+    /**
+     * Called by the lease wheel when the peer stopped sending heartbeats, or did not finish its
+     * handshake within one lease, or did not resume its session. Removes the peer so it is no
+     * longer handed out to joining peers, and closes the (probably half-open) connection.
+     */
+    void expire() {
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+        }
+        if (joined) {
+            LOGGER.warning("Lease expired, removing peer: " + peerAddress);
+            EXPIRED_LEASES.increment();
+        } else {
+            LOGGER.warning("Handshake timed out: " + peerAddress);
+        }
+        finishHandshake();
+        remove();
+        try {
+            channel.disconnect();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing connection of expired peer: " + peerAddress, e);
+        }
+    }
+
+    /**
+     * Closes the connection. Like a lost connection, the peer can resume its session from a new one.
+     */
+    void disconnect() {
+        try {
+            channel.disconnect();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing connection of peer: " + peerAddress, e);
+        }
+    }
+
+    InetSocketAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    private void renewLease() {
+        LeaseWheel<PeerSession> leases = Central_Server.getLeaseWheel();
+        if (lease == null) {
+            lease = leases.grant(this);
+        } else {
+            leases.renew(lease);
+        }
+    }
+
+    private void renewLeaseIfGranted() {
+        if (lease != null) {
+            Central_Server.getLeaseWheel().renew(lease);
+        }
+    }
+
+    private void cancelLease() {
+        if (lease != null) {
+            Central_Server.getLeaseWheel().cancel(lease);
+        }
+    }
+
+    /**
+     * Frees this connection's place among the server's pending handshakes, once.
+     */
+    private void finishHandshake() {
+        if (handshakePending.compareAndSet(true, false)) {
+            Central_Server.handshakeFinished();
+        }
+    }
+
+    /**
+     * Parses "topology ip:port ip:port..." into the listed addresses, skipping malformed ones.
+     */
+    private List<InetSocketAddress> parseTopology(String line) {
+        String[] parts = line.split(" ");
+        List<InetSocketAddress> neighbors = new ArrayList<>(parts.length - 1);
+        for (int i = 1; i < parts.length; i++) {
+            int separator = parts[i].lastIndexOf(':');
+            try {
+                neighbors.add(new InetSocketAddress(InetAddress.getByName(parts[i].substring(0, separator)),
+                        Integer.parseInt(parts[i].substring(separator + 1))));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warning("Invalid neighbor in topology report from " + peerAddress + ": " + parts[i]);
+            }
+        }
+        return neighbors;
+    }
+
+    private boolean quit() {
+        LOGGER.info(() -> "Peer disconnecting: " + peerAddress);
+        remove();
+        return false;
+    }
+
+    /**
+     * Removes the peer from the registry and ends its session, once.
+     */
+    private synchronized void remove() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        cancelLease();
+        if (joined) {
+            Central_Server.unsubscribeFromMembership(peerAddress);
+            Central_Server.removePeer(peerAddress);
+            Central_Server.endSession(sessionToken, this);
+            Central_Server.forgetRestoredPeer(new InetSocketAddress(peerAddress.getAddress(), peerListenerPort), this);
+        }
+    }
+
+    /**
+     * Takes over the registration of the peer from the connection that resumes it: that
+     * connection's session now owns the registry key, and this one is done. A connection of this
+     * session that is still open (the peer noticed the loss first) is closed.
+     *
+     * @param address          The address the resuming connection comes from.
+     * @param peerListenerPort The listener port the resuming peer reports.
+     * @return The registry key, or null if the registration is gone or belongs to another peer.
+     */
+    private InetSocketAddress handOver(InetAddress address, int peerListenerPort) {
+        synchronized (this) {
+            if (ended || !joined || this.peerListenerPort != peerListenerPort || !peerAddress.getAddress().equals(address)) {
+                return null;
+            }
+            ended = true;
+            cancelLease();
+            Central_Server.unsubscribeFromMembership(peerAddress);
+        }
+        try {
+            channel.disconnect();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing the replaced connection of peer: " + peerAddress, e);
+        }
+        return peerAddress;
+    }
+
+    /**
+     * Resumes the registration of a peer whose connection was lost. After a restart the server
+     * does not know the token, but still holds the peer's restored registration, which is then
+     * resumed with a new token.
+     *
+     * @param token            The token the peer got when it joined.
+     * @param peerListenerPort The port the peer listens on for peer connections.
+     * @return false if there is nothing to resume and the peer has to join anew.
+     */
+    private boolean resume(long token, int peerListenerPort) throws IOException {
+        PeerSession previous = Central_Server.findSession(token);
+        if (previous == null) {
+            previous = Central_Server.takeRestoredPeer(new InetSocketAddress(peerAddress.getAddress(), peerListenerPort));
+            token = 0;
+        }
+        InetSocketAddress registryKey = previous == null ? null : previous.handOver(peerAddress.getAddress(), peerListenerPort);
+        if (registryKey == null) {
+            return false;
+        }
+
+        InetSocketAddress connectedFrom = peerAddress;
+        synchronized (this) {
+            peerAddress = registryKey;
+            this.peerListenerPort = peerListenerPort;
+            joined = true;
+            sessionToken = token != 0 ? token : Central_Server.openSession(this);
+        }
+        if (token != 0) {
+            Central_Server.resumeSession(token, this);
+        }
+        finishHandshake();
+        renewLease();
+        SESSIONS_RESUMED.increment();
+        LOGGER.info(() -> "Peer resumed its session: " + registryKey + " (now connected from port " + connectedFrom.getPort() + ")");
+
+        sendResumed();
+        HANDSHAKE_LATENCY.recordSince(connectedNanos);
+        return true;
+    }
+
+    /**
+     * Records the neighbors the peer reported. The first report also frees the slots reserved on
+     * suggested peers that the peer did not connect to.
+     *
+     * @param neighbors The listener addresses of the peer's neighbors.
+     */
+    private void updateTopology(List<InetSocketAddress> neighbors) {
+        Central_Server.updateTopology(peerAddress, neighbors);
+        for (PeerInfoRecord suggested : suggestedPeers) {
+            if (!neighbors.contains(new InetSocketAddress(suggested.getAddress(), suggested.getPeerListenerPort()))) {
+                Central_Server.releaseSuggestion(suggested);
+            }
+        }
+        suggestedPeers = Collections.emptyList();
+    }
+
+    /**
+     * Answers a peer that lost neighbors and knows no other peers to replace them with: random
+     * peers with a free slot, like the join reply, or an empty CONNECT_TO if there are none.
+     * Slots reserved for earlier suggestions the peer has not reported yet are released first.
+     *
+     * @param suggestions How many peers the peer wants to try in parallel.
+     */
+    private void suggestPeers(int suggestions) throws IOException {
+        for (PeerInfoRecord suggested : suggestedPeers) {
+            Central_Server.releaseSuggestion(suggested);
+        }
+        List<PeerInfoRecord> validPeers = validPeers(
+                Central_Server.getRandomPeers(peerAddress, Math.max(1, Math.min(suggestions, MAX_SUGGESTIONS))));
+        suggestedPeers = validPeers;
+        sendConnectTo(validPeers);
+        LOGGER.info(() -> "Sent replacement peers to " + peerAddress + ": " + validPeers);
+    }
+
+    /**
+     * @return The peers with a valid listener port; the slots reserved on the others are released.
+     */
+    private static List<PeerInfoRecord> validPeers(List<PeerInfoRecord> randomPeers) {
+        List<PeerInfoRecord> validPeers = new ArrayList<>(randomPeers.size());
+        for (PeerInfoRecord randomPeer : randomPeers) {
+            // Validate the random peer's details
+            if (randomPeer.getPeerListenerPort() <= 0 || randomPeer.getPeerListenerPort() > 65535) {
+                LOGGER.warning("Invalid random peer retrieved: " + randomPeer);
+                Central_Server.releaseSuggestion(randomPeer);
+            } else {
+                validPeers.add(randomPeer);
+            }
+        }
+        return validPeers;
+    }
+
+    /**
+     * Registers the peer with the Central Server and replies with random peers to connect to
+     * (if available).
+     *
+     * @param peerListenerPort The port the peer listens on for peer connections.
+     * @param suggestions      How many peers the peer wants to try in parallel.
+     * @param withSession      Whether to give the peer a session token to resume with.
+     * @return true, the connection stays open for commands.
+     */
+    private boolean join(int peerListenerPort, int suggestions, boolean withSession) throws IOException {
+        // Registering the peer with the Central Server
+        Central_Server.addPeer(peerAddress.getAddress(), peerAddress.getPort(), peerListenerPort);
+        synchronized (this) {
+            this.peerListenerPort = peerListenerPort;
+            joined = true;
+            if (withSession && framed) {
+                sessionToken = Central_Server.openSession(this);
+                tokenPending = true;
+            }
+        }
+        finishHandshake();
+        if (!framed) {
+            // Text peers may never send heartbeats, so they only get a lease with the first one
+            cancelLease();
+            lease = null;
+        }
+        LOGGER.info(() -> "Peer joined: " + peerAddress + " (is listening on port " + peerListenerPort + ") for peer connections");
+
+        // Provide random peers' listener ports or status message
+        List<PeerInfoRecord> randomPeers = Central_Server.getRandomPeers(peerAddress, Math.min(suggestions, MAX_SUGGESTIONS));
+        List<PeerInfoRecord> validPeers = validPeers(randomPeers);
+
+        if (!validPeers.isEmpty()) {
+            // Send the random peers' listener ports to the connecting peer
+            suggestedPeers = validPeers;
+            sendConnectTo(validPeers);
+            LOGGER.info(() -> "Sent random peers to " + peerAddress + ": " + validPeers);
+        } else if (!randomPeers.isEmpty()) {
+            sendError("Invalid peer details.");
+        } else {
+            // No other peers available
+            if (framed) {
+                sendReply(Opcode.FIRST_PEER);
+            } else {
+                channel.sendLine("You are the first peer in the network.");
+            }
+            LOGGER.info(() -> "First peer in the network: " + peerAddress);
+        }
+        HANDSHAKE_LATENCY.recordSince(connectedNanos);
+        return true;
+    }
+
+    /**
+     * Sends another shard a sample of this shard's peers with a free neighbor slot.
+     *
+     * @param line "SHARD SAMPLE &lt;count&gt;"
+     * @return false, the connection closes once the sample is sent.
+     */
+    private boolean answerSample(String line) throws IOException {
+        finishHandshake();
+        try {
+            int count = Integer.parseInt(line.substring(ShardCluster.SAMPLE_REQUEST.length()).trim());
+            channel.sendLine(Central_Server.shardSample(count));
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid sample request from " + peerAddress + ": " + line);
+        }
+        return false;
+    }
+
+    /**
+     * Tells a joining peer which shard registers it instead of this one.
+     *
+     * @param owner The owning shard's address.
+     * @return false, the connection closes once the reply is sent.
+     */
+    private boolean redirectToShard(InetSocketAddress owner) throws IOException {
+        finishHandshake();
+        SHARD_REDIRECTS.increment();
+        replyBuffer.clear();
+        int start = Frames.begin(replyBuffer, Opcode.SERVER_AT);
+        Frames.putAddress(replyBuffer, owner.getAddress(), owner.getPort());
+        Frames.end(replyBuffer, start);
+        replyBuffer.flip();
+        channel.sendFrame(replyBuffer);
+        LOGGER.info(() -> "Redirected " + peerAddress + " to shard " + owner);
+        return false;
+    }
+
+    /**
+     * Sends the suggested peers. Text peers only understand one, so they get the first.
+     */
+    private void sendConnectTo(List<PeerInfoRecord> peers) throws IOException {
+        if (framed) {
+            beginReply();
+            int start = Frames.begin(replyBuffer, Opcode.CONNECT_TO);
+            for (PeerInfoRecord peer : peers) {
+                Frames.putAddress(replyBuffer, peer.getAddress(), peer.getPeerListenerPort());
+            }
+            Frames.end(replyBuffer, start);
+            replyBuffer.flip();
+            channel.sendFrame(replyBuffer);
+        } else {
+            PeerInfoRecord peer = peers.get(0);
+            channel.sendLine("Connect to: " + peer.getAddress().getHostAddress() + " " + peer.getPeerListenerPort());
+        }
+    }
+
+    private void sendError(String reason) throws IOException {
+        if (framed) {
+            beginReply();
+            int start = Frames.begin(replyBuffer, Opcode.ERROR);
+            Frames.putString(replyBuffer, reason);
+            Frames.end(replyBuffer, start);
+            replyBuffer.flip();
+            channel.sendFrame(replyBuffer);
+        } else {
+            channel.sendLine("Error: " + reason);
+        }
+    }
+
+    /**
+     * Starts encoding a reply. The session token the join just issued goes in front of the join
+     * reply, in the same write: sent on its own, it would hold the reply back until the peer
+     * acknowledges it (Nagle's algorithm against delayed acks).
+     */
+    private void beginReply() {
+        replyBuffer.clear();
+        if (tokenPending) {
+            tokenPending = false;
+            putToken(Opcode.SESSION);
+        }
+    }
+
+    private void putToken(Opcode opcode) {
+        long token;
+        synchronized (this) {
+            token = sessionToken;
+        }
+        int start = Frames.begin(replyBuffer, opcode);
+        replyBuffer.putLong(token);
+        Frames.end(replyBuffer, start);
+    }
+
+    private void sendResumed() throws IOException {
+        replyBuffer.clear();
+        putToken(Opcode.RESUMED);
+        replyBuffer.flip();
+        channel.sendFrame(replyBuffer);
+    }
+
+    private void sendReply(Opcode opcode) throws IOException {
+        beginReply();
+        int start = Frames.begin(replyBuffer, opcode);
+        Frames.end(replyBuffer, start);
+        replyBuffer.flip();
+        channel.sendFrame(replyBuffer);
+    }
+}
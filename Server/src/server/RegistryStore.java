@@ -0,0 +1,414 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+/**
+ * Persists the peer registry so a restarted server can hand out peers right away instead of
+ * waiting for every peer to rejoin.
+ * <p>
+ * The state lives in memory-mapped files of fixed size records:
+ * <ul>
+ *     <li><code>&lt;name&gt;.dat</code> a snapshot of the whole registry, replaced atomically on compaction.</li>
+ *     <li><code>&lt;name&gt;.0.log</code> and <code>&lt;name&gt;.1.log</code> two segments of an append-only
+ *     log of joins and leaves since that snapshot.</li>
+ * </ul>
+ * Appending a change is a write to mapped memory, so it survives a crash of the server process
+ * without any system call on the join path. When the log segment is full, changes go on in the
+ * other segment while the <code>registry-compactor</code> thread folds everything into a new
+ * snapshot, so joins never wait for a snapshot to be written. The same happens periodically (see
+ * {@link #startCompacting}): heartbeats are not logged, so a fresh snapshot is what refreshes the
+ * lease expiry of peers that joined long ago and are still alive.
+ * <p>
+ * Snapshot and segments carry a generation number. A new segment gets the generation of the
+ * snapshot that is being written, and is taken after the segment is started, so the changes since
+ * the last snapshot are in the segment of its generation and the one after. Restoring applies
+ * both; older segments were already folded in and are ignored. Should the second segment fill up
+ * too before the snapshot is written, the changes that do not fit are only in the snapshot
+ * written right after it.
+ * <p>
+ * Record layout (32 bytes): op (1 add, 2 remove), address length, address (16 bytes), outgoing
+ * port, listener port, lease expiry (epoch millis), padding. The op is written last, so a record
+ * that was torn by a crash reads as the end of the log.
+ */
+class RegistryStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(RegistryStore.class.getName());
+
+    private static final int MAGIC = 0x50325052; // "P2PR"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 32; // magic, version, generation, record count
+    private static final int RECORD_LENGTH = 32;
+    private static final byte OP_END = 0;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final long NO_GENERATION = -1; // of a cleared segment
+
+    private final Path snapshotFile;
+    private final Path[] logFiles;
+    private final int logCapacity;
+    private final long leaseMillis;
+    private final PeerRegistry registry;
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registry-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long generation = 0; // of the last snapshot written, guarded by this
+    private final FileChannel[] logChannels = new FileChannel[2]; // guarded by this
+    private final MappedByteBuffer[] logs = new MappedByteBuffer[2]; // guarded by this
+    private final long[] segmentGenerations = {NO_GENERATION, NO_GENERATION}; // guarded by this
+    private int active = 0; // The segment changes are appended to, guarded by this
+    private boolean compacting = false; // A snapshot is being written, guarded by this
+    private boolean changesMissed = false; // Changes did not fit into the log while it was, guarded by this
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH); // guarded by this
+
+    /**
+     * @param baseName    Path of the files without extension.
+     * @param logCapacity How many changes the log holds before it is compacted.
+     * @param leaseMillis Lease length stored with every join.
+     * @param registry    The registry that is restored and compacted.
+     */
+    RegistryStore(String baseName, int logCapacity, long leaseMillis, PeerRegistry registry) {
+        this.snapshotFile = Path.of(baseName + ".dat");
+        this.logFiles = new Path[] {Path.of(baseName + ".0.log"), Path.of(baseName + ".1.log")};
+        this.logCapacity = logCapacity;
+        this.leaseMillis = leaseMillis;
+        this.registry = registry;
+    }
+
+    /**
+     * Restores the registry from the snapshot and the log, writes a fresh snapshot and opens the
+     * log segments for appending. Peers whose lease ran out more than <code>maxAgeMillis</code> ago are not
+     * restored.
+     *
+     * @return The restored peers, keyed by their address as seen by the server.
+     * @throws IOException If the files could not be read or written.
+     */
+    synchronized Map<InetSocketAddress, PeerInfoRecord> open(long maxAgeMillis) throws IOException {
+        Map<InetSocketAddress, Long> leaseExpiries = new LinkedHashMap<>();
+        Map<InetSocketAddress, PeerInfoRecord> peers = new LinkedHashMap<>();
+
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (readHeader(snapshot, snapshotFile)) {
+                    int count = snapshot.getInt(16);
+                    if (count >= 0 && count <= (snapshot.capacity() - HEADER_LENGTH) / RECORD_LENGTH
+                            && applyAll(snapshot, count, peers, leaseExpiries)) {
+                        generation = snapshot.getLong(8);
+                    } else {
+                        LOGGER.warning("Ignoring corrupt registry file: " + snapshotFile);
+                        peers.clear();
+                        leaseExpiries.clear();
+                    }
+                }
+            }
+        }
+        // The segment of the snapshot's generation, then the one started while the next was written
+        for (long segmentGeneration = generation; segmentGeneration <= generation + 1; segmentGeneration++) {
+            for (Path logFile : logFiles) {
+                if (Files.exists(logFile)) {
+                    restoreLog(logFile, segmentGeneration, peers, leaseExpiries);
+                }
+            }
+        }
+
+        long oldestLease = System.currentTimeMillis() - maxAgeMillis;
+        peers.keySet().removeIf(key -> leaseExpiries.get(key) < oldestLease);
+        for (Map.Entry<InetSocketAddress, PeerInfoRecord> peer : peers.entrySet()) {
+            registry.add(peer.getKey(), peer.getValue());
+        }
+
+        // Everything restored is in the new snapshot, so both segments can start over
+        compacting = true;
+        writeSnapshot(generation + 1);
+        for (int segment = logs.length - 1; segment >= 0; segment--) {
+            logChannels[segment] = FileChannel.open(logFiles[segment], StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            logs[segment] = logChannels[segment].map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_LENGTH + (long) logCapacity * RECORD_LENGTH);
+            startSegment(segment, segment == active ? generation : NO_GENERATION);
+        }
+        return peers;
+    }
+
+    /**
+     * Applies a log segment to the restored state if it has the given generation.
+     */
+    private static void restoreLog(Path logFile, long segmentGeneration, Map<InetSocketAddress, PeerInfoRecord> peers,
+                                   Map<InetSocketAddress, Long> leaseExpiries) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            MappedByteBuffer changes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!readHeader(changes, logFile) || changes.getLong(8) != segmentGeneration) {
+                return;
+            }
+            Map<InetSocketAddress, PeerInfoRecord> changedPeers = new LinkedHashMap<>(peers);
+            Map<InetSocketAddress, Long> changedExpiries = new LinkedHashMap<>(leaseExpiries);
+            if (applyAll(changes, (changes.capacity() - HEADER_LENGTH) / RECORD_LENGTH, changedPeers, changedExpiries)) {
+                peers.clear();
+                peers.putAll(changedPeers);
+                leaseExpiries.clear();
+                leaseExpiries.putAll(changedExpiries);
+            } else {
+                LOGGER.warning("Ignoring corrupt registry file: " + logFile);
+            }
+        }
+    }
+
+    /**
+     * Starts writing a fresh snapshot every interval, so the lease expiry stored for every peer
+     * still registered is never older than the interval.
+     *
+     * @param intervalMillis Time between snapshots, 0 to only compact when the log is full.
+     */
+    void startCompacting(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        compactor.scheduleWithFixedDelay(this::compactQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Logs a join.
+     */
+    synchronized void peerAdded(PeerInfoRecord peer) {
+        append(OP_ADD, peer);
+    }
+
+    /**
+     * Logs a leave.
+     */
+    synchronized void peerRemoved(PeerInfoRecord peer) {
+        append(OP_REMOVE, peer);
+    }
+
+    /**
+     * Starts a new log segment and writes the current registry as a new snapshot, unless a
+     * snapshot is being written already. Changes are logged meanwhile.
+     */
+    void compact() throws IOException {
+        long nextGeneration;
+        synchronized (this) {
+            nextGeneration = startGeneration();
+        }
+        if (nextGeneration != NO_GENERATION) {
+            writeSnapshot(nextGeneration);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to compact the registry log", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdown();
+        for (int segment = 0; segment < logs.length; segment++) {
+            if (logs[segment] != null) {
+                logs[segment].force();
+                logChannels[segment].close();
+                logs[segment] = null;
+            }
+        }
+    }
+
+    /**
+     * Moves appending to the other log segment, for the generation of the next snapshot. If the
+     * last snapshot failed, the other segment still holds changes that are in no snapshot, so the
+     * snapshot is written for the current segment instead.
+     *
+     * @return The generation of the snapshot to write, or NO_GENERATION if one is being written
+     * already or the log is closed.
+     */
+    private long startGeneration() {
+        if (compacting || logs[active] == null) {
+            return NO_GENERATION;
+        }
+        compacting = true;
+        if (segmentGenerations[1 - active] < generation) {
+            active = 1 - active;
+            startSegment(active, generation + 1);
+        }
+        return segmentGenerations[active];
+    }
+
+    /**
+     * Clears a log segment, before its header names the generation its changes belong to.
+     */
+    private void startSegment(int segment, long segmentGeneration) {
+        MappedByteBuffer log = logs[segment];
+        for (int offset = HEADER_LENGTH; offset < log.capacity(); offset += RECORD_LENGTH) {
+            log.put(offset, OP_END);
+        }
+        writeHeader(log, segmentGeneration);
+        log.position(HEADER_LENGTH);
+        segmentGenerations[segment] = segmentGeneration;
+    }
+
+    /**
+     * Writes the current registry as the snapshot of a generation, without holding the lock that
+     * appending takes. If changes did not fit into the log meanwhile, the next snapshot is
+     * started right away.
+     */
+    private void writeSnapshot(long nextGeneration) throws IOException {
+        long started = System.nanoTime();
+        try {
+            List<PeerInfoRecord> peers = new ArrayList<>(registry.snapshot().getPeers().values());
+            long leaseExpiry = System.currentTimeMillis() + leaseMillis;
+            ByteBuffer snapshotRecord = ByteBuffer.allocate(RECORD_LENGTH);
+
+            // Write the snapshot next to the old one and swap it in, so a crash leaves one of them intact
+            Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long) peers.size() * RECORD_LENGTH);
+                writeHeader(snapshot, nextGeneration);
+                snapshot.putInt(16, peers.size());
+                snapshot.position(HEADER_LENGTH);
+                for (PeerInfoRecord peer : peers) {
+                    encode(snapshotRecord, OP_ADD, peer, leaseExpiry);
+                    snapshot.put(snapshotRecord);
+                }
+                snapshot.force();
+            }
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Wrote registry snapshot of " + peers.size() + " peers in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms");
+            synchronized (this) {
+                generation = nextGeneration;
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                if (changesMissed && !compactor.isShutdown()) {
+                    changesMissed = false;
+                    compactor.execute(this::compactQuietly);
+                }
+            }
+        }
+    }
+
+    private void append(byte op, PeerInfoRecord peer) {
+        if (logs[active] == null) {
+            return;
+        }
+        MappedByteBuffer log = logs[active];
+        if (!log.hasRemaining()) {
+            long nextGeneration = startGeneration();
+            if (nextGeneration != NO_GENERATION) {
+                compactor.execute(() -> {
+                    try {
+                        writeSnapshot(nextGeneration);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.SEVERE, "Failed to compact the registry log", e);
+                    }
+                });
+            }
+            log = logs[active];
+            if (!log.hasRemaining()) {
+                // The registry was updated first, so the snapshot after the one being written has this change
+                if (!changesMissed) {
+                    LOGGER.warning("Registry log full while a snapshot is written, changes wait for the next one");
+                    changesMissed = true;
+                }
+                return;
+            }
+        }
+
+        encode(record, op, peer, System.currentTimeMillis() + leaseMillis);
+        int offset = log.position();
+        log.position(offset + 1);
+        log.put(record.array(), 1, RECORD_LENGTH - 1);
+        log.put(offset, op); // Last, so the record only counts once complete
+    }
+
+    private static void encode(ByteBuffer record, byte op, PeerInfoRecord peer, long leaseExpiry) {
+        byte[] address = peer.getAddress().getAddress();
+        record.clear();
+        record.put(op);
+        record.put((byte) address.length);
+        record.put(address);
+        record.position(18);
+        record.putShort((short) peer.getOutgoingPort());
+        record.putShort((short) peer.getPeerListenerPort());
+        record.putLong(leaseExpiry);
+        record.putShort((short) 0);
+        record.flip();
+    }
+
+    /**
+     * Applies up to <code>count</code> records following the header to the restored state,
+     * stopping early at the end of the log.
+     *
+     * @return false if a record is corrupt.
+     */
+    private static boolean applyAll(ByteBuffer buffer, int count, Map<InetSocketAddress, PeerInfoRecord> peers,
+                                    Map<InetSocketAddress, Long> leaseExpiries) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_LENGTH + i * RECORD_LENGTH;
+            byte op = buffer.get(offset);
+            if (op == OP_END) {
+                return true;
+            }
+            int addressLength = buffer.get(offset + 1);
+            if ((op != OP_ADD && op != OP_REMOVE) || (addressLength != 4 && addressLength != 16)) {
+                return false;
+            }
+
+            byte[] address = new byte[addressLength];
+            for (int j = 0; j < address.length; j++) {
+                address[j] = buffer.get(offset + 2 + j);
+            }
+            InetAddress peerAddress = InetAddress.getByAddress(address);
+            int outgoingPort = Short.toUnsignedInt(buffer.getShort(offset + 18));
+            int listenerPort = Short.toUnsignedInt(buffer.getShort(offset + 20));
+            InetSocketAddress key = new InetSocketAddress(peerAddress, outgoingPort);
+
+            if (op == OP_ADD) {
+                peers.put(key, new PeerInfoRecord(peerAddress, outgoingPort, listenerPort));
+                leaseExpiries.put(key, buffer.getLong(offset + 22));
+            } else {
+                peers.remove(key);
+                leaseExpiries.remove(key);
+            }
+        }
+        return true;
+    }
+
+    private static boolean readHeader(ByteBuffer buffer, Path file) {
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            LOGGER.warning("Ignoring unrecognized registry file: " + file);
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeHeader(ByteBuffer buffer, long generation) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putLong(8, generation);
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.io.IOException;
+import java.util.logging.*;
+
+/**
+ * Configures file logging for every class in the <code>server</code> package.
+ */
+final class ServerLogging {
+    // Held strongly so the configured handler is not lost to logger garbage collection
+    private static final Logger SERVER_LOGGER = Logger.getLogger("server");
+    private static volatile AsyncLogHandler fileHandler;
+
+    private ServerLogging() {
+    }
+
+    /**
+     * Sends all server log records to {@link #fileName()} and removes the default console handler.
+     * Records are written on a background thread; <code>server.log.bufferSize</code> bounds how many may
+     * wait, and <code>server.log.overflow</code> ("drop" or "block") decides what happens beyond that.
+     */
+    static void initialize() {
+        try {
+            fileHandler = new AsyncLogHandler(fileName(),
+                    Integer.getInteger("server.log.bufferSize", 8192),
+                    System.getProperty("server.log.overflow", AsyncLogHandler.DROP));
+            SERVER_LOGGER.addHandler(fileHandler);
+
+            Logger rootLogger = Logger.getLogger("");
+            for (Handler handler : rootLogger.getHandlers()) {
+                rootLogger.removeHandler(handler); // Removes logging in the server console
+            }
+
+            SERVER_LOGGER.setLevel(Level.INFO);
+        } catch (IOException e) {
+            System.err.println("Failed to set up file handler for logger: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The log file, <code>server.logFile</code> (default "server-logs.txt").
+     */
+    static String fileName() {
+        return System.getProperty("server.logFile", "server-logs.txt");
+    }
+
+    /**
+     * @return How many log records are waiting to be written.
+     */
+    static long queuedRecords() {
+        AsyncLogHandler handler = fileHandler;
+        return handler == null ? 0 : handler.queuedRecords();
+    }
+}
@@ -0,0 +1,360 @@
+package server;
+
+import common.Frames;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+/**
+ * The central servers that together hold the registry when it is split across several server
+ * processes (shards), so joins and heartbeats are spread over all of them.
+ * <p>
+ * Every peer has one owning shard, found by consistent hashing of its listener address: each
+ * shard is placed on a hash ring at {@link #VIRTUAL_NODES} points, and a peer belongs to the first
+ * shard at or after its own hash. Adding a shard only moves the peers that land on its points.
+ * Shards that cannot be reached are skipped on the ring, so their peers register with the next
+ * shard instead of failing to join.
+ * <p>
+ * Shards know nothing of each other's peers except a sample: every sync interval, each shard asks
+ * every other one for some of its peers with a free neighbor slot ({@link #SAMPLE_REQUEST}). Joiners
+ * are suggested peers from any shard, in proportion to how many free peers each shard reported.
+ * Membership updates stay within a shard.
+ */
+class ShardCluster {
+    private static final Logger LOGGER = Logger.getLogger(ShardCluster.class.getName());
+
+    // First line of a connection from another shard, followed by the sample size; answered with
+    // "SAMPLE <free peers> ip:port ip:port..." after which the connection closes
+    static final String SAMPLE_REQUEST = "SHARD SAMPLE";
+    static final String SAMPLE_REPLY = "SAMPLE";
+    static final int MAX_SAMPLE_SIZE = 1024;
+    private static final int VIRTUAL_NODES = 64;
+
+    private final Shard[] shards;
+    private final Shard self;
+    // Sorted ring positions and the shard at each of them
+    private final long[] ringPoints;
+    private final Shard[] ringShards;
+    private final int sampleSize;
+    private final int timeoutMillis;
+    private final Random random = new Random();
+    private final ScheduledExecutorService syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Shard {
+        final InetSocketAddress address;
+        // Unknown until the first sync, so peers register locally until the shard answered once
+        volatile boolean reachable;
+        // Free peers the shard reported, less the ones handed out since; guarded by the cluster
+        int freePeers = 0;
+        List<PeerInfoRecord> sample = new ArrayList<>();
+
+        Shard(InetSocketAddress address, boolean reachable) {
+            this.address = address;
+            this.reachable = reachable;
+        }
+    }
+
+    /**
+     * @param addresses     Every shard's address, in the same order on every shard.
+     * @param selfIndex     Which of them is this server.
+     * @param sampleSize    How many free peers are fetched from each other shard per sync.
+     * @param timeoutMillis Bounds connecting to another shard and waiting for its sample.
+     */
+    ShardCluster(List<InetSocketAddress> addresses, int selfIndex, int sampleSize, int timeoutMillis) {
+        this.shards = new Shard[addresses.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(addresses.get(i), i == selfIndex);
+        }
+        this.self = shards[selfIndex];
+        this.sampleSize = sampleSize;
+        this.timeoutMillis = timeoutMillis;
+
+        long[] points = new long[shards.length * VIRTUAL_NODES];
+        Integer[] order = new Integer[points.length];
+        for (int i = 0; i < shards.length; i++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                int index = i * VIRTUAL_NODES + node;
+                points[index] = hash((format(shards[i].address) + "#" + node).getBytes(StandardCharsets.UTF_8));
+                order[index] = index;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+        this.ringPoints = new long[points.length];
+        this.ringShards = new Shard[points.length];
+        for (int i = 0; i < order.length; i++) {
+            ringPoints[i] = points[order[i]];
+            ringShards[i] = shards[order[i] / VIRTUAL_NODES];
+        }
+    }
+
+    /**
+     * Parses the shard list "host:port,host:port..." and finds this server in it: the entry with
+     * the server's port on a local address.
+     *
+     * @param spec       The shards, listed in the same order on every shard.
+     * @param serverPort The port this server listens on.
+     * @throws IllegalArgumentException If the list is malformed or does not contain this server.
+     */
+    static ShardCluster parse(String spec, int serverPort, int sampleSize, int timeoutMillis) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        int selfIndex = -1;
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid shard, expected host:port: " + entry);
+            }
+            InetSocketAddress address;
+            try {
+                address = new InetSocketAddress(InetAddress.getByName(entry.substring(0, separator)),
+                        Integer.parseInt(entry.substring(separator + 1)));
+            } catch (UnknownHostException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid shard: " + entry, e);
+            }
+            if (selfIndex < 0 && address.getPort() == serverPort && isLocal(address.getAddress())) {
+                selfIndex = addresses.size();
+            }
+            addresses.add(address);
+        }
+        if (selfIndex < 0) {
+            throw new IllegalArgumentException("This server (port " + serverPort + ") is not one of the shards: " + spec);
+        }
+        return new ShardCluster(addresses, selfIndex, sampleSize, timeoutMillis);
+    }
+
+    /**
+     * Starts fetching samples from the other shards, right away and then every interval.
+     */
+    void start(long syncIntervalMillis) {
+        syncScheduler.scheduleWithFixedDelay(this::syncAll, 0, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finds the shard a peer registers with.
+     *
+     * @param address      The peer's address.
+     * @param listenerPort The port the peer listens on for peer connections.
+     * @return The owning shard's address, or null if this server owns the peer.
+     */
+    InetSocketAddress ownerOf(InetAddress address, int listenerPort) {
+        byte[] bytes = address.getAddress();
+        byte[] key = Arrays.copyOf(bytes, bytes.length + 2);
+        key[bytes.length] = (byte) (listenerPort >>> 8);
+        key[bytes.length + 1] = (byte) listenerPort;
+
+        int index = Arrays.binarySearch(ringPoints, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int i = 0; i < ringShards.length; i++) {
+            Shard shard = ringShards[(index + i) % ringShards.length];
+            if (shard.reachable) {
+                return shard == self ? null : shard.address;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes peers of other shards for a joiner. Each of the <code>count</code> picks goes to another
+     * shard with the odds of its free peers against all free peers, this shard's included; a taken
+     * peer is not handed out again until it shows up in a later sample.
+     *
+     * @param count      How many peers the joiner needs.
+     * @param localFree  How many peers of this shard could take the joiner.
+     * @return The peers taken, possibly fewer than <code>count</code>.
+     */
+    synchronized List<PeerInfoRecord> takeRemotePeers(int count, int localFree) {
+        List<PeerInfoRecord> taken = Collections.emptyList();
+        for (int pick = 0; pick < count; pick++) {
+            int remoteFree = 0;
+            for (Shard shard : shards) {
+                remoteFree += shard.sample.isEmpty() ? 0 : shard.freePeers;
+            }
+            if (remoteFree == 0) {
+                break;
+            }
+            int target = random.nextInt(localFree + remoteFree) - localFree;
+            if (target < 0) {
+                continue; // This shard's turn
+            }
+
+            Shard shard = null;
+            for (Shard candidate : shards) {
+                target -= candidate.sample.isEmpty() ? 0 : candidate.freePeers;
+                if (target < 0) {
+                    shard = candidate;
+                    break;
+                }
+            }
+            // Swap-remove, the order of a sample does not matter
+            List<PeerInfoRecord> sample = shard.sample;
+            int index = random.nextInt(sample.size());
+            PeerInfoRecord peer = sample.get(index);
+            sample.set(index, sample.get(sample.size() - 1));
+            sample.remove(sample.size() - 1);
+            shard.freePeers--;
+
+            if (taken.isEmpty()) {
+                taken = new ArrayList<>(count);
+            }
+            taken.add(peer);
+        }
+        return taken;
+    }
+
+    /**
+     * @return How many shards, this one included, answered their last sync.
+     */
+    int reachableShards() {
+        int reachable = 0;
+        for (Shard shard : shards) {
+            if (shard.reachable) {
+                reachable++;
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Encodes the answer to a {@link #SAMPLE_REQUEST}.
+     *
+     * @param freePeers How many peers of this shard have a free neighbor slot.
+     * @param sample    Some of them.
+     */
+    static String formatSample(int freePeers, List<PeerInfoRecord> sample) {
+        StringBuilder reply = new StringBuilder(SAMPLE_REPLY).append(' ').append(freePeers);
+        for (PeerInfoRecord peer : sample) {
+            reply.append(' ').append(peer.getAddress().getHostAddress()).append(':').append(peer.getPeerListenerPort());
+        }
+        return reply.toString();
+    }
+
+    private void syncAll() {
+        for (Shard shard : shards) {
+            if (shard != self) {
+                sync(shard);
+            }
+        }
+    }
+
+    /**
+     * Replaces a shard's sample with a fresh one. A busy shard keeps its old sample; one that
+     * cannot be reached is taken off the ring until it answers again.
+     */
+    private void sync(Shard shard) {
+        String reply;
+        try (Socket socket = new Socket()) {
+            socket.connect(shard.address, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream output = socket.getOutputStream();
+            output.write((SAMPLE_REQUEST + " " + sampleSize + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            // Not Frames.readLine, a sample can be longer than a protocol line
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            reply = input.readLine();
+            if (reply == null) {
+                throw new IOException("Connection closed");
+            }
+        } catch (IOException e) {
+            if (shard.reachable) {
+                LOGGER.warning("Shard " + format(shard.address) + " is unreachable: " + e.getMessage());
+            }
+            shard.reachable = false;
+            synchronized (this) {
+                shard.sample = new ArrayList<>();
+                shard.freePeers = 0;
+            }
+            return;
+        }
+
+        if (!shard.reachable) {
+            LOGGER.info("Shard " + format(shard.address) + " is reachable");
+        }
+        shard.reachable = true;
+        if (reply.startsWith(Frames.RETRY_AFTER_PREFIX)) {
+            return;
+        }
+
+        String[] parts = reply.split(" ");
+        int freePeers;
+        try {
+            freePeers = parts.length >= 2 && parts[0].equals(SAMPLE_REPLY) ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            freePeers = -1;
+        }
+        if (freePeers < 0) {
+            LOGGER.warning("Invalid sample from shard " + format(shard.address) + ": " + reply);
+            return;
+        }
+        List<PeerInfoRecord> sample = new ArrayList<>(parts.length - 2);
+        for (int i = 2; i < parts.length; i++) {
+            int separator = parts[i].lastIndexOf(':');
+            try {
+                // Outgoing port 0: the peer is registered with another shard, not here
+                sample.add(new PeerInfoRecord(InetAddress.getByName(parts[i].substring(0, separator)), 0,
+                        Integer.parseInt(parts[i].substring(separator + 1))));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warning("Invalid peer in sample from shard " + format(shard.address) + ": " + parts[i]);
+            }
+        }
+        synchronized (this) {
+            shard.sample = sample;
+            shard.freePeers = Math.max(sample.size(), freePeers);
+        }
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    private static String format(InetSocketAddress address) {
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    /**
+     * 64-bit FNV-1a followed by a finalizer, so similar addresses land far apart on the ring.
+     */
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3f53fe6f75bL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
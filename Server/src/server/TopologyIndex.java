@@ -0,0 +1,191 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The server's view of the overlay: every peer's neighbors as last reported by the peer, with
+ * the peers bucketed by how many neighbor slots they have free. Joining peers are assigned to a
+ * peer with a free slot, picked uniformly in O(1), so they are rarely redirected.
+ * <p>
+ * Assigning a joiner reserves one slot on each chosen peer right away, so concurrent joiners do
+ * not all pile onto the same peer; the peer's next report replaces the estimate, and slots the
+ * joiner did not use are released once it reports its own neighbors. Peers that never report
+ * (older peers) are only tracked through these reservations.
+ */
+class TopologyIndex {
+    private final int maxDegree;
+    // byFreeSlots[n] holds the peers with n free neighbor slots
+    private final IndexedPeerSet[] byFreeSlots;
+    private final Map<InetSocketAddress, Node> nodes = new HashMap<>();
+    private final Random random = new Random();
+
+    private static final class Node {
+        final PeerInfoRecord record;
+        List<InetSocketAddress> neighbors = Collections.emptyList();
+        // Slots promised to joiners since the peer last reported
+        int reserved = 0;
+
+        Node(PeerInfoRecord record) {
+            this.record = record;
+        }
+
+        int degree() {
+            return neighbors.size() + reserved;
+        }
+    }
+
+    /**
+     * @param maxDegree The most neighbors a peer accepts.
+     */
+    TopologyIndex(int maxDegree) {
+        this.maxDegree = maxDegree;
+        this.byFreeSlots = new IndexedPeerSet[maxDegree + 1];
+        for (int i = 0; i <= maxDegree; i++) {
+            byFreeSlots[i] = new IndexedPeerSet();
+        }
+    }
+
+    /**
+     * Adds (or replaces) a peer without neighbors.
+     */
+    synchronized void add(InetSocketAddress key, PeerInfoRecord record) {
+        remove(key);
+        nodes.put(key, new Node(record));
+        byFreeSlots[maxDegree].put(key, record);
+    }
+
+    synchronized void remove(InetSocketAddress key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            byFreeSlots[freeSlots(node)].remove(key);
+        }
+    }
+
+    /**
+     * Replaces a peer's neighbors with the ones it reported.
+     *
+     * @param neighbors The listener addresses of the peer's neighbors.
+     */
+    synchronized void reportNeighbors(InetSocketAddress key, List<InetSocketAddress> neighbors) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return;
+        }
+        byFreeSlots[freeSlots(node)].remove(key);
+        node.neighbors = neighbors;
+        node.reserved = 0;
+        byFreeSlots[freeSlots(node)].put(key, node.record);
+    }
+
+    /**
+     * Gives back a slot reserved by {@link #assign} that the joiner did not use.
+     */
+    synchronized void release(InetSocketAddress key) {
+        Node node = nodes.get(key);
+        if (node == null || node.reserved == 0) {
+            return;
+        }
+        byFreeSlots[freeSlots(node)].remove(key);
+        node.reserved--;
+        byFreeSlots[freeSlots(node)].put(key, node.record);
+    }
+
+    /**
+     * Picks distinct random peers with a free neighbor slot and reserves a slot on each for a joiner.
+     *
+     * @param excludedKey The joiner itself, may be null.
+     * @param count       How many peers to pick at most.
+     * @return The chosen peers, empty if no other peer has a free slot.
+     */
+    synchronized List<PeerInfoRecord> assign(InetSocketAddress excludedKey, int count) {
+        return pick(excludedKey, count, true);
+    }
+
+    /**
+     * Picks distinct random peers with a free neighbor slot without reserving anything, e.g. to
+     * offer them to other shards.
+     *
+     * @param count How many peers to pick at most.
+     */
+    synchronized List<PeerInfoRecord> sample(int count) {
+        return pick(null, count, false);
+    }
+
+    /**
+     * @param excludedKey A peer not to count, may be null.
+     * @return How many peers have a free neighbor slot.
+     */
+    synchronized int freePeers(InetSocketAddress excludedKey) {
+        int free = nodes.size() - byFreeSlots[0].size();
+        Node excluded = excludedKey == null ? null : nodes.get(excludedKey);
+        return excluded != null && freeSlots(excluded) > 0 ? free - 1 : free;
+    }
+
+    private List<PeerInfoRecord> pick(InetSocketAddress excludedKey, int count, boolean reserve) {
+        List<PeerInfoRecord> chosen = new ArrayList<>(count);
+        // The joiner and every chosen peer leave the buckets while picking, so none is picked twice
+        List<InetSocketAddress> setAside = new ArrayList<>(count + 1);
+        Node excluded = excludedKey == null ? null : nodes.get(excludedKey);
+        if (excluded != null) {
+            byFreeSlots[freeSlots(excluded)].remove(excludedKey);
+            setAside.add(excludedKey);
+        }
+
+        while (chosen.size() < count) {
+            int total = 0;
+            for (int free = 1; free <= maxDegree; free++) {
+                total += byFreeSlots[free].size();
+            }
+            if (total == 0) {
+                break;
+            }
+
+            // Every peer with a free slot is equally likely, whichever bucket it is in
+            int target = random.nextInt(total);
+            int free = 1;
+            while (target >= byFreeSlots[free].size()) {
+                target -= byFreeSlots[free].size();
+                free++;
+            }
+            PeerInfoRecord peer = byFreeSlots[free].randomExcluding(null, random);
+            InetSocketAddress key = new InetSocketAddress(peer.getAddress(), peer.getOutgoingPort());
+            byFreeSlots[free].remove(key);
+            setAside.add(key);
+            if (reserve) {
+                nodes.get(key).reserved++;
+            }
+            chosen.add(peer);
+        }
+
+        for (InetSocketAddress key : setAside) {
+            Node node = nodes.get(key);
+            byFreeSlots[freeSlots(node)].put(key, node.record);
+        }
+        return chosen;
+    }
+
+    /**
+     * @return The last reported neighbors of a peer, empty if unknown.
+     */
+    synchronized List<InetSocketAddress> neighborsOf(InetSocketAddress key) {
+        Node node = nodes.get(key);
+        return node == null ? Collections.emptyList() : node.neighbors;
+    }
+
+    /**
+     * @return How many peers have no free neighbor slot.
+     */
+    synchronized int fullPeers() {
+        return byFreeSlots[0].size();
+    }
+
+    private int freeSlots(Node node) {
+        return Math.max(0, Math.min(maxDegree, maxDegree - node.degree()));
+    }
+}
@@ -0,0 +1,136 @@
+package common;
+
+import test.Check;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link FrameReader} and {@link Frames} reject bad lengths, counts and addresses
+ * read from the network, and that a reader only allocates for bytes that actually arrived.
+ */
+public class FramesTest {
+    private static final int SMALL_BUFFER = 1024;
+
+    public static void main(String[] args) throws IOException {
+        frameReader();
+        frameLengths();
+        counts();
+        addresses();
+        Check.done(FramesTest.class);
+    }
+
+    private static void frameReader() throws IOException {
+        byte[] payload = new byte[100_000];
+        Arrays.fill(payload, (byte) 7);
+        byte[] unknown = frame((byte) 100, new byte[3]);
+        FrameReader reader = reader(Frames.MAX_FRAME_LENGTH,
+                frame(Opcode.NOTICE.code(), new byte[0]), unknown, frame(Opcode.MEMBERS.code(), payload));
+        Check.equal(Opcode.NOTICE, reader.next(), "first frame");
+        Check.equal(0, reader.payload().remaining(), "empty payload");
+        Check.equal(Opcode.MEMBERS, reader.next(), "frame after an unknown opcode");
+        byte[] read = new byte[reader.payload().remaining()];
+        reader.payload().get(read);
+        Check.isTrue(Arrays.equals(payload, read), "payload larger than the initial buffer");
+        Check.equal(null, reader.next(), "end of stream between frames");
+
+        int max = Frames.MAX_FRAME_LENGTH;
+        Check.fails(IOException.class, () -> reader(max, header(0)).next(), "frame length 0");
+        Check.fails(IOException.class, () -> reader(max, header(-1)).next(), "negative frame length");
+        Check.fails(IOException.class, () -> reader(max, header(max + 1)).next(),
+                "frame length over the protocol maximum");
+        Check.fails(EOFException.class, () -> reader(max, new byte[2]).next(), "stream ending in a header");
+
+        FrameReader small = reader(Frames.MAX_MESSAGE_LENGTH, header(Frames.MAX_MESSAGE_LENGTH + 1));
+        Check.fails(IOException.class, small::next, "frame length over the reader's maximum");
+        Check.isTrue(small.payload().capacity() <= SMALL_BUFFER, "buffer after rejecting a long frame");
+
+        // Announces 16 MB but sends 10 bytes: the reader must fail without allocating for the rest
+        byte[] truncated = Arrays.copyOf(header(Frames.MAX_FRAME_LENGTH), Frames.HEADER_LENGTH + 10);
+        truncated[Frames.HEADER_LENGTH] = Opcode.MEMBERS.code();
+        FrameReader large = reader(Frames.MAX_FRAME_LENGTH, truncated);
+        Check.fails(EOFException.class, large::next, "stream ending in a frame body");
+        Check.isTrue(large.payload().capacity() <= SMALL_BUFFER,
+                "buffer after a truncated frame: " + large.payload().capacity() + " bytes");
+    }
+
+    private static void frameLengths() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(new byte[]{0, 0});
+        buffer.flip();
+        Check.equal(-1, Frames.completeFrameLength(buffer), "partial header");
+
+        buffer = ByteBuffer.wrap(frame(Opcode.NOTICE.code(), new byte[5]));
+        Check.equal(6, Frames.completeFrameLength(buffer), "complete frame");
+        buffer.limit(buffer.limit() - 1);
+        Check.equal(-1, Frames.completeFrameLength(buffer), "partial frame");
+
+        Check.fails(IOException.class, () -> Frames.completeFrameLength(ByteBuffer.wrap(header(0))), "frame length 0");
+        Check.fails(IOException.class, () -> Frames.completeFrameLength(ByteBuffer.wrap(header(-1))),
+                "negative frame length");
+        ByteBuffer tooLong = ByteBuffer.wrap(header(Frames.MAX_FRAME_LENGTH + 1));
+        Check.fails(IOException.class, () -> Frames.completeFrameLength(tooLong),
+                "frame length over the protocol maximum");
+    }
+
+    private static void counts() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 * Frames.MIN_ADDRESS_LENGTH);
+        buffer.putInt(0, 2);
+        Check.equal(2, Frames.getCount(buffer.duplicate(), Frames.MIN_ADDRESS_LENGTH), "count that fits");
+        buffer.putInt(0, 3);
+        Check.fails(IOException.class, () -> Frames.getCount(buffer.duplicate(), Frames.MIN_ADDRESS_LENGTH),
+                "count longer than the frame");
+        buffer.putInt(0, -1);
+        Check.fails(IOException.class, () -> Frames.getCount(buffer.duplicate(), Frames.MIN_ADDRESS_LENGTH),
+                "negative count");
+        buffer.putInt(0, Integer.MAX_VALUE);
+        Check.fails(IOException.class, () -> Frames.getCount(buffer.duplicate(), Frames.MIN_ADDRESS_LENGTH),
+                "count whose length overflows an int");
+    }
+
+    private static void addresses() throws IOException {
+        for (InetAddress address : new InetAddress[]{InetAddress.getByName("10.1.2.3"), InetAddress.getByName("::1")}) {
+            ByteBuffer buffer = ByteBuffer.allocate(32);
+            Frames.putAddress(buffer, address, 65535);
+            buffer.flip();
+            Check.equal(new InetSocketAddress(address, 65535), Frames.getAddress(buffer), "address round trip");
+            Check.equal(0, buffer.remaining(), "bytes left after the address");
+        }
+
+        Check.fails(IOException.class, () -> Frames.getAddress(ByteBuffer.wrap(new byte[]{5, 1, 2, 3, 4, 5, 0, 1})),
+                "address of 5 bytes");
+        Check.fails(IOException.class, () -> Frames.getAddress(ByteBuffer.wrap(new byte[]{4, 10, 1, 2, 3, 0})),
+                "address cut off in the port");
+        Check.fails(IOException.class, () -> Frames.getAddress(ByteBuffer.wrap(new byte[]{16, 0, 0, 0})),
+                "IPv6 address cut off");
+    }
+
+    private static FrameReader reader(int maxLength, byte[]... frames) {
+        int length = 0;
+        for (byte[] frame : frames) {
+            length += frame.length;
+        }
+        ByteBuffer stream = ByteBuffer.allocate(length);
+        for (byte[] frame : frames) {
+            stream.put(frame);
+        }
+        return new FrameReader(new ByteArrayInputStream(stream.array()), maxLength);
+    }
+
+    private static byte[] frame(byte opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + 1 + payload.length);
+        frame.putInt(1 + payload.length);
+        frame.put(opcode);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private static byte[] header(int length) {
+        return ByteBuffer.allocate(Frames.HEADER_LENGTH).putInt(length).array();
+    }
+}
@@ -0,0 +1,79 @@
+package peer;
+
+import test.Check;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link QueryCache} expires positive and negative answers after their own TTLs,
+ * never lets a negative answer hide known holders, and drops the least recently used key.
+ */
+public class QueryCacheTest {
+    private static final long POSITIVE_TTL_MILLIS = 200;
+    private static final long NEGATIVE_TTL_MILLIS = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        expiry();
+        negativeAnswers();
+        leastRecentlyUsed();
+        Check.done(QueryCacheTest.class);
+    }
+
+    private static void expiry() throws InterruptedException {
+        QueryCache cache = cache(16, 2);
+        Check.equal(null, cache.get("a"), "answer for an unknown key");
+
+        cache.addHolders("a", List.of(holder(1), holder(2), holder(3)));
+        cache.addNegative("b");
+        Check.equal(List.of(holder(1), holder(2)), cache.get("a"), "holders, at most 2");
+        Check.equal(List.of(), cache.get("b"), "negative answer");
+
+        Thread.sleep(NEGATIVE_TTL_MILLIS + 20);
+        Check.equal(null, cache.get("b"), "negative answer after its TTL");
+        Check.equal(List.of(holder(1), holder(2)), cache.get("a"), "holders after the negative TTL");
+
+        Thread.sleep(POSITIVE_TTL_MILLIS);
+        Check.equal(null, cache.get("a"), "holders after their TTL");
+        Check.equal(0, cache.size(), "keys left after expiry");
+    }
+
+    private static void negativeAnswers() {
+        QueryCache cache = cache(16, 4);
+        cache.addHolders("a", List.of(holder(1)));
+        cache.addNegative("a");
+        Check.equal(List.of(holder(1)), cache.get("a"), "a negative answer does not hide holders");
+
+        cache.addNegative("b");
+        cache.addHolders("b", List.of(holder(2)));
+        Check.equal(List.of(holder(2)), cache.get("b"), "holders replace a negative answer");
+
+        QueryCache disabled = cache(0, 4);
+        disabled.addHolders("a", List.of(holder(1)));
+        disabled.addNegative("b");
+        Check.equal(0, disabled.size(), "keys in a disabled cache");
+    }
+
+    private static void leastRecentlyUsed() {
+        QueryCache cache = cache(2, 4);
+        cache.addHolders("a", List.of(holder(1)));
+        cache.addHolders("b", List.of(holder(2)));
+        cache.get("a");
+        cache.addNegative("c");
+        Check.equal(2, cache.size(), "keys in a full cache");
+        Check.equal(null, cache.get("b"), "the least recently used key");
+        Check.equal(List.of(holder(1)), cache.get("a"), "a recently read key");
+        Check.equal(List.of(), cache.get("c"), "the newest key");
+    }
+
+    private static QueryCache cache(int capacity, int maxHolders) {
+        return new QueryCache(capacity, TimeUnit.MILLISECONDS.toNanos(POSITIVE_TTL_MILLIS),
+                TimeUnit.MILLISECONDS.toNanos(NEGATIVE_TTL_MILLIS), maxHolders);
+    }
+
+    private static InetSocketAddress holder(int index) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000 + index);
+    }
+}
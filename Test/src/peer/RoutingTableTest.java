@@ -0,0 +1,104 @@
+package peer;
+
+import test.Check;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link RoutingTable} files contacts by the highest bit in which their ID differs
+ * from the peer's, fills each bucket up to k independently of the others, and returns the
+ * closest contacts in XOR order.
+ */
+public class RoutingTableTest {
+    private static final long SELF_ID = 0x5a5a_1234_dead_beefL;
+    private static final int K = 3;
+
+    public static void main(String[] args) {
+        bucketPlacement();
+        closest();
+        Check.done(RoutingTableTest.class);
+    }
+
+    private static void bucketPlacement() {
+        RoutingTable table = new RoutingTable(SELF_ID, K);
+        Random random = new Random(21);
+        Check.isTrue(!table.seen(contact(SELF_ID)), "the peer itself is not a contact");
+
+        for (int bucket : new int[]{0, 1, 10, 63}) {
+            int room = room(bucket);
+            List<Long> ids = distinctIds(bucket, room + 1, random);
+            for (int i = 0; i < room; i++) {
+                Check.isTrue(table.seen(contact(ids.get(i))), "contact " + i + " fits in bucket " + bucket);
+            }
+            if (ids.size() > room) {
+                Check.isTrue(!table.seen(contact(ids.get(room))), "bucket " + bucket + " is full at " + room);
+            }
+            Check.isTrue(table.seen(contact(ids.get(0))), "a known contact is seen again in full bucket " + bucket);
+        }
+        Check.equal(1 + 2 + K + K, table.size(), "contacts in the table");
+
+        List<Long> ids = distinctIds(10, 1, random);
+        table.remove(table.closest(SELF_ID ^ (1L << 10), 1).get(0).getId());
+        Check.isTrue(table.seen(contact(ids.get(0))), "removing a contact makes room in its bucket");
+        Check.equal(1 + 2 + K + K, table.size(), "contacts after replacing one");
+    }
+
+    /**
+     * Compares {@link RoutingTable#closest} with sorting all contacts by their distance.
+     */
+    private static void closest() {
+        RoutingTable table = new RoutingTable(SELF_ID, K);
+        Random random = new Random(42);
+        List<Long> contacts = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            long id = random.nextLong();
+            if (table.seen(contact(id))) {
+                contacts.add(id);
+            }
+        }
+        Check.equal(contacts.size(), table.size(), "contacts in the table");
+
+        for (int round = 0; round < 20; round++) {
+            long target = random.nextLong();
+            List<Long> expected = new ArrayList<>(contacts);
+            expected.sort((a, b) -> Long.compareUnsigned(a ^ target, b ^ target));
+            List<Long> found = new ArrayList<>();
+            for (Contact contact : table.closest(target, 8)) {
+                found.add(contact.getId());
+            }
+            Check.equal(expected.subList(0, Math.min(8, expected.size())), found, "closest to " + RoutingTable.formatId(target));
+        }
+    }
+
+    /**
+     * @return How many contacts fit in a bucket: bucket 0 covers a single ID, bucket 1 two.
+     */
+    private static int room(int bucket) {
+        return bucket < 2 ? 1 << bucket : K;
+    }
+
+    /**
+     * @return Distinct IDs at a distance from the peer's in [2^bucket, 2^(bucket+1)), fewer than
+     * asked for if the bucket has no more.
+     */
+    private static List<Long> distinctIds(int bucket, int count, Random random) {
+        List<Long> ids = new ArrayList<>();
+        long lowBits = (1L << bucket) - 1;
+        int available = bucket < 2 ? 1 << bucket : count;
+        while (ids.size() < Math.min(count, available)) {
+            long id = SELF_ID ^ ((1L << bucket) | (random.nextLong() & lowBits));
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static Contact contact(long id) {
+        return new Contact(id, new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000));
+    }
+}
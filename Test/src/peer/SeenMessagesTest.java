@@ -0,0 +1,60 @@
+package peer;
+
+import test.Check;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link SeenMessages} never takes a new ID for a seen one, also across the
+ * rotations of its two tables, and that it remembers every ID for at least its capacity.
+ */
+public class SeenMessagesTest {
+    private static final int CAPACITY = 100;
+
+    public static void main(String[] args) {
+        Check.isTrue(!new SeenMessages(CAPACITY).add(0), "ID 0 is never new");
+        rotation("random IDs", randomIds(20 * CAPACITY));
+        // Consecutive IDs land in neighboring slots and make long probe sequences
+        long[] consecutive = new long[20 * CAPACITY];
+        for (int i = 0; i < consecutive.length; i++) {
+            consecutive[i] = i + 1;
+        }
+        rotation("consecutive IDs", consecutive);
+        Check.done(SeenMessagesTest.class);
+    }
+
+    /**
+     * Adds distinct IDs through many rotations; each must be new, and the last
+     * <code>CAPACITY</code> ones must still be known after each add.
+     */
+    private static void rotation(String name, long[] ids) {
+        SeenMessages seen = new SeenMessages(CAPACITY);
+        int falsePositives = 0;
+        int forgotten = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (!seen.add(ids[i])) {
+                falsePositives++;
+            }
+            for (int back = Math.max(0, i - CAPACITY + 1); back <= i; back++) {
+                if (seen.add(ids[back])) {
+                    forgotten++;
+                }
+            }
+        }
+        Check.equal(0, falsePositives, name + ": new IDs taken for seen ones");
+        Check.equal(0, forgotten, name + ": recent IDs forgotten");
+    }
+
+    private static long[] randomIds(int count) {
+        Random random = new Random(19);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            long id;
+            do {
+                id = random.nextLong();
+            } while (id == 0);
+            ids[i] = id;
+        }
+        return ids;
+    }
+}
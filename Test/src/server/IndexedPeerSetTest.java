@@ -0,0 +1,106 @@
+package server;
+
+import test.Check;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that {@link IndexedPeerSet} keeps its key to slot index in step with the swap on
+ * removal, and that {@link IndexedPeerSet#randomExcluding} never picks the excluded peer but
+ * every other one.
+ */
+public class IndexedPeerSetTest {
+    private static final int LISTENER_PORT = 6000;
+
+    public static void main(String[] args) {
+        replaceAndRemove();
+        randomChurn();
+        randomExcluding();
+        Check.done(IndexedPeerSetTest.class);
+    }
+
+    private static void replaceAndRemove() {
+        IndexedPeerSet set = new IndexedPeerSet();
+        InetSocketAddress key = peer(1);
+        PeerInfoRecord first = record(key);
+        PeerInfoRecord second = record(key);
+
+        Check.equal(null, set.put(key, first), "put of a new peer");
+        Check.isTrue(set.put(key, second) == first, "put of a known peer returns the old record");
+        Check.equal(1, set.size(), "size after replacing");
+        Check.isTrue(set.get(key) == second, "get after replacing");
+        Check.equal(null, set.remove(peer(2)), "remove of an absent peer");
+        Check.isTrue(set.remove(key) == second, "remove returns the record");
+        Check.equal(0, set.size(), "size after removing the only peer");
+        Check.equal(null, set.get(key), "get after removing");
+    }
+
+    /**
+     * Adds and removes peers at random, past the initial capacity, and compares the set with a map
+     * after every step, so a slot index left stale by a swap shows up at once.
+     */
+    private static void randomChurn() {
+        IndexedPeerSet set = new IndexedPeerSet();
+        Map<InetSocketAddress, PeerInfoRecord> expected = new HashMap<>();
+        Random random = new Random(42);
+        boolean consistent = true;
+
+        for (int step = 0; step < 5000 && consistent; step++) {
+            InetSocketAddress key = peer(random.nextInt(100));
+            if (random.nextInt(3) == 0) {
+                PeerInfoRecord removed = set.remove(key);
+                consistent = removed == expected.remove(key);
+            } else {
+                PeerInfoRecord record = record(key);
+                PeerInfoRecord previous = set.put(key, record);
+                consistent = previous == expected.put(key, record);
+            }
+
+            consistent &= set.size() == expected.size();
+            for (Map.Entry<InetSocketAddress, PeerInfoRecord> entry : expected.entrySet()) {
+                consistent &= set.get(entry.getKey()) == entry.getValue();
+            }
+        }
+        Check.isTrue(consistent, "the set matches a map through random adds and removes");
+    }
+
+    private static void randomExcluding() {
+        IndexedPeerSet set = new IndexedPeerSet();
+        Random random = new Random(7);
+        Check.equal(null, set.randomExcluding(null, random), "pick from an empty set");
+
+        set.put(peer(0), record(peer(0)));
+        Check.equal(null, set.randomExcluding(peer(0), random), "pick when the only peer is excluded");
+        Check.equal(record(peer(0)), set.randomExcluding(peer(1), random), "pick with an absent peer excluded");
+
+        for (int i = 1; i < 5; i++) {
+            set.put(peer(i), record(peer(i)));
+        }
+        set.remove(peer(1)); // Moves the last peer into slot 1
+        for (int excluded = 0; excluded < 5; excluded++) {
+            if (excluded == 1) {
+                continue;
+            }
+            Set<PeerInfoRecord> picked = new HashSet<>();
+            for (int draw = 0; draw < 1000; draw++) {
+                picked.add(set.randomExcluding(peer(excluded), random));
+            }
+            Check.isTrue(!picked.contains(record(peer(excluded))), "never picks excluded peer " + excluded);
+            Check.equal(3, picked.size(), "picks every other peer with peer " + excluded + " excluded");
+        }
+    }
+
+    private static InetSocketAddress peer(int index) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 10000 + index);
+    }
+
+    private static PeerInfoRecord record(InetSocketAddress key) {
+        return new PeerInfoRecord(key.getAddress(), key.getPort(), LISTENER_PORT);
+    }
+}
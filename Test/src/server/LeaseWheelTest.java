@@ -0,0 +1,85 @@
+package server;
+
+import test.Check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that {@link LeaseWheel} expires a lease once and not before its deadline, keeps a
+ * renewed lease however often its slot comes up, and drops a cancelled one. The wheel is ticked
+ * by hand instead of on its own thread.
+ */
+public class LeaseWheelTest {
+    private static final long TICK_MILLIS = 10;
+    private static final int SLOT_COUNT = 4; // One revolution is shorter than a lease
+    private static final long LEASE_MILLIS = 60;
+
+    public static void main(String[] args) throws InterruptedException {
+        expiresOnce();
+        renewalRearms();
+        cancelledNeverExpires();
+        Check.done(LeaseWheelTest.class);
+    }
+
+    private static void expiresOnce() throws InterruptedException {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        LeaseWheel<String> wheel = new LeaseWheel<>(TICK_MILLIS, SLOT_COUNT, LEASE_MILLIS, expired::add);
+        long granted = System.currentTimeMillis();
+        wheel.grant("a");
+
+        long expiredAt = 0;
+        while (System.currentTimeMillis() - granted < 5 * LEASE_MILLIS) {
+            wheel.tick();
+            if (expiredAt == 0 && !expired.isEmpty()) {
+                expiredAt = System.currentTimeMillis();
+            }
+            Thread.sleep(TICK_MILLIS / 2);
+        }
+        Check.equal(List.of("a"), expired, "leases expired");
+        Check.isTrue(expiredAt - granted >= LEASE_MILLIS, "expired after " + (expiredAt - granted) + " ms");
+    }
+
+    private static void renewalRearms() throws InterruptedException {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        LeaseWheel<String> wheel = new LeaseWheel<>(TICK_MILLIS, SLOT_COUNT, LEASE_MILLIS, expired::add);
+        LeaseWheel.Lease<String> lease = wheel.grant("b");
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5 * LEASE_MILLIS) {
+            wheel.renew(lease);
+            wheel.tick();
+            Thread.sleep(TICK_MILLIS / 2);
+        }
+        Check.equal(List.of(), expired, "leases expired while renewed");
+
+        long lastRenewal = System.currentTimeMillis();
+        wheel.renew(lease);
+        long expiredAt = 0;
+        while (expiredAt == 0 && System.currentTimeMillis() - lastRenewal < 5 * LEASE_MILLIS) {
+            wheel.tick();
+            if (!expired.isEmpty()) {
+                expiredAt = System.currentTimeMillis();
+            }
+            Thread.sleep(TICK_MILLIS / 2);
+        }
+        Check.equal(List.of("b"), expired, "leases expired once renewals stopped");
+        Check.isTrue(expiredAt - lastRenewal >= LEASE_MILLIS,
+                "expired " + (expiredAt - lastRenewal) + " ms after the last renewal");
+    }
+
+    private static void cancelledNeverExpires() throws InterruptedException {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        LeaseWheel<String> wheel = new LeaseWheel<>(TICK_MILLIS, SLOT_COUNT, LEASE_MILLIS, expired::add);
+        wheel.cancel(wheel.grant("c"));
+        wheel.grant("d");
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5 * LEASE_MILLIS) {
+            wheel.tick();
+            Thread.sleep(TICK_MILLIS / 2);
+        }
+        Check.equal(List.of("d"), expired, "leases expired with c cancelled");
+    }
+}
@@ -0,0 +1,69 @@
+package test;
+
+import java.util.Objects;
+
+/**
+ * Assertions for the tests in this module, which are plain main methods so they run without
+ * extra dependencies. A failed check is printed and counted instead of thrown, so one run
+ * reports every failure, and {@link #done(Class)} exits with status 1 if there was any.
+ */
+public final class Check {
+    private static int checks = 0;
+    private static int failures = 0;
+
+    /**
+     * A step that is expected to fail.
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    private Check() {
+    }
+
+    public static void isTrue(boolean condition, String what) {
+        checks++;
+        if (!condition) {
+            fail(what);
+        }
+    }
+
+    public static void equal(Object expected, Object actual, String what) {
+        checks++;
+        if (!Objects.equals(expected, actual)) {
+            fail(what + ": expected " + expected + " but got " + actual);
+        }
+    }
+
+    /**
+     * Checks that a step throws an exception of the given type.
+     */
+    public static void fails(Class<? extends Exception> expected, Step step, String what) {
+        checks++;
+        try {
+            step.run();
+            fail(what + ": expected " + expected.getSimpleName() + " but nothing was thrown");
+        } catch (Exception e) {
+            if (!expected.isInstance(e)) {
+                fail(what + ": expected " + expected.getSimpleName() + " but got " + e);
+            }
+        }
+    }
+
+    /**
+     * Prints how many checks passed, and exits with status 1 if any failed.
+     */
+    public static void done(Class<?> test) {
+        if (failures == 0) {
+            System.out.println(test.getSimpleName() + ": " + checks + " checks passed");
+        } else {
+            System.out.println(test.getSimpleName() + ": " + failures + " of " + checks + " checks failed");
+            System.exit(1);
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println("FAILED: " + message);
+    }
+}
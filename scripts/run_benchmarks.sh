@@ -0,0 +1,34 @@
+#!/bin/bash
+
+# Set the working directory to the script's location
+cd "$(dirname "$0")" || exit 1
+
+OUT_DIR="../out/production/Benchmark"
+
+# Ensure the output directory exists
+mkdir -p "$OUT_DIR"
+
+# Compile the benchmarks together with the code they measure
+echo "Compiling the Benchmark module..."
+javac -d "$OUT_DIR" ../Common/src/common/*.java ../Server/src/server/*.java ../Peer/src/peer/*.java \
+    ../Benchmark/src/benchmark/*.java ../Benchmark/src/server/*.java ../Benchmark/src/peer/*.java
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Check the paths or syntax in your code."
+    exit 1
+fi
+
+# Run the benchmarks, e.g. JAVA_OPTS="-Dbench.sizes=1000 -Dbench.threads=1,8" bash scripts/run_benchmarks.sh
+echo "Running the registry benchmarks..."
+java -Xmx2g $JAVA_OPTS -cp "$OUT_DIR" server.RegistryBenchmark || exit 1
+
+echo "Running the handshake benchmarks..."
+java $JAVA_OPTS -cp "$OUT_DIR" peer.HandshakeBenchmark || exit 1
+
+echo "Running the structured lookup simulation..."
+java -Xmx2g $JAVA_OPTS -cp "$OUT_DIR" peer.DhtSimulation || exit 1
+
+echo "Running the file transfer benchmark..."
+java $JAVA_OPTS -cp "$OUT_DIR" peer.TransferBenchmark || exit 1
+
+echo "Running the search simulation..."
+java -Xmx1g $JAVA_OPTS -cp "$OUT_DIR" peer.QuerySimulation || exit 1
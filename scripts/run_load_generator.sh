@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Set the working directory to the script's location
+cd "$(dirname "$0")" || exit 1
+
+OUT_DIR="../out/production/Benchmark"
+
+# Ensure the output directory exists
+mkdir -p "$OUT_DIR"
+
+# Compile the load generator together with the peer it simulates
+echo "Compiling the Benchmark module..."
+javac -d "$OUT_DIR" ../Common/src/common/*.java ../Server/src/server/*.java ../Peer/src/peer/*.java \
+    ../Benchmark/src/benchmark/*.java ../Benchmark/src/server/*.java ../Benchmark/src/peer/*.java
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Check the paths or syntax in your code."
+    exit 1
+fi
+
+# Simulate peers against a running server, e.g. JAVA_OPTS="-Dload.peers=2000 -Dload.joinRate=200" bash scripts/run_load_generator.sh
+echo "Starting the load generator..."
+java $JAVA_OPTS -cp "$OUT_DIR" peer.LoadGenerator
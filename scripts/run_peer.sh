@@ -5,6 +5,7 @@ cd "$(dirname "$0")" || exit 1
 
 # Define paths
 SRC_DIR="../Peer/src/peer"
+COMMON_DIR="../Common/src/common"
 OUT_DIR="../out/production/Peer"
 
 # Ensure the output directory exists
@@ -12,8 +13,9 @@ mkdir -p "$OUT_DIR"
 
 # Check if recompilation is needed
 needs_recompile=false
-for src_file in "$SRC_DIR"/*.java; do
-    class_file="$OUT_DIR/$(basename "${src_file%.java}.class")"
+for src_file in "$SRC_DIR"/*.java "$COMMON_DIR"/*.java; do
+    package_dir="$(basename "$(dirname "$src_file")")"
+    class_file="$OUT_DIR/$package_dir/$(basename "${src_file%.java}.class")"
     if [ ! -f "$class_file" ] || [ "$src_file" -nt "$class_file" ]; then
         needs_recompile=true
         break
@@ -22,7 +24,7 @@ done
 
 # Recompile if necessary
 if $needs_recompile; then
-    javac -d "$OUT_DIR" "$SRC_DIR"/*.java
+    javac -d "$OUT_DIR" "$COMMON_DIR"/*.java "$SRC_DIR"/*.java
     if [ $? -ne 0 ]; then
         echo "Compilation failed. Check the paths or syntax in your code."
         exit 1
@@ -33,7 +35,7 @@ fi
 
 # Run the Peer client
 echo "Running the Peer client..."
-java -cp "$OUT_DIR" peer.Peer
+java $JAVA_OPTS -cp "$OUT_DIR" peer.Peer "$@"
 if [ $? -ne 0 ]; then
     echo "Failed to start the Peer client. Check your classpath or main class."
     exit 1
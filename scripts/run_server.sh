@@ -8,7 +8,7 @@ mkdir -p ../out/production/Server
 
 # Compile the Server module
 echo "Compiling the Server module..."
-javac -d ../out/production/Server ../Server/src/server/*.java
+javac -d ../out/production/Server ../Common/src/common/*.java ../Server/src/server/*.java
 if [ $? -ne 0 ]; then
     echo "Compilation failed. Check the paths or syntax in your code."
     exit 1
@@ -16,7 +16,7 @@ fi
 
 # Start the Server
 echo "Starting the Server..."
-java -cp ../out/production/Server server.Central_Server
+java $JAVA_OPTS -cp ../out/production/Server server.Central_Server
 if [ $? -ne 0 ]; then
     echo "Failed to start the server. Check your classpath or main class."
     exit 1
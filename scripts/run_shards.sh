@@ -0,0 +1,38 @@
+#!/bin/bash
+
+# Set the working directory to the script's location
+cd "$(dirname "$0")" || exit 1
+
+# Number of shards, e.g. bash scripts/run_shards.sh 3 (ports 9090, 9190, 9290; metrics on port + 1)
+SHARD_COUNT=${1:-3}
+
+# Ensure the output directory exists
+mkdir -p ../out/production/Server
+
+# Compile the Server module
+echo "Compiling the Server module..."
+javac -d ../out/production/Server ../Common/src/common/*.java ../Server/src/server/*.java
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Check the paths or syntax in your code."
+    exit 1
+fi
+
+PORTS=()
+SHARDS=""
+for ((i = 0; i < SHARD_COUNT; i++)); do
+    PORTS+=($((9090 + i * 100)))
+    SHARDS="$SHARDS${SHARDS:+,}127.0.0.1:${PORTS[$i]}"
+done
+
+# Start every shard but the first in the background, each with its own log and registry files
+trap 'kill $(jobs -p) 2>/dev/null' EXIT
+for PORT in "${PORTS[@]:1}"; do
+    echo "Starting the shard on port $PORT..."
+    java $JAVA_OPTS -Dserver.port="$PORT" -Dserver.shards="$SHARDS" -Dserver.logFile="server-logs-$PORT.txt" \
+        -cp ../out/production/Server server.Central_Server < /dev/null > "shard-$PORT.txt" 2>&1 &
+done
+
+# The first shard takes the terminal commands; quitting it stops the others
+echo "Starting the shard on port ${PORTS[0]}..."
+java $JAVA_OPTS -Dserver.port="${PORTS[0]}" -Dserver.shards="$SHARDS" -Dserver.logFile="server-logs-${PORTS[0]}.txt" \
+    -cp ../out/production/Server server.Central_Server
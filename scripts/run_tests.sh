@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Set the working directory to the script's location
+cd "$(dirname "$0")" || exit 1
+
+OUT_DIR="../out/production/Test"
+
+# Ensure the output directory exists
+mkdir -p "$OUT_DIR"
+
+# Compile the tests together with the code they check
+echo "Compiling the Test module..."
+javac -d "$OUT_DIR" ../Common/src/common/*.java ../Server/src/server/*.java ../Peer/src/peer/*.java \
+    $(find ../Test/src -name '*.java')
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Check the paths or syntax in your code."
+    exit 1
+fi
+
+# Run every test class; each one prints its result and exits with status 1 if a check failed
+FAILED=0
+for TEST in $(cd ../Test/src && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g' | sort); do
+    java $JAVA_OPTS -cp "$OUT_DIR" "$TEST" || FAILED=1
+done
+exit $FAILED